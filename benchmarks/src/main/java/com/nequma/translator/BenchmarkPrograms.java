@@ -0,0 +1,67 @@
+package com.nequma.translator;
+
+/** Source texts of the benchmark workloads, sized by the number of loop iterations or statements. */
+final class BenchmarkPrograms {
+    private BenchmarkPrograms() {}
+
+    /** Generated program with the given number of statements, for the front end and mixed runs. */
+    static String generated(int statements) {
+        ProgramGenerator.Options options = new ProgramGenerator.Options();
+        options.seed = 42;
+        options.statements = statements;
+        options.commentDensity = 0.1;
+        return new ProgramGenerator(options).generate();
+    }
+
+    /** Counting loop doing mixed integer and real arithmetic on every iteration. */
+    static String arithmetic(int iterations) {
+        return "I, S: integer; X: real;\n"
+                + "I := " + iterations + "; S := 0; X := 0.5;\n"
+                + "loop\n"
+                + "    S := S + I * 3 - I / 2 + I mod 7;\n"
+                + "    X := X * 1.0001 + 0.5;\n"
+                + "    I := I - 1;\n"
+                + "    if I <= 0 then goto done;\n"
+                + "end;\n"
+                + "done: ;\n";
+    }
+
+    /** Nested loops left through goto and a label-driven countdown, shaped like test.txt. */
+    static String gotoHeavy(int iterations) {
+        return "begin\n"
+                + "    A, B, C: integer;\n"
+                + "    A := " + iterations + ";\n"
+                + "    loop\n"
+                + "    begin\n"
+                + "        A := A - 1;\n"
+                + "        C := 0;\n"
+                + "        loop\n"
+                + "        begin\n"
+                + "            C := C + 1;\n"
+                + "            if C > 1 then goto innerCycleExitLabel;\n"
+                + "        end;\n"
+                + "        end;\n"
+                + "        innerCycleExitLabel:\n"
+                + "        if A <= 0 then goto exitLabel;\n"
+                + "    end;\n"
+                + "    end;\n"
+                + "    exitLabel:\n"
+                + "    B := " + iterations + ";\n"
+                + "    cycleLabel:\n"
+                + "    B := B - 1;\n"
+                + "    if B > 0 then goto cycleLabel else goto cycleExitLabel;\n"
+                + "    cycleExitLabel:;\n"
+                + "end.\n";
+    }
+
+    /** Loop writing several values and specifiers per iteration. */
+    static String writeHeavy(int iterations) {
+        return "I: integer; X: real;\n"
+                + "I := " + iterations + "; X := 0.5;\n"
+                + "writeLabel:\n"
+                + "write I, space, I * 2, tab, X, skip;\n"
+                + "X := X + 1.25;\n"
+                + "I := I - 1;\n"
+                + "if I > 0 then goto writeLabel;\n";
+    }
+}
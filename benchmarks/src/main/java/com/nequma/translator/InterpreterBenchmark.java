@@ -0,0 +1,48 @@
+package com.nequma.translator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterpreterBenchmark {
+    @Param({"arithmetic", "goto", "write", "generated"})
+    String workload;
+
+    @Param({"100", "1000", "10000"})
+    int size;
+
+    Program program;
+    PrintStream out;
+
+    @Setup
+    public void setUp() {
+        String source;
+        switch (workload) {
+            case "arithmetic": source = BenchmarkPrograms.arithmetic(size); break;
+            case "goto": source = BenchmarkPrograms.gotoHeavy(size); break;
+            case "write": source = BenchmarkPrograms.writeHeavy(size); break;
+            case "generated": source = BenchmarkPrograms.generated(size); break;
+            default: throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+        program = Program.compile(new Parser(new Scanner(source).scanTokens()).parse());
+        // Output is still formatted and encoded, only the bytes are thrown away
+        out = new PrintStream(OutputStream.nullOutputStream(), false);
+    }
+
+    @Benchmark
+    public void interpret() {
+        Interpreter interpreter = new Interpreter(new BufferedReader(Reader.nullReader()), out, false);
+        RuntimeError error = interpreter.run(program);
+        if (error != null) throw error;
+    }
+}
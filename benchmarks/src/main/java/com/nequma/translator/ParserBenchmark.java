@@ -0,0 +1,29 @@
+package com.nequma.translator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"100", "1000", "10000"})
+    int size;
+
+    List<Token> tokens;
+
+    @Setup
+    public void setUp() {
+        tokens = new Scanner(BenchmarkPrograms.generated(size)).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+}
@@ -0,0 +1,260 @@
+package com.nequma.translator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the bytes a run allocates per executed statement with the thread's
+ * own allocation counter, and attributes them to statement kinds, to goto jumps
+ * (rebuilding the frame stack) and to the rest of the run loop (entering and
+ * leaving blocks and loops).
+ *
+ * The first {@code warmup} executions of every statement are counted apart,
+ * since a statement's first runs may allocate legitimately, say the frame of a
+ * loop. What comes after is the steady state, which hot loops are expected to
+ * get through without allocating; {@link #assertNoSteadyStateAllocation} fails
+ * when they do. Statements nested in if branches and label bodies count as
+ * part of the statement that holds them.
+ *
+ * Variables hold boxed values, so an integer outside the small-value cache, a
+ * real or a vector element costs one box wherever an expression computes it.
+ * That much is allowed: a statement may allocate one box per operator and
+ * element read it evaluates, and every slot a byte per execution for what
+ * the JVM does once, such as linking a path first taken after the warmup.
+ * Read statements allocate the lines they take in and are not checked.
+ * {@link RegressionRunner} runs the check on every program of the corpus.
+ *
+ *   java com.nequma.translator.AllocationHarness <program> [-INPUT=<file>] [-WARMUP=<n>] [-ZERO]
+ */
+final class AllocationHarness implements ExecutionListener {
+    static final int DEFAULT_WARMUP = 10000;
+    // A Double with compressed class pointers, header and value padded to 8; an Integer takes 16
+    static final long BOX_BYTES = 24;
+    // One-time allocation spread over the steady executions of a slot
+    private static final long NOISE_BYTES_PER_EXECUTION = 1;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Program program;
+    private final int warmup;
+    // Per statement id, plus two more slots for goto jumps and the run loop
+    private final long[] executions;
+    private final long[] bytes;
+    private final long[] steadyBytes;
+    private final int gotoSlot;
+    private final int loopSlot;
+    private int current;
+    private long mark;
+
+    AllocationHarness(Program program, int warmup) {
+        this.program = program;
+        this.warmup = warmup;
+        int size = program.statements.size();
+        this.gotoSlot = size;
+        this.loopSlot = size + 1;
+        this.executions = new long[size + 2];
+        this.bytes = new long[size + 2];
+        this.steadyBytes = new long[size + 2];
+        this.current = loopSlot;
+    }
+
+    /** Runs the program with the given input through a fresh interpreter that writes nowhere. */
+    static AllocationHarness measure(Program program, String input, int warmup) {
+        AllocationHarness harness = new AllocationHarness(program, warmup);
+        Interpreter interpreter = new Interpreter(new BufferedReader(new StringReader(input)),
+                new PrintStream(OutputStream.nullOutputStream()), false);
+        interpreter.setListener(harness);
+        harness.mark = THREADS.getCurrentThreadAllocatedBytes();
+        interpreter.interpret(program);
+        harness.attribute();
+        return harness;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java AllocationHarness <program> [-INPUT=<file>] [-WARMUP=<n>] [-ZERO]");
+            System.exit(64);
+        }
+        String input = "";
+        int warmup = DEFAULT_WARMUP;
+        boolean zero = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("-INPUT=")) {
+                input = Files.readString(Paths.get(args[i].substring("-INPUT=".length())), Charset.defaultCharset());
+            } else if (args[i].startsWith("-WARMUP=")) {
+                warmup = Integer.parseInt(args[i].substring("-WARMUP=".length()));
+            } else if (args[i].equals("-ZERO")) {
+                zero = true;
+            } else {
+                System.err.println("Unknown flag: " + args[i]);
+            }
+        }
+
+        String source = Files.readString(Paths.get(args[0]), Charset.defaultCharset());
+        Parser parser = new Parser(new Scanner(source).scanTokens());
+        List<Stmt> stmts = parser.parse();
+        if (parser.hadError() || Translator.hadError) {
+            System.out.println("Parsing failed.");
+            System.exit(65);
+        }
+
+        AllocationHarness harness = measure(Program.compile(stmts), input, warmup);
+        harness.report(System.out);
+        if (zero) {
+            try {
+                harness.assertNoSteadyStateAllocation();
+            } catch (AssertionError e) {
+                System.out.println("\n" + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    @Override
+    public void beforeStatement(Stmt stmt, List<Interpreter.Frame> stack) {
+        attribute();
+        current = stmt.id;
+    }
+
+    @Override
+    public void afterStatement(Stmt stmt) {
+        attribute();
+        current = loopSlot;
+    }
+
+    @Override
+    public void onGoto(Stmt.Goto from, Program.LabelInfo target) {
+        attribute();
+        current = gotoSlot;
+    }
+
+    // Charges what was allocated since the last mark to the current slot. The
+    // counter is read again afterwards, so the harness's own work is never charged.
+    private void attribute() {
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - mark;
+        if (++executions[current] > warmup) steadyBytes[current] += allocated;
+        bytes[current] += allocated;
+        mark = THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /** Steady-state bytes over all statements, goto jumps and the run loop; zero is the goal. */
+    long steadyBytes() {
+        long total = 0;
+        for (long b : steadyBytes) total += b;
+        return total;
+    }
+
+    void assertNoSteadyStateAllocation() {
+        List<String> offenders = new ArrayList<>();
+        for (int slot = 0; slot < steadyBytes.length; slot++) {
+            if (steadyBytes[slot] == 0) continue;
+            if (slot < gotoSlot && program.statements.get(slot) instanceof Stmt.Read) continue;
+            long steady = executions[slot] - warmup;
+            long boxes = slot < gotoSlot ? boxes(program.statements.get(slot)) : 0;
+            if (steadyBytes[slot] <= steady * (boxes * BOX_BYTES + NOISE_BYTES_PER_EXECUTION)) continue;
+            offenders.add(String.format("%s: %d bytes over %d steady executions, %d allowed for boxes",
+                    name(slot), steadyBytes[slot], steady, steady * boxes * BOX_BYTES));
+        }
+        if (!offenders.isEmpty()) {
+            throw new AssertionError("Steady-state allocation found:\n  " + String.join("\n  ", offenders));
+        }
+    }
+
+    void report(PrintStream out) {
+        Map<String, long[]> kinds = new LinkedHashMap<>();
+        for (int slot = 0; slot < bytes.length; slot++) {
+            if (executions[slot] == 0) continue;
+            long[] kind = kinds.computeIfAbsent(kind(slot), key -> new long[4]);
+            kind[0] += executions[slot];
+            kind[1] += bytes[slot];
+            kind[2] += Math.max(0, executions[slot] - warmup);
+            kind[3] += steadyBytes[slot];
+        }
+
+        out.println("\nAllocation by kind (steady state after " + warmup + " executions of each statement):");
+        out.println(String.format("%-12s %14s %14s %12s %14s", "kind", "executions", "bytes", "bytes/exec",
+                "steady b/exec"));
+        for (Map.Entry<String, long[]> entry : kinds.entrySet()) {
+            long[] kind = entry.getValue();
+            out.println(String.format("%-12s %14d %14d %12.1f %14.2f", entry.getKey(), kind[0], kind[1],
+                    (double) kind[1] / kind[0], kind[2] == 0 ? 0.0 : (double) kind[3] / kind[2]));
+        }
+
+        List<Integer> lines = new ArrayList<>();
+        for (int slot = 0; slot < gotoSlot; slot++) {
+            if (steadyBytes[slot] > 0) lines.add(slot);
+        }
+        lines.sort((a, b) -> Long.compare(steadyBytes[b], steadyBytes[a]));
+        if (!lines.isEmpty()) {
+            out.println("\nSteady-state allocation by statement:");
+            for (int slot : lines) {
+                out.println(String.format("%14d bytes  %s", steadyBytes[slot], name(slot)));
+            }
+        }
+    }
+
+    // Values a statement may box per execution: results of operators and vector elements read
+    private static long boxes(Stmt stmt) {
+        long boxes = 0;
+        if (stmt instanceof Stmt.Expression) {
+            boxes += boxes(((Stmt.Expression) stmt).expr);
+        } else if (stmt instanceof Stmt.Write) {
+            for (Object arg : ((Stmt.Write) stmt).arguments) {
+                if (arg instanceof Expr) boxes += boxes((Expr) arg);
+            }
+        } else if (stmt instanceof Stmt.Var) {
+            boxes += boxes(((Stmt.Var) stmt).initializer) + boxes(((Stmt.Var) stmt).size);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            boxes += boxes(ifStmt.condition) + nested(ifStmt.thenBranch) + nested(ifStmt.elseBranch);
+        } else if (stmt instanceof Stmt.Label) {
+            boxes += nested(((Stmt.Label) stmt).body);
+        }
+        return boxes;
+    }
+
+    // Blocks are entered as frames of their own, with their statements counted apart
+    private static long nested(Stmt stmt) {
+        return stmt == null || stmt instanceof Stmt.Block ? 0 : boxes(stmt);
+    }
+
+    private static long boxes(Expr expr) {
+        if (expr == null) return 0;
+        if (expr instanceof Expr.Assign) return boxes(((Expr.Assign) expr).index) + boxes(((Expr.Assign) expr).value);
+        if (expr instanceof Expr.Binary) return 1 + boxes(((Expr.Binary) expr).left) + boxes(((Expr.Binary) expr).right);
+        if (expr instanceof Expr.Unary) return 1 + boxes(((Expr.Unary) expr).right);
+        if (expr instanceof Expr.Grouping) return boxes(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Variable) {
+            Expr index = ((Expr.Variable) expr).index;
+            return index == null ? 0 : 1 + boxes(index);
+        }
+        if (expr instanceof Expr.Invariant) return boxes(((Expr.Invariant) expr).expr);
+        if (expr instanceof Expr.Step) return boxes(((Expr.Step) expr).original);
+        if (expr instanceof Expr.Compare) return boxes(((Expr.Compare) expr).original);
+        return 0;
+    }
+
+    private String kind(int slot) {
+        if (slot == gotoSlot) return "goto jump";
+        if (slot == loopSlot) return "run loop";
+        return Profiler.kind(program.statements.get(slot));
+    }
+
+    private String name(int slot) {
+        if (slot >= gotoSlot) return kind(slot);
+        Stmt stmt = program.statements.get(slot);
+        return kind(slot) + " at line " + stmt.line;
+    }
+}
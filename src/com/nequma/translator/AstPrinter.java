@@ -1,64 +1,119 @@
 package com.nequma.translator;
 
-class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+class AstPrinter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final boolean compact;
+    private Appendable out;
+    private int depth;
+
+    AstPrinter() {
+        this(false);
+    }
+
+    /** A compact printer puts every statement on a single line, for tools rather than people. */
+    AstPrinter(boolean compact) {
+        this.compact = compact;
+    }
+
     String print(Expr expr) {
-        return expr.accept(this);
+        StringBuilder builder = new StringBuilder();
+        print(expr, builder);
+        return builder.toString();
     }
 
     String print(Stmt stmt) {
-        return stmt.accept(this);
+        StringBuilder builder = new StringBuilder();
+        print(stmt, builder);
+        return builder.toString();
+    }
+
+    /** Writes the tree straight into the target; I/O failures surface as UncheckedIOException. */
+    void print(Expr expr, Appendable out) {
+        this.out = out;
+        this.depth = 0;
+        expr.accept(this);
+    }
+
+    void print(Stmt stmt, Appendable out) {
+        this.out = out;
+        this.depth = 0;
+        stmt.accept(this);
     }
 
     @Override
-    public String visitAssignExpr(Expr.Assign expr) {
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.index != null) {
+            return parenthesize("=", new Expr.Variable(expr.name, expr.index), expr.value);
+        }
         return parenthesize("= " + expr.name.lexeme, expr.value);
     }
 
     @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
+    public Void visitBinaryExpr(Expr.Binary expr) {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
     @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
+    public Void visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("group", expr.expr);
     }
 
     @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) return "nil";
-        return expr.value.toString();
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return append("nil");
+        return append(expr.value.toString());
     }
 
     @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
+    public Void visitUnaryExpr(Expr.Unary expr) {
         return parenthesize(expr.operator.lexeme, expr.right);
     }
 
     @Override
-    public String visitVariableExpr(Expr.Variable expr) {
-        return expr.name.lexeme;
+    public Void visitVariableExpr(Expr.Variable expr) {
+        append(expr.name.lexeme);
+        if (expr.index == null) return null;
+        append("[");
+        expr.index.accept(this);
+        return append("]");
     }
 
     @Override
-    public String visitBlockStmt(Stmt.Block stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(block");
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        return parenthesize("invariant", expr.expr);
+    }
+
+    @Override
+    public Void visitStepExpr(Expr.Step expr) {
+        return append("(step " + expr.name.lexeme + " " + expr.delta + ")");
+    }
+
+    @Override
+    public Void visitCompareExpr(Expr.Compare expr) {
+        return parenthesize("int" + expr.operator.lexeme + " " + expr.name.lexeme, expr.bound);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        append("(block");
+        depth++;
         for (Stmt s : stmt.stmts) {
-            builder.append("\n  ");
-            builder.append(s.accept(this).replace("\n", "\n  "));
+            newline();
+            s.accept(this);
         }
-        builder.append(")");
-        return builder.toString();
+        depth--;
+        return append(")");
     }
 
     @Override
-    public String visitExpressionStmt(Stmt.Expression stmt) {
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
         return parenthesize("expr", stmt.expr);
     }
 
     @Override
-    public String visitIfStmt(Stmt.If stmt) {
+    public Void visitIfStmt(Stmt.If stmt) {
         if (stmt.elseBranch == null) {
             return parenthesize("if", stmt.condition, stmt.thenBranch);
         }
@@ -66,35 +121,17 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     }
 
     @Override
-    public String visitWriteStmt(Stmt.Write stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(write");
-        for (Object arg : stmt.arguments) {
-            builder.append(" ");
-            if (arg instanceof Expr) {
-                builder.append(((Expr) arg).accept(this));
-            } else {
-                builder.append(arg.toString());
-            }
-        }
-        builder.append(")");
-        return builder.toString();
+    public Void visitWriteStmt(Stmt.Write stmt) {
+        return parenthesize("write", stmt.arguments.toArray());
     }
 
     @Override
-    public String visitReadStmt(Stmt.Read stmt) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(read");
-        for (Expr var : stmt.variables) {
-            builder.append(" ");
-            builder.append(var.accept(this));
-        }
-        builder.append(")");
-        return builder.toString();
+    public Void visitReadStmt(Stmt.Read stmt) {
+        return parenthesize("read", stmt.variables.toArray());
     }
 
     @Override
-    public String visitVarStmt(Stmt.Var stmt) {
+    public Void visitVarStmt(Stmt.Var stmt) {
         if (stmt.initializer == null) {
             return parenthesize("var", stmt.name.lexeme + ":" + stmt.type);
         }
@@ -102,65 +139,68 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     }
 
     @Override
-    public String visitLoopStmt(Stmt.Loop stmt) {
+    public Void visitLoopStmt(Stmt.Loop stmt) {
         // Тело цикла представлено как блок
         return parenthesize("loop", stmt.body);
     }
 
     @Override
-    public String visitGotoStmt(Stmt.Goto stmt) {
+    public Void visitWhileStmt(Stmt.While stmt) {
+        String name = (stmt.testFirst ? "" : "do-") + (stmt.until ? "until" : "while");
+        return parenthesize(name, stmt.condition, stmt.body);
+    }
+
+    @Override
+    public Void visitGotoStmt(Stmt.Goto stmt) {
         return parenthesize("goto", stmt.label.lexeme);
     }
 
     @Override
-    public String visitLabelStmt(Stmt.Label stmt) {
+    public Void visitLabelStmt(Stmt.Label stmt) {
         if (stmt.body != null) {
-            return "(label " + stmt.name.lexeme + " " + stmt.body.accept(this) + ")";
+            return parenthesize("label " + stmt.name.lexeme, stmt.body);
         }
-        return "(label " + stmt.name.lexeme + ")";
+        return append("(label " + stmt.name.lexeme + ")");
     }
 
     @Override
-    public String visitEmptyStmt(Stmt.Empty stmt) {
-        return "(empty)";
+    public Void visitEmptyStmt(Stmt.Empty stmt) {
+        return append("(empty)");
     }
 
-    private String parenthesize(String name, Expr... exprs) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(").append(name);
-        for (Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
+    private Void parenthesize(String name, Object... parts) {
+        append("(");
+        append(name);
+        for (Object part : parts) {
+            append(" ");
+            if (part instanceof Expr) {
+                ((Expr) part).accept(this);
+            } else if (part instanceof Stmt) {
+                ((Stmt) part).accept(this);
+            } else {
+                append(part.toString());
+            }
         }
-        builder.append(")");
-        return builder.toString();
+        return append(")");
     }
 
-    private String parenthesize(String name, String... strings) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(").append(name);
-        for (String s : strings) {
-            builder.append(" ");
-            builder.append(s);
+    private void newline() {
+        if (compact) {
+            append(" ");
+            return;
+        }
+        append("\n");
+        for (int i = 0; i < depth; i++) {
+            append("  ");
         }
-        builder.append(")");
-        return builder.toString();
     }
 
-    private String parenthesize(String name, Object... parts) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("(").append(name);
-        for (Object part : parts) {
-            builder.append(" ");
-            if (part instanceof Expr) {
-                builder.append(((Expr) part).accept(this));
-            } else if (part instanceof Stmt) {
-                builder.append(((Stmt) part).accept(this));
-            } else {
-                builder.append(part.toString());
-            }
+    private Void append(String text) {
+        try {
+            out.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        builder.append(")");
-        return builder.toString();
+        return null;
     }
-}
\ No newline at end of file
+}
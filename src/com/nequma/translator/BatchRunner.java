@@ -0,0 +1,126 @@
+package com.nequma.translator;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs one compiled program against many independent input sets.
+ * The program is shared between all runs; every run gets its own interpreter,
+ * variable store and input/output buffers. Results come back in input order.
+ */
+final class BatchRunner {
+    static final class Result {
+        final String output;
+        final RuntimeError error;
+
+        Result(String output, RuntimeError error) {
+            this.output = output;
+            this.error = error;
+        }
+    }
+
+    // Below this many input sets a task runs them itself instead of splitting further
+    private static final int SEQUENTIAL_THRESHOLD = 4;
+
+    private final Program program;
+    private final ForkJoinPool pool;
+    private final ExecutionLimits limits;
+    private final Cancellation cancellation = new Cancellation();
+
+    BatchRunner(Program program) {
+        this(program, null);
+    }
+
+    /** Every run gets the whole of the limits to itself. */
+    BatchRunner(Program program, ExecutionLimits limits) {
+        this(program, limits, ForkJoinPool.commonPool());
+    }
+
+    BatchRunner(Program program, ExecutionLimits limits, ForkJoinPool pool) {
+        this.program = program;
+        this.limits = limits;
+        this.pool = pool;
+    }
+
+    /** Stops the runs in progress; the ones not started yet end before their first safepoint. */
+    void cancel() {
+        cancellation.cancel();
+    }
+
+    List<Result> run(List<String> inputSets) {
+        Result[] results = new Result[inputSets.size()];
+        pool.invoke(new RunTask(inputSets, results, 0, inputSets.size()));
+        return Arrays.asList(results);
+    }
+
+    Result runOne(String input) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, false);
+        Interpreter interpreter = new Interpreter(new BufferedReader(new StringReader(input)), out, false);
+        interpreter.setLimits(limits);
+        interpreter.setBufferedOutput(true);
+        interpreter.setCancellation(cancellation);
+        RuntimeError error = interpreter.run(program);
+        out.flush();
+        return new Result(buffer.toString(Charset.defaultCharset()), error);
+    }
+
+    /**
+     * Splits a line of whitespace-separated values into one input line per value,
+     * the way {@code read} consumes them.
+     */
+    static String inputSet(String line) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : line.trim().split("\\s+")) {
+            if (value.isEmpty()) continue;
+            builder.append(value).append('\n');
+        }
+        return builder.toString();
+    }
+
+    static List<String> inputSets(List<String> lines) {
+        List<String> sets = new ArrayList<>();
+        for (String line : lines) {
+            if (line.isBlank()) continue;
+            sets.add(inputSet(line));
+        }
+        return sets;
+    }
+
+    // Tasks only live inside the pool and are never serialized
+    @SuppressWarnings("serial")
+    private final class RunTask extends RecursiveAction {
+        private final List<String> inputSets;
+        private final Result[] results;
+        private final int from;
+        private final int to;
+
+        RunTask(List<String> inputSets, Result[] results, int from, int to) {
+            this.inputSets = inputSets;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results[i] = runOne(inputSets.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RunTask(inputSets, results, from, middle),
+                    new RunTask(inputSets, results, middle, to));
+        }
+    }
+}
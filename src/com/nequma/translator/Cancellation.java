@@ -0,0 +1,14 @@
+package com.nequma.translator;
+
+/** Handle for stopping runs from another thread; checked at the same safepoints as the limits. */
+final class Cancellation {
+    private volatile boolean cancelled = false;
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,292 @@
+package com.nequma.translator;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static semantic checks between parsing and execution, on the program's {@link Ir}:
+ * variables declared before use, numeric operands, integer operands of mod and
+ * labels that exist.
+ *
+ * Each check has three outcomes. A check that always fails where it is reached
+ * is reported as an error and the program does not run. A check that cannot
+ * fail marks its node {@link Expr#proven}, and the interpreter skips it. Any
+ * other check stays with the interpreter: values that come from read statements
+ * are integers, reals or text depending on the input, so no program that
+ * computes with its input could pass otherwise.
+ *
+ * Types are sets of what a value may be at run time, computed over every path
+ * of the graph to a fixpoint; code no path reaches is not checked.
+ */
+final class Checker {
+    private static final int INT = 1;
+    private static final int REAL = 2;
+    private static final int BOOL = 4;
+    private static final int TEXT = 8;
+    private static final int INT_VECTOR = 16;
+    private static final int REAL_VECTOR = 32;
+    private static final int NUMBER = INT | REAL;
+
+    private final Ir ir;
+    private final Map<Ir.Value, Integer> types = new HashMap<>();
+    // Values some path leaves undeclared, and those every path does
+    private final Set<Ir.Value> maybeUndefined = new HashSet<>();
+    private final Set<Ir.Value> undefined = new HashSet<>();
+    // Reported in source order once every check has run
+    private final List<Map.Entry<Token, String>> errors = new ArrayList<>();
+
+    private Checker(List<Stmt> stmts) {
+        this.ir = Ir.build(stmts);
+    }
+
+    /** Reports what is wrong with the program and returns false when it must not run. */
+    static boolean check(List<Stmt> stmts) {
+        Checker checker = new Checker(stmts);
+        checker.labels(stmts);
+        checker.infer();
+        checker.declarations();
+        checker.verify();
+        checker.errors.sort(Comparator.comparingInt(error -> error.getKey().line));
+        for (Map.Entry<Token, String> error : checker.errors) {
+            Translator.error(error.getKey(), error.getValue());
+        }
+        return checker.errors.isEmpty();
+    }
+
+    private void error(Token token, String message) {
+        errors.add(new AbstractMap.SimpleImmutableEntry<>(token, message));
+    }
+
+    // Every goto, reachable or not, has to have a label to go to
+    private void labels(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            labels(stmt);
+        }
+    }
+
+    private void labels(Stmt stmt) {
+        if (stmt instanceof Stmt.Goto) {
+            Token label = ((Stmt.Goto) stmt).label;
+            if (!ir.declares(label.lexeme)) error(label, "Undefined label: " + label.lexeme);
+        }
+        for (Stmt child : LoopRecovery.children(stmt)) {
+            labels(child);
+        }
+    }
+
+    // --- Types ---
+
+    private void infer() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Ir.Block block : ir.order) {
+                for (Ir.Phi phi : block.phis.values()) {
+                    int type = 0;
+                    for (Ir.Value operand : phi.operands) {
+                        if (operand != null) type |= type(operand);
+                    }
+                    changed |= widen(phi.value, type);
+                }
+                for (Ir.Instr instr : block.instrs) {
+                    switch (instr.kind) {
+                        case DEF: {
+                            Expr value = instr.value();
+                            changed |= widen(instr.defs.get(0), value != null ? type(value)
+                                    : "real".equals(((Stmt.Var) instr.stmt).type) ? REAL : INT);
+                            break;
+                        }
+                        case VECTOR:
+                            changed |= widen(instr.defs.get(0),
+                                    "real".equals(((Stmt.Var) instr.stmt).type) ? REAL_VECTOR : INT_VECTOR);
+                            break;
+                        case READ: {
+                            // A vector stays the vector with its elements read; anything
+                            // else becomes whatever the input line parses as
+                            int at = 0;
+                            for (Expr target : ((Stmt.Read) instr.stmt).variables) {
+                                if (((Expr.Variable) target).index != null) continue;
+                                int prior = type(ir.reads.get(target));
+                                int type = prior & (INT_VECTOR | REAL_VECTOR);
+                                if ((prior & ~(INT_VECTOR | REAL_VECTOR)) != 0) type |= INT | REAL | TEXT;
+                                changed |= widen(instr.defs.get(at++), type);
+                            }
+                            break;
+                        }
+                        default:
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean widen(Ir.Value value, int type) {
+        int old = type(value);
+        if ((old | type) == old) return false;
+        types.put(value, old | type);
+        return true;
+    }
+
+    private int type(Ir.Value value) {
+        return types.getOrDefault(value, 0);
+    }
+
+    // What the expression may evaluate to; 0 when it never gets a value
+    private int type(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof Integer) return INT;
+            if (value instanceof Double) return REAL;
+            return value instanceof Boolean ? BOOL : TEXT;
+        }
+        if (expr instanceof Expr.Variable) {
+            int type = type(ir.reads.get(expr));
+            if (((Expr.Variable) expr).index == null) return type;
+            return ((type & INT_VECTOR) != 0 ? INT : 0) | ((type & REAL_VECTOR) != 0 ? REAL : 0);
+        }
+        if (expr instanceof Expr.Grouping) return type(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) return type(((Expr.Unary) expr).right) & NUMBER;
+        if (expr instanceof Expr.Assign) return type(((Expr.Assign) expr).value);
+        Expr.Binary binary = (Expr.Binary) expr;
+        int left = type(binary.left);
+        int right = type(binary.right);
+        switch (binary.operator.type) {
+            case PLUS: case MIN: case MULT: case DIV: {
+                int type = 0;
+                if ((left & INT) != 0 && (right & INT) != 0) type |= INT;
+                if ((left & REAL) != 0 && (right & NUMBER) != 0 || (right & REAL) != 0 && (left & NUMBER) != 0) {
+                    type |= REAL;
+                }
+                return type;
+            }
+            case MOD:
+                return (left & INT) != 0 && (right & INT) != 0 ? INT : 0;
+            default:
+                return left != 0 && right != 0 ? BOOL : 0;
+        }
+    }
+
+    // --- Declarations ---
+
+    // Version 0 is the variable before anything declared it; a phi is undefined on
+    // some path when one of its operands is, and on every path when all are
+    private void declarations() {
+        for (List<Ir.Value> versions : ir.versions()) {
+            maybeUndefined.add(versions.get(0));
+            undefined.add(versions.get(0));
+            for (Ir.Value value : versions) {
+                if (value.phi != null) undefined.add(value);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Ir.Block block : ir.order) {
+                for (Ir.Phi phi : block.phis.values()) {
+                    boolean some = false;
+                    boolean all = true;
+                    for (Ir.Value operand : phi.operands) {
+                        if (operand == null) continue;
+                        some |= maybeUndefined.contains(operand);
+                        all &= undefined.contains(operand);
+                    }
+                    if (some && maybeUndefined.add(phi.value)) changed = true;
+                    if (!all && undefined.remove(phi.value)) changed = true;
+                }
+            }
+        }
+    }
+
+    // --- Checks ---
+
+    private void verify() {
+        for (Ir.Block block : ir.order) {
+            for (Ir.Instr instr : block.instrs) {
+                if (instr.kind == Ir.Kind.DEF && instr.stmt instanceof Stmt.Expression
+                        || instr.kind == Ir.Kind.STORE) {
+                    Expr.Assign assign = (Expr.Assign) ((Stmt.Expression) instr.stmt).expr;
+                    declared(assign, assign.name, instr.prior, instr.kind == Ir.Kind.DEF);
+                } else if (instr.kind == Ir.Kind.READ) {
+                    for (Expr target : ((Stmt.Read) instr.stmt).variables) {
+                        Expr.Variable variable = (Expr.Variable) target;
+                        if (variable.index == null) declared(variable, variable.name, ir.reads.get(variable), true);
+                    }
+                }
+                for (Expr expr : instr.exprs) {
+                    verify(expr);
+                }
+            }
+            if (block.condition != null) verify(block.condition);
+        }
+    }
+
+    private void declared(Expr expr, Token name, Ir.Value value, boolean assigned) {
+        if (undefined.contains(value)) {
+            error(name, "Undefined variable '" + name.lexeme + "'."
+                    + (assigned ? " Variable must be declared before use." : ""));
+        } else if (!maybeUndefined.contains(value)) {
+            expr.proven = true;
+        }
+    }
+
+    private void verify(Expr expr) {
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            declared(variable, variable.name, ir.reads.get(variable), false);
+            if (variable.index != null) verify(variable.index);
+        } else if (expr instanceof Expr.Assign) {
+            if (((Expr.Assign) expr).index != null) verify(((Expr.Assign) expr).index);
+            verify(((Expr.Assign) expr).value);
+        } else if (expr instanceof Expr.Grouping) {
+            verify(((Expr.Grouping) expr).expr);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            verify(unary.right);
+            int right = type(unary.right);
+            if (right != 0 && (right & NUMBER) == 0) {
+                error(unary.operator, "Operand must be a number.");
+            } else if ((right & ~NUMBER) == 0) {
+                unary.proven = true;
+            }
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            verify(binary.left);
+            verify(binary.right);
+            operands(binary, type(binary.left), type(binary.right));
+        }
+    }
+
+    private void operands(Expr.Binary binary, int left, int right) {
+        switch (binary.operator.type) {
+            case EQ: case NE:
+                return;
+            case MOD:
+                if (never(left, NUMBER) || never(right, NUMBER)) {
+                    error(binary.operator, "Operands must be numbers.");
+                } else if (never(left, INT) || never(right, INT)) {
+                    error(binary.operator, "Modulo requires integer operands.");
+                } else if ((left & ~INT) == 0 && (right & ~INT) == 0) {
+                    binary.proven = true;
+                }
+                return;
+            default:
+                if (never(left, NUMBER) || never(right, NUMBER)) {
+                    error(binary.operator, "Operands must be numbers.");
+                } else if ((left & ~NUMBER) == 0 && (right & ~NUMBER) == 0) {
+                    binary.proven = true;
+                }
+        }
+    }
+
+    // The operand gets values, and none of them is of the kind needed
+    private static boolean never(int type, int needed) {
+        return type != 0 && (type & needed) == 0;
+    }
+}
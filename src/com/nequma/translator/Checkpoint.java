@@ -0,0 +1,206 @@
+package com.nequma.translator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot of a running program: its variables, where it stands in the frame
+ * stack and how many input lines it has read. A run resumed from a checkpoint
+ * carries on from that statement; the input has to be given again, and the
+ * lines the first run already read are skipped.
+ *
+ * Frames are saved by the id of the statement that owns their statement list,
+ * and the program's fingerprint is saved with them, so a checkpoint is only
+ * ever resumed against the program it was taken from.
+ */
+final class Checkpoint {
+    private static final int MAGIC = 0x4E514350; // "NQCP"
+    private static final int VERSION = 1;
+    // Owner id of the program's own statement list
+    private static final int ROOT = -1;
+
+    static final class FrameState {
+        final int owner;
+        final int index;
+        final boolean isLoop;
+
+        FrameState(int owner, int index, boolean isLoop) {
+            this.owner = owner;
+            this.index = index;
+            this.isLoop = isLoop;
+        }
+    }
+
+    final long fingerprint;
+    final List<FrameState> frames;
+    final Map<String, Object> variables;
+    final long inputLines;
+
+    Checkpoint(long fingerprint, List<FrameState> frames, Map<String, Object> variables, long inputLines) {
+        this.fingerprint = fingerprint;
+        this.frames = frames;
+        this.variables = variables;
+        this.inputLines = inputLines;
+    }
+
+    /** Identifies a program by its statements, as the compact parser dump prints them. */
+    static long fingerprint(Program program) {
+        CRC32 crc = new CRC32();
+        AstPrinter printer = new AstPrinter(true);
+        for (Stmt stmt : program.stmts) {
+            crc.update(printer.print(stmt).getBytes(StandardCharsets.UTF_8));
+            crc.update('\n');
+        }
+        return crc.getValue() ^ (long) program.statements.size() << 32;
+    }
+
+    static List<FrameState> frames(Program program, List<Interpreter.Frame> stack) {
+        Map<List<Stmt>, Integer> owners = new IdentityHashMap<>();
+        owners.put(program.stmts, ROOT);
+        for (Stmt stmt : program.statements) {
+            if (stmt instanceof Stmt.Block) owners.put(((Stmt.Block) stmt).stmts, stmt.id);
+        }
+        List<FrameState> frames = new ArrayList<>();
+        for (Interpreter.Frame frame : stack) {
+            frames.add(new FrameState(owners.get(frame.stmts), frame.index, frame.isLoop));
+        }
+        return frames;
+    }
+
+    /** The statement list a saved frame runs through; loop bodies are blocks too. */
+    static List<Stmt> stmts(Program program, FrameState frame) {
+        if (frame.owner == ROOT) return program.stmts;
+        return ((Stmt.Block) program.statements.get(frame.owner)).stmts;
+    }
+
+    /** The recovered loop a saved frame is the body of, or null; see {@link Program}'s numbering. */
+    static Stmt.While loop(Program program, FrameState frame) {
+        if (frame.owner <= 0) return null;
+        Stmt before = program.statements.get(frame.owner - 1);
+        if (before instanceof Stmt.While && ((Stmt.While) before).body.id == frame.owner) {
+            return (Stmt.While) before;
+        }
+        return null;
+    }
+
+    /** Writes the checkpoint next to the target and moves it into place, so a crash never leaves half of one. */
+    void write(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeLong(inputLines);
+            out.writeInt(frames.size());
+            for (FrameState frame : frames) {
+                out.writeInt(frame.owner);
+                out.writeInt(frame.index);
+                out.writeBoolean(frame.isLoop);
+            }
+            out.writeInt(variables.size());
+            for (Map.Entry<String, Object> variable : variables.entrySet()) {
+                writeString(out, variable.getKey());
+                writeValue(out, variable.getValue());
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static Checkpoint read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a checkpoint.");
+            }
+            long fingerprint = in.readLong();
+            long inputLines = in.readLong();
+            int frameCount = in.readInt();
+            List<FrameState> frames = new ArrayList<>(frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                frames.add(new FrameState(in.readInt(), in.readInt(), in.readBoolean()));
+            }
+            int variableCount = in.readInt();
+            Map<String, Object> variables = new LinkedHashMap<>();
+            for (int i = 0; i < variableCount; i++) {
+                variables.put(readString(in), readValue(in));
+            }
+            return new Checkpoint(fingerprint, frames, variables, inputLines);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((int) value);
+        } else if (value instanceof Double) {
+            out.writeByte('D');
+            out.writeDouble((double) value);
+        } else if (value instanceof Vector) {
+            Vector vector = (Vector) value;
+            out.writeByte('V');
+            out.writeBoolean(vector.real);
+            out.writeInt(vector.length);
+            for (int i = 0; i < vector.length; i++) {
+                if (vector.real) {
+                    out.writeDouble((double) vector.get(i));
+                } else {
+                    out.writeInt((int) vector.get(i));
+                }
+            }
+        } else if (value == null) {
+            out.writeByte('N');
+        } else {
+            out.writeByte('S');
+            writeString(out, value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case 'I':
+                return in.readInt();
+            case 'D':
+                return in.readDouble();
+            case 'V': {
+                boolean real = in.readBoolean();
+                Vector vector = new Vector(real, in.readInt());
+                for (int i = 0; i < vector.length; i++) {
+                    vector.set(i, real ? (Object) in.readDouble() : (Object) in.readInt());
+                }
+                return vector;
+            }
+            case 'N':
+                return null;
+            case 'S':
+                return readString(in);
+            default:
+                throw new IOException("Unknown value tag " + tag + " in checkpoint.");
+        }
+    }
+
+    // writeUTF stops at 64 KB, and a string read from the input may be longer
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,11 @@
+package com.nequma.translator;
+
+/**
+ * An expression compiled by {@link ClosureCompiler}: operator, operands and
+ * variable slots are bound when the program is compiled, so evaluating it does
+ * no dispatch on the tree. Closures hold no state of a run and may be shared by
+ * interpreters running the same program.
+ */
+interface Closure {
+    Object evaluate(Interpreter interpreter);
+}
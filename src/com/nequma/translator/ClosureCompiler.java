@@ -0,0 +1,486 @@
+package com.nequma.translator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the expressions of a program to {@link Closure}s, leaving each one on
+ * {@link Expr#closure} where the interpreter picks it up instead of visiting the
+ * node. Variables are resolved to the program's slots, and the operator of a
+ * binary expression is chosen here rather than on every evaluation.
+ *
+ * Integer operands, which loop counters and indices nearly always are, take a
+ * path of their own; anything else goes through the interpreter's rules, so
+ * results and errors are those of walking the tree. A comparison or sum of a
+ * variable and an integer constant, the usual loop test and step, reads the
+ * slot itself.
+ *
+ * Statements are not compiled: the interpreter's frames stay as they are for
+ * goto, checkpoints and listeners.
+ *
+ * A speculative compilation, which {@link Tiering} asks for, assumes integers
+ * where it has a path for them and throws its deoptimization for anything else.
+ */
+final class ClosureCompiler {
+    private final Map<String, Integer> slots;
+    // Null where closures are not left on the tree
+    private final List<Expr> compiled;
+    // Null unless the compilation is speculative
+    private final Tiering.Deoptimization miss;
+
+    private ClosureCompiler(Map<String, Integer> slots, List<Expr> compiled, Tiering.Deoptimization miss) {
+        this.slots = slots;
+        this.compiled = compiled;
+        this.miss = miss;
+    }
+
+    /** Compiles the expressions of the program's statements from the given id on. */
+    static void compile(Program program, int from) {
+        compile(program, from, program.statements.size(), null);
+    }
+
+    /**
+     * Compiles the expressions of the statements with ids in [first, end) and
+     * returns them. The closures throw the deoptimization, when there is one,
+     * wherever operands are not integers.
+     */
+    static List<Expr> compile(Program program, int first, int end, Tiering.Deoptimization miss) {
+        ClosureCompiler compiler = new ClosureCompiler(program.variables, new ArrayList<>(), miss);
+        for (int id = first; id < end; id++) {
+            compiler.compile(program.statements.get(id));
+        }
+        return compiler.compiled;
+    }
+
+    /** Numbers the slots of every variable the program names, leaving the tree as it is. */
+    static void resolve(Program program) {
+        ClosureCompiler compiler = new ClosureCompiler(program.variables, null, null);
+        for (Stmt stmt : program.statements) {
+            compiler.compile(stmt);
+        }
+    }
+
+    // Nested statements are in the program's list of their own
+    private void compile(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            compile(((Stmt.Expression) stmt).expr);
+        } else if (stmt instanceof Stmt.Write) {
+            for (Object arg : ((Stmt.Write) stmt).arguments) {
+                if (arg instanceof Expr) compile((Expr) arg);
+            }
+        } else if (stmt instanceof Stmt.Read) {
+            for (Expr variable : ((Stmt.Read) stmt).variables) {
+                compile(variable);
+            }
+        } else if (stmt instanceof Stmt.Var) {
+            compile(((Stmt.Var) stmt).initializer);
+            compile(((Stmt.Var) stmt).size);
+        } else if (stmt instanceof Stmt.If) {
+            compile(((Stmt.If) stmt).condition);
+        } else if (stmt instanceof Stmt.While) {
+            compile(((Stmt.While) stmt).condition);
+        }
+    }
+
+    private Closure compile(Expr expr) {
+        if (expr == null) return null;
+        Closure closure = closureOf(expr);
+        if (compiled != null) {
+            expr.closure = closure;
+            compiled.add(expr);
+        }
+        return closure;
+    }
+
+    private int slot(Token name) {
+        Integer slot = slots.get(name.lexeme);
+        if (slot == null) {
+            // Never declared: the slot stays empty and reading it fails as it would by name
+            slot = slots.size();
+            slots.put(name.lexeme, slot);
+        }
+        return slot;
+    }
+
+    private Closure closureOf(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            return in -> value;
+        }
+        if (expr instanceof Expr.Variable) return variable((Expr.Variable) expr);
+        if (expr instanceof Expr.Assign) return assign((Expr.Assign) expr);
+        if (expr instanceof Expr.Grouping) return compile(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) return unary((Expr.Unary) expr);
+        if (expr instanceof Expr.Binary) return binary((Expr.Binary) expr);
+        if (expr instanceof Expr.Invariant) {
+            Expr.Invariant invariant = (Expr.Invariant) expr;
+            compile(invariant.expr);
+            return in -> in.visitInvariantExpr(invariant);
+        }
+        if (expr instanceof Expr.Step) return step((Expr.Step) expr);
+        return compare((Expr.Compare) expr);
+    }
+
+    // The interpreter's rules for operands the fast path does not take
+    private static Object generic(Tiering.Deoptimization miss, Expr.Binary expr, Object l, Object r) {
+        if (miss != null) throw miss;
+        return Interpreter.binary(expr, l, r);
+    }
+
+    private static Object generic(Tiering.Deoptimization miss, Closure original, Interpreter in) {
+        if (miss != null) throw miss;
+        return original.evaluate(in);
+    }
+
+    private static Object read(Interpreter in, int slot, Token name, boolean proven) {
+        return proven ? in.environment().getDeclared(slot) : in.environment().get(slot, name);
+    }
+
+    private Closure variable(Expr.Variable expr) {
+        Token name = expr.name;
+        int slot = slot(name);
+        if (expr.index == null) {
+            if (expr.proven) return in -> in.environment().getDeclared(slot);
+            return in -> in.environment().get(slot, name);
+        }
+        boolean proven = expr.proven;
+        Closure index = compile(expr.index);
+        return in -> {
+            Vector vector = Interpreter.vector(name, read(in, slot, name, proven));
+            return vector.get(Interpreter.element(name, vector, index.evaluate(in)));
+        };
+    }
+
+    private Closure assign(Expr.Assign expr) {
+        Token name = expr.name;
+        int slot = slot(name);
+        boolean proven = expr.proven;
+        Closure value = compile(expr.value);
+        if (expr.index != null) {
+            Closure index = compile(expr.index);
+            return in -> {
+                Vector vector = Interpreter.vector(name, read(in, slot, name, proven));
+                int element = Interpreter.element(name, vector, index.evaluate(in));
+                Object result = value.evaluate(in);
+                Interpreter.store(name, vector, element, result);
+                return result;
+            };
+        }
+        if (proven) {
+            return in -> {
+                Object result = value.evaluate(in);
+                in.environment().assignDeclared(slot, result);
+                return result;
+            };
+        }
+        return in -> {
+            Object result = value.evaluate(in);
+            in.environment().assign(slot, name, result);
+            return result;
+        };
+    }
+
+    private Closure unary(Expr.Unary expr) {
+        Tiering.Deoptimization miss = this.miss;
+        Closure right = compile(expr.right);
+        if (expr.operator.type != TokenType.MIN) return in -> Interpreter.unary(expr, right.evaluate(in));
+        return in -> {
+            Object value = right.evaluate(in);
+            if (value instanceof Integer) return -(int) value;
+            if (miss != null) throw miss;
+            return Interpreter.unary(expr, value);
+        };
+    }
+
+    private Closure binary(Expr.Binary expr) {
+        Closure left = compile(expr.left);
+        Closure right = compile(expr.right);
+        Object constant = expr.right instanceof Expr.Literal ? ((Expr.Literal) expr.right).value : null;
+        if (constant instanceof Integer) {
+            int c = (int) constant;
+            Closure closure = expr.left instanceof Expr.Variable && ((Expr.Variable) expr.left).index == null
+                    ? withSlot(expr, (Expr.Variable) expr.left, left, c, constant)
+                    : withConstant(expr, left, c, constant, miss);
+            if (closure != null) return closure;
+        }
+        return withOperands(expr, left, right, miss);
+    }
+
+    private static Closure withOperands(Expr.Binary expr, Closure left, Closure right,
+                                        Tiering.Deoptimization miss) {
+        switch (expr.operator.type) {
+            case PLUS:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer) return (int) l + (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case MIN:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer) return (int) l - (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case MULT:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer) return (int) l * (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case DIV:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer && (int) r != 0) return (int) l / (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case MOD:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer) return (int) l % (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case LT:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer) return (int) l < (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case GT:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer) return (int) l > (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case LE:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer) return (int) l <= (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case GE:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    Object r = right.evaluate(in);
+                    if (l instanceof Integer && r instanceof Integer) return (int) l >= (int) r;
+                    return generic(miss, expr, l, r);
+                };
+            case EQ:
+                return in -> Interpreter.isEqual(left.evaluate(in), right.evaluate(in));
+            case NE:
+                return in -> !Interpreter.isEqual(left.evaluate(in), right.evaluate(in));
+            default:
+                return in -> Interpreter.binary(expr, left.evaluate(in), right.evaluate(in));
+        }
+    }
+
+    // An integer constant on the right; null where the general form does as well
+    private static Closure withConstant(Expr.Binary expr, Closure left, int c, Object constant,
+                                        Tiering.Deoptimization miss) {
+        switch (expr.operator.type) {
+            case PLUS:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l + c;
+                    return generic(miss, expr, l, constant);
+                };
+            case MIN:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l - c;
+                    return generic(miss, expr, l, constant);
+                };
+            case MULT:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l * c;
+                    return generic(miss, expr, l, constant);
+                };
+            case DIV:
+                if (c == 0) return null;
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l / c;
+                    return generic(miss, expr, l, constant);
+                };
+            case MOD:
+                if (c == 0) return null;
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l % c;
+                    return generic(miss, expr, l, constant);
+                };
+            case LT:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l < c;
+                    return generic(miss, expr, l, constant);
+                };
+            case GT:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l > c;
+                    return generic(miss, expr, l, constant);
+                };
+            case LE:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l <= c;
+                    return generic(miss, expr, l, constant);
+                };
+            case GE:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l >= c;
+                    return generic(miss, expr, l, constant);
+                };
+            case EQ:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l == c;
+                    return Interpreter.isEqual(l, constant);
+                };
+            case NE:
+                return in -> {
+                    Object l = left.evaluate(in);
+                    if (l instanceof Integer) return (int) l != c;
+                    return !Interpreter.isEqual(l, constant);
+                };
+            default:
+                return null;
+        }
+    }
+
+    // A variable and an integer constant: the loop test and step
+    private Closure withSlot(Expr.Binary expr, Expr.Variable variable, Closure left, int c, Object constant) {
+        Token name = variable.name;
+        int slot = slot(name);
+        boolean proven = variable.proven;
+        Tiering.Deoptimization miss = this.miss;
+        switch (expr.operator.type) {
+            case PLUS:
+                return in -> {
+                    Object l = read(in, slot, name, proven);
+                    if (l instanceof Integer) return (int) l + c;
+                    return generic(miss, expr, l, constant);
+                };
+            case MIN:
+                return in -> {
+                    Object l = read(in, slot, name, proven);
+                    if (l instanceof Integer) return (int) l - c;
+                    return generic(miss, expr, l, constant);
+                };
+            case LT:
+                return in -> {
+                    Object l = read(in, slot, name, proven);
+                    if (l instanceof Integer) return (int) l < c;
+                    return generic(miss, expr, l, constant);
+                };
+            case GT:
+                return in -> {
+                    Object l = read(in, slot, name, proven);
+                    if (l instanceof Integer) return (int) l > c;
+                    return generic(miss, expr, l, constant);
+                };
+            case LE:
+                return in -> {
+                    Object l = read(in, slot, name, proven);
+                    if (l instanceof Integer) return (int) l <= c;
+                    return generic(miss, expr, l, constant);
+                };
+            case GE:
+                return in -> {
+                    Object l = read(in, slot, name, proven);
+                    if (l instanceof Integer) return (int) l >= c;
+                    return generic(miss, expr, l, constant);
+                };
+            case EQ:
+                return in -> {
+                    Object l = read(in, slot, name, proven);
+                    if (l instanceof Integer) return (int) l == c;
+                    return Interpreter.isEqual(l, constant);
+                };
+            case NE:
+                return in -> {
+                    Object l = read(in, slot, name, proven);
+                    if (l instanceof Integer) return (int) l != c;
+                    return !Interpreter.isEqual(l, constant);
+                };
+            default:
+                return withConstant(expr, left, c, constant, miss);
+        }
+    }
+
+    private Closure step(Expr.Step expr) {
+        Token name = expr.name;
+        int slot = slot(name);
+        int delta = expr.delta;
+        Tiering.Deoptimization miss = this.miss;
+        Closure original = compile(expr.original);
+        return in -> {
+            Object value = in.environment().get(slot, name);
+            if (value instanceof Integer) return (int) value + delta;
+            return generic(miss, original, in);
+        };
+    }
+
+    private Closure compare(Expr.Compare expr) {
+        Token name = expr.name;
+        int slot = slot(name);
+        Closure bound = compile(expr.bound);
+        Closure original = compile(expr.original);
+        Tiering.Deoptimization miss = this.miss;
+        switch (expr.operator.type) {
+            case LT:
+                return in -> {
+                    Object value = in.environment().get(slot, name);
+                    Object b = bound.evaluate(in);
+                    if (value instanceof Integer && b instanceof Integer) return (int) value < (int) b;
+                    return generic(miss, original, in);
+                };
+            case GT:
+                return in -> {
+                    Object value = in.environment().get(slot, name);
+                    Object b = bound.evaluate(in);
+                    if (value instanceof Integer && b instanceof Integer) return (int) value > (int) b;
+                    return generic(miss, original, in);
+                };
+            case LE:
+                return in -> {
+                    Object value = in.environment().get(slot, name);
+                    Object b = bound.evaluate(in);
+                    if (value instanceof Integer && b instanceof Integer) return (int) value <= (int) b;
+                    return generic(miss, original, in);
+                };
+            case GE:
+                return in -> {
+                    Object value = in.environment().get(slot, name);
+                    Object b = bound.evaluate(in);
+                    if (value instanceof Integer && b instanceof Integer) return (int) value >= (int) b;
+                    return generic(miss, original, in);
+                };
+            case EQ:
+                return in -> {
+                    Object value = in.environment().get(slot, name);
+                    Object b = bound.evaluate(in);
+                    if (value instanceof Integer && b instanceof Integer) return (int) value == (int) b;
+                    return generic(miss, original, in);
+                };
+            default:
+                return in -> {
+                    Object value = in.environment().get(slot, name);
+                    Object b = bound.evaluate(in);
+                    if (value instanceof Integer && b instanceof Integer) return (int) value != (int) b;
+                    return generic(miss, original, in);
+                };
+        }
+    }
+}
@@ -1,47 +1,126 @@
 package com.nequma.translator;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Variables of a run, kept in slots. A program numbers the variables it names
+ * when it is compiled, so compiled code reaches a variable by its slot; lookups
+ * by name go through the same table.
+ */
 class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Marks the slot of a variable that has not been declared
+    private static final Object UNDECLARED = new Object();
+
+    // Shared with the program while nothing new is declared; copied before it is changed
+    private Map<String, Integer> slots;
+    private boolean ownSlots;
+    private Object[] values;
 
     Environment() {
-        enclosing = null;
+        this(new HashMap<>());
+        ownSlots = true;
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    Environment(Map<String, Integer> slots) {
+        this.slots = slots;
+        this.values = new Object[slots.size()];
+        Arrays.fill(values, UNDECLARED);
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    /** Whether slots resolved against the table may be used with this environment. */
+    boolean uses(Map<String, Integer> slots) {
+        return this.slots == slots;
+    }
+
+    /** The same variables in an environment that uses the given slots. */
+    Environment resolvedFor(Map<String, Integer> slots) {
+        Environment environment = new Environment(slots);
+        for (Map.Entry<String, Object> variable : snapshot().entrySet()) {
+            environment.define(variable.getKey(), variable.getValue());
         }
+        return environment;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    Object get(Token name) {
+        Integer slot = slots.get(name.lexeme);
+        return get(slot == null ? Integer.MAX_VALUE : slot, name);
+    }
 
+    Object get(int slot, Token name) {
+        if (slot < values.length) {
+            Object value = values[slot];
+            if (value != UNDECLARED) return value;
+        }
         throw new RuntimeError(name,
                 "Undefined variable '" + name.lexeme + "'.");
     }
 
+    /** Value of a variable the program is known to have declared. */
+    Object getDeclared(Token name) {
+        return values[slots.get(name.lexeme)];
+    }
+
+    Object getDeclared(int slot) {
+        return values[slot];
+    }
+
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+        Integer slot = slots.get(name.lexeme);
+        assign(slot == null ? Integer.MAX_VALUE : slot, name, value);
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+    void assign(int slot, Token name, Object value) {
+        if (slot < values.length && values[slot] != UNDECLARED) {
+            values[slot] = value;
             return;
         }
-
         throw new RuntimeError(name,
                 "Undefined variable '" + name.lexeme + "'. Variable must be declared before use.");
     }
 
+    /** Assignment to a variable the program is known to have declared. */
+    void assignDeclared(Token name, Object value) {
+        values[slots.get(name.lexeme)] = value;
+    }
+
+    void assignDeclared(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    /** Copy of the declared variables in no particular order. */
+    Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new HashMap<>();
+        for (Map.Entry<String, Integer> slot : slots.entrySet()) {
+            int index = slot.getValue();
+            if (index < values.length && values[index] != UNDECLARED) snapshot.put(slot.getKey(), values[index]);
+        }
+        return snapshot;
+    }
+
+    boolean contains(String name) {
+        Integer slot = slots.get(name);
+        return slot != null && slot < values.length && values[slot] != UNDECLARED;
+    }
+
     void define(String name, Object value) {
-        values.put(name, value);
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            // A name the program did not number, say in a statement that was not compiled
+            if (!ownSlots) {
+                slots = new HashMap<>(slots);
+                ownSlots = true;
+            }
+            slot = slots.size();
+            slots.put(name, slot);
+        }
+        if (slot >= values.length) {
+            // An open program numbers the names of statements appended while it runs
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(slots.size(), length * 2));
+            Arrays.fill(values, length, values.length, UNDECLARED);
+        }
+        values[slot] = value;
     }
-}
\ No newline at end of file
+}
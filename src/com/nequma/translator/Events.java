@@ -0,0 +1,157 @@
+package com.nequma.translator;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events of the translator. Phase, run and error events are
+ * cheap enough to always create; goto, read and write happen per statement, so
+ * the interpreter checks their {@code EventType} before creating one and pays
+ * a single flag test while nothing is recording.
+ */
+final class Events {
+    static final EventType GOTO = EventType.getEventType(Goto.class);
+    static final EventType READ = EventType.getEventType(Read.class);
+    static final EventType WRITE = EventType.getEventType(Write.class);
+
+    private Events() {
+    }
+
+    @Name("com.nequma.translator.Scan")
+    @Label("Scan")
+    @Category({"Translator", "Front End"})
+    @StackTrace(false)
+    static final class Scan extends Event {
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("com.nequma.translator.Parse")
+    @Label("Parse")
+    @Category({"Translator", "Front End"})
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("Top-Level Statements")
+        int statements;
+    }
+
+    @Name("com.nequma.translator.Optimize")
+    @Label("Optimize")
+    @Description("Loop recovery, SSA and loop optimizations of a compiled program")
+    @Category({"Translator", "Front End"})
+    @StackTrace(false)
+    static final class Optimize extends Event {
+        @Label("Top-Level Statements")
+        int statements;
+    }
+
+    @Name("com.nequma.translator.LabelCollection")
+    @Label("Label Collection")
+    @Description("Numbering of statements and collection of goto targets")
+    @Category({"Translator", "Front End"})
+    @StackTrace(false)
+    static final class LabelCollection extends Event {
+        @Label("AST Nodes")
+        int nodes;
+
+        @Label("Labels")
+        int labels;
+    }
+
+    @Name("com.nequma.translator.ClosureCompile")
+    @Label("Closure Compilation")
+    @Description("Compilation of expressions to closures, or slot resolution when -TIERED compiles them later")
+    @Category({"Translator", "Front End"})
+    @StackTrace(false)
+    static final class ClosureCompile extends Event {
+        @Label("Statements")
+        int statements;
+
+        @Label("Tiered")
+        boolean tiered;
+    }
+
+    @Name("com.nequma.translator.ProgramRun")
+    @Label("Program Run")
+    @Category({"Translator", "Interpreter"})
+    @StackTrace(false)
+    static final class ProgramRun extends Event {
+        @Label("Statements Executed")
+        long statements;
+
+        @Label("Goto Jumps")
+        long gotoJumps;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("com.nequma.translator.RuntimeError")
+    @Label("Runtime Error")
+    @Category({"Translator", "Interpreter"})
+    static final class RuntimeError extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Message")
+        String message;
+    }
+
+    @Name("com.nequma.translator.Goto")
+    @Label("Goto")
+    @Category({"Translator", "Interpreter"})
+    @StackTrace(false)
+    static final class Goto extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Target Label")
+        String label;
+
+        @Label("Target Line")
+        int targetLine;
+    }
+
+    @Name("com.nequma.translator.Read")
+    @Label("Read")
+    @Category({"Translator", "Interpreter", "I/O"})
+    @StackTrace(false)
+    static final class Read extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Variable")
+        String variable;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.nequma.translator.Write")
+    @Label("Write")
+    @Category({"Translator", "Interpreter", "I/O"})
+    @StackTrace(false)
+    static final class Write extends Event {
+        @Label("Line")
+        int line;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -0,0 +1,17 @@
+package com.nequma.translator;
+
+/**
+ * Per-run limits on statements executed, wall time, output written and memory.
+ * The first three are enforced at safepoints (loop back-edges and goto jumps)
+ * only, so a run may overshoot them by whatever one pass through a loop does.
+ * Memory is checked before every allocation and is never overshot.
+ */
+final class ExecutionLimits {
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    long maxStatements = UNLIMITED;
+    long maxWallMillis = UNLIMITED;
+    long maxOutputBytes = UNLIMITED;
+    /** Variables, vectors and, when output is buffered in memory, the output. */
+    long maxMemoryBytes = UNLIMITED;
+}
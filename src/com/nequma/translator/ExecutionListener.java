@@ -0,0 +1,29 @@
+package com.nequma.translator;
+
+import java.util.List;
+
+/**
+ * Observes an interpreter as it runs. Calls are made for statements of the frame
+ * being executed; statements nested in if branches and label bodies run as part
+ * of the statement that holds them.
+ */
+interface ExecutionListener {
+    /** Called before a statement runs; the stack must not be changed or kept. */
+    void beforeStatement(Stmt stmt, List<Interpreter.Frame> stack);
+
+    void afterStatement(Stmt stmt);
+
+    /** Called when a goto is taken, before the stack is rebuilt at the target. */
+    void onGoto(Stmt.Goto from, Program.LabelInfo target);
+
+    /** Called once an if condition has been evaluated. */
+    default void onBranch(Stmt.If stmt, boolean taken) {
+    }
+
+    /**
+     * Called for every value a read statement stores; position is the variable's
+     * place in the list. A vector read whole is passed once, as the vector.
+     */
+    default void onRead(Stmt.Read stmt, int position, Object value) {
+    }
+}
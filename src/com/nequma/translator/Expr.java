@@ -1,6 +1,18 @@
 package com.nequma.translator;
 
 abstract class Expr {
+    /**
+     * Set by {@link Checker} when the check the interpreter makes here cannot fail:
+     * operands are numbers, integers for mod, and variables are declared.
+     */
+    boolean proven;
+    /**
+     * What the expression compiles to, set when the program is compiled; null to walk the tree.
+     * Under -TIERED it is set and cleared while other threads run the program, so it is
+     * volatile: a closure is fully built before any interpreter can see it.
+     */
+    volatile Closure closure;
+
     interface Visitor<R> {
         R visitAssignExpr(Assign expr);
         R visitBinaryExpr(Binary expr);
@@ -8,11 +20,19 @@ abstract class Expr {
         R visitLiteralExpr(Literal expr);
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
+        R visitInvariantExpr(Invariant expr);
+        R visitStepExpr(Step expr);
+        R visitCompareExpr(Compare expr);
     }
 
     static class Assign extends Expr {
         Assign(Token name, Expr value) {
+            this(name, null, value);
+        }
+
+        Assign(Token name, Expr index, Expr value) {
             this.name = name;
+            this.index = index;
             this.value = value;
         }
 
@@ -22,6 +42,8 @@ abstract class Expr {
         }
 
         final Token name;
+        /** Element index when the target is a vector element, otherwise null. */
+        final Expr index;
         final Expr value;
     }
 
@@ -85,7 +107,12 @@ abstract class Expr {
 
     static class Variable extends Expr {
         Variable(Token name) {
+            this(name, null);
+        }
+
+        Variable(Token name, Expr index) {
             this.name = name;
+            this.index = index;
         }
 
         @Override
@@ -94,6 +121,70 @@ abstract class Expr {
         }
 
         final Token name;
+        /** Element index when this is a vector element, otherwise null. */
+        final Expr index;
+    }
+
+    /**
+     * Expression that no statement of the loop changes, set by {@link LoopOptimizer}.
+     * It is evaluated where it stands the first time after the loop is entered
+     * and its value is reused until the loop is entered again.
+     */
+    static class Invariant extends Expr {
+        Invariant(Expr expr, Stmt.Block loop, int slot) {
+            this.expr = expr;
+            this.loop = loop;
+            this.slot = slot;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvariantExpr(this);
+        }
+
+        final Expr expr;
+        /** Body of the loop the value belongs to. */
+        final Stmt.Block loop;
+        /** Where the value is kept, numbered per program. */
+        final int slot;
+    }
+
+    /** {@code name + delta} in the update of an induction variable; {@code original} covers non-integers. */
+    static class Step extends Expr {
+        Step(Token name, int delta, Expr original) {
+            this.name = name;
+            this.delta = delta;
+            this.original = original;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitStepExpr(this);
+        }
+
+        final Token name;
+        final int delta;
+        final Expr original;
+    }
+
+    /** Induction variable compared with a bound, on ints when both are; {@code original} covers the rest. */
+    static class Compare extends Expr {
+        Compare(Token name, Token operator, Expr bound, Expr original) {
+            this.name = name;
+            this.operator = operator;
+            this.bound = bound;
+            this.original = original;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCompareExpr(this);
+        }
+
+        final Token name;
+        final Token operator;
+        final Expr bound;
+        final Expr original;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
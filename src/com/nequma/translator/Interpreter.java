@@ -1,16 +1,31 @@
 package com.nequma.translator;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private static final class Frame {
-        final List<Stmt> stmts;
+    // Frames popped off the stack are kept for reuse, so entering blocks and loops
+    // and jumping around with goto do not allocate once a run is under way.
+    static final class Frame {
+        List<Stmt> stmts;
         int index;
-        final boolean isLoop;
+        boolean isLoop;
+        /** The recovered loop this frame is the body of, tested whenever the frame ends. */
+        Stmt.While loop;
 
         Frame(List<Stmt> stmts, int index, boolean isLoop) {
             this.stmts = stmts;
@@ -19,54 +34,222 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Frame copy() {
-            return new Frame(stmts, index, isLoop);
-        }
-    }
-
-    private static class LabelInfo {
-        final List<Frame> stack;
-        final int frameIndex;
-        final int stmtIndex;
-
-        LabelInfo(List<Frame> stack, int frameIndex, int stmtIndex) {
-            this.stack = stack;
-            this.frameIndex = frameIndex;
-            this.stmtIndex = stmtIndex;
+            Frame copy = new Frame(stmts, index, isLoop);
+            copy.loop = loop;
+            return copy;
         }
     }
 
     private Environment environment = new Environment();
-    private Map<String, LabelInfo> labels = new HashMap<>();
+    private Map<String, Program.LabelInfo> labels = new HashMap<>();
     private List<Frame> stack = new ArrayList<>();
+    private final List<Frame> freeFrames = new ArrayList<>(16);
+    // Digits of an integer being written, filled from the end
+    private final byte[] digits = new byte[11];
+    private byte[] lineBuffer = new byte[128];
+    private int lineLength = 0;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
     private boolean gotoJump = false;
     private String gotoTargetLabel = null;
-    private Token gotoToken = null;
-    private Scanner inputScanner = new Scanner(System.in);
+    private Stmt.Goto gotoStmt = null;
+    private final BufferedReader input;
+    private final PrintStream out;
+    private final boolean prompts;
+    private Program.Feed feed = null;
+    private ExecutionListener listener = null;
+    private ExecutionLimits limits = null;
+    private Cancellation cancellation = null;
+    private boolean checked = false;
+    private long deadline;
+    private long statementsExecuted;
+    private long outputBytes;
+    private long gotoJumps;
+    private long inputBytes;
+    private boolean bufferedOutput = false;
+    private long memoryUsed;
+    private long memoryAllocated;
+    private long peakMemory;
+    private long inputLines;
+    private Program program = null;
+    private Path checkpointPath = null;
+    private long checkpointInterval;
+    private long nextCheckpoint;
+    // Loop invariants: a value is current while its epoch is that of the latest
+    // entry into its loop, which is kept by the id of the loop's body
+    private Object[] invariants = new Object[0];
+    private long[] invariantEpochs = new long[0];
+    private long[] loopEntries = new long[0];
+    // Under -TIERED: back-edges and jumps counted by the id of the loop body or label they go to
+    private Tiering tiering = null;
+    private int[] backEdges = new int[0];
+    // Under -PGO: branches and gotos of the run, with the counts above added when it ends
+    private Profile profile = null;
+    private long entries;
+    // Under -VECTORS: where this interpreter keeps its vectors, mapped from <name>.vec
+    private Path vectorDirectory = null;
+    private boolean vectorsReadOnly;
+    // Under -BINARYVECTORS: where whole vectors are read and written, as <name>.bin
+    private Path binaryVectorDirectory = null;
+
+    // Estimated heap of one variable: its map entry, name and boxed value
+    private static final long VARIABLE_BYTES = 64;
+
+    Interpreter() {
+        this(new BufferedReader(new InputStreamReader(System.in)), System.out, true);
+    }
+
+    /**
+     * Interpreter with its own input and output, used when several programs run
+     * side by side. Without prompts {@code read} silently consumes input lines.
+     */
+    Interpreter(BufferedReader input, PrintStream out, boolean prompts) {
+        this.input = input;
+        this.out = out;
+        this.prompts = prompts;
+    }
+
+    /** Lets the interpreter run an open program, waiting for statements as it reaches them. */
+    void setFeed(Program.Feed feed) {
+        this.feed = feed;
+    }
+
+    void setListener(ExecutionListener listener) {
+        this.listener = listener;
+    }
+
+    /** Runs add what they see to the profile; null stops recording. */
+    void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /** Limits apply to every following run; null removes them. */
+    void setLimits(ExecutionLimits limits) {
+        this.limits = limits;
+        updateChecked();
+    }
+
+    void setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation;
+        updateChecked();
+    }
+
+    /**
+     * Saves a checkpoint to the path at the first safepoint after every interval.
+     * Writing one costs time in proportion to the variables, so the interval
+     * bounds the overhead; null turns checkpoints off.
+     */
+    void setCheckpoints(Path path, long intervalMillis) {
+        this.checkpointPath = path;
+        this.checkpointInterval = intervalMillis * 1_000_000L;
+        updateChecked();
+    }
+
+    private void updateChecked() {
+        checked = limits != null || cancellation != null || checkpointPath != null;
+    }
+
+    /**
+     * Keeps vectors in files of the directory, mapped rather than on the heap,
+     * from the next declaration on; null keeps them on the heap. Interpreters
+     * running at the same time must not share a directory.
+     */
+    void setVectorDirectory(Path directory, boolean readOnly) {
+        this.vectorDirectory = directory;
+        this.vectorsReadOnly = readOnly;
+    }
+
+    /**
+     * Reads and writes whole vectors as their raw elements in files of the
+     * directory; null reads and writes them as text. Interpreters running at
+     * the same time must not share a directory.
+     */
+    void setBinaryVectorDirectory(Path directory) {
+        this.binaryVectorDirectory = directory;
+    }
+
+    /** Output kept in memory until the run ends counts towards the memory limit. */
+    void setBufferedOutput(boolean bufferedOutput) {
+        this.bufferedOutput = bufferedOutput;
+    }
 
     public void interpret(List<Stmt> stmts) {
+        interpret(Program.compile(stmts));
+    }
+
+    void interpret(Program program) {
+        RuntimeError error = run(program);
+        if (error != null) {
+            Translator.runtimeError(error);
+        }
+    }
+
+    /** Executes the program and returns the runtime error that stopped it, if any. */
+    RuntimeError run(Program program) {
+        return run(program, null);
+    }
+
+    /** Executes the program from the start, or from where the checkpoint was taken. */
+    RuntimeError run(Program program, Checkpoint from) {
         // EBNF: программа = { ( описание | оператор ) ";" } конец_файла.
         // Program is a list of statements, not wrapped in a block
+        this.program = program;
+        labels = program.labels;
+        // Compiled code reaches variables by the slots the program numbered
+        if (!environment.uses(program.variables)) environment = environment.resolvedFor(program.variables);
 
-        // Collect all labels
-        labels.clear();
-        collectLabels(stmts, new ArrayList<>(), 0);
-
-        stack.clear();
-        stack.add(new Frame(stmts, 0, false));
+        popTo(0);
+        push(program.stmts, 0, false);
+        Events.ProgramRun event = new Events.ProgramRun();
+        event.begin();
+        long start = System.nanoTime();
+        statementsExecuted = 0;
+        outputBytes = 0;
+        gotoJumps = 0;
+        inputBytes = 0;
+        memoryUsed = 0;
+        memoryAllocated = 0;
+        peakMemory = 0;
+        inputLines = 0;
+        nextCheckpoint = System.nanoTime() + checkpointInterval;
+        resetInvariants(program);
+        resetTiering(program);
+        if (limits != null && limits.maxWallMillis != ExecutionLimits.UNLIMITED) {
+            deadline = System.nanoTime() + limits.maxWallMillis * 1_000_000L;
+        }
 
         try {
+            if (from != null) restore(from);
             while (!stack.isEmpty()) {
                 // Handle goto jumps
                 if (gotoJump && gotoTargetLabel != null) {
-                    LabelInfo target = labels.get(gotoTargetLabel);
+                    Program.LabelInfo target = labels.get(gotoTargetLabel);
+                    // A forward label of an open program may not have been parsed yet
+                    while (target == null && feed != null && feed.fill(program)) {
+                        target = labels.get(gotoTargetLabel);
+                    }
                     if (target == null) {
-                        throw new RuntimeError(gotoToken, "Undefined label: " + gotoTargetLabel);
+                        throw new RuntimeError(gotoStmt.label, "Undefined label: " + gotoTargetLabel);
                     }
+                    gotoJumps++;
+                    if (tiering != null) jumped(target);
+                    if (profile != null) profile.counts[gotoStmt.id]++;
+                    if (Events.GOTO.isEnabled()) gotoEvent(target);
+                    if (checked) safepoint(gotoStmt.line);
+                    if (listener != null) listener.onGoto(gotoStmt, target);
 
-                    // Clear current stack and rebuild to target position
-                    stack.clear();
-                    for (Frame f : target.stack) {
-                        stack.add(f.copy());
+                    // Rebuild the stack at the target position. Frames the target shares
+                    // with the current stack, typically all but the innermost, are kept.
+                    List<Frame> path = target.stack;
+                    int shared = 0;
+                    while (shared < stack.size() && shared < path.size()
+                            && stack.get(shared).stmts == path.get(shared).stmts) {
+                        stack.get(shared).index = path.get(shared).index;
+                        shared++;
+                    }
+                    popTo(shared);
+                    for (int i = shared; i < path.size(); i++) {
+                        Frame f = path.get(i);
+                        push(f.stmts, f.index, f.isLoop).loop = f.loop;
                     }
 
                     // Set the index of the last frame to the target statement
@@ -84,128 +267,238 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
                 // Check if we've reached the end of the current frame
                 if (frame.index >= frame.stmts.size()) {
+                    if (frame.stmts == program.stmts && feed != null && feed.fill(program)) {
+                        continue;
+                    }
                     if (frame.isLoop) {
                         // For loops, reset to beginning (infinite loop)
+                        if (checked && !frame.stmts.isEmpty()) {
+                            safepoint(frame.stmts.get(frame.stmts.size() - 1).line);
+                        }
+                        // The body block is numbered right before its first statement
+                        if (tiering != null && !frame.stmts.isEmpty()) backEdge(frame.stmts.get(0).id - 1);
                         frame.index = 0;
                         continue;
-                    } else {
-                        // For blocks, pop the frame
-                        stack.remove(stack.size() - 1);
-                        if (!stack.isEmpty()) {
-                            // Increment the index of the parent frame
-                            stack.get(stack.size() - 1).index++;
+                    }
+                    if (frame.loop != null) {
+                        // Recovered loops test their exit condition on the back-edge
+                        if (checked) safepoint(frame.loop.line);
+                        if (!leaves(frame.loop)) {
+                            if (tiering != null) backEdge(frame.loop.body.id);
+                            frame.index = 0;
+                            continue;
                         }
-                        continue;
                     }
+                    // For blocks and finished loops, pop the frame
+                    popTo(stack.size() - 1);
+                    if (!stack.isEmpty()) {
+                        // Increment the index of the parent frame
+                        stack.get(stack.size() - 1).index++;
+                    }
+                    continue;
                 }
 
                 // Execute the current statement
                 Stmt stmt = frame.stmts.get(frame.index);
+                int depth = stack.size();
+                statementsExecuted++;
 
                 // Don't increment index yet - let the statement execution handle it
-                execute(stmt);
+                if (listener != null) {
+                    listener.beforeStatement(stmt, stack);
+                    execute(stmt);
+                    listener.afterStatement(stmt);
+                } else {
+                    execute(stmt);
+                }
 
-                // Move to next statement if we didn't push a new frame and no goto jump
-                if (!gotoJump) {
+                // Move to next statement if we didn't push a new frame and no goto jump.
+                // A pushed frame advances its parent when it is popped.
+                if (!gotoJump && stack.size() == depth) {
                     frame.index++;
                 }
             }
         } catch (RuntimeError error) {
-            Translator.runtimeError(error);
+            Events.RuntimeError errorEvent = new Events.RuntimeError();
+            errorEvent.line = error.line;
+            errorEvent.message = error.getMessage();
+            errorEvent.commit();
+            publish(event, start, true);
+            return error;
         }
+        publish(event, start, false);
+        return null;
     }
 
-    private void collectLabels(List<Stmt> stmts, List<Frame> currentStack, int baseIndex) {
-        for (int i = 0; i < stmts.size(); i++) {
-            Stmt s = stmts.get(i);
-
-            if (s instanceof Stmt.Label) {
-                Stmt.Label label = (Stmt.Label) s;
-                List<Frame> labelStack = new ArrayList<>(currentStack);
-
-                // For labels, the target is the statement after the label
-                // But we need to point to the label itself for proper execution
-                int targetIndex = i;
-
-                // If the label has a body, we need to handle that specially
-                if (label.body != null) {
-                    labels.put(label.name.lexeme, new LabelInfo(labelStack, labelStack.size() - 1, i));
-
-                    // Recursively collect labels from the body
-                    if (label.body instanceof Stmt.Block) {
-                        List<Frame> newStack = new ArrayList<>(currentStack);
-                        newStack.add(new Frame(((Stmt.Block) label.body).stmts, 0, false));
-                        collectLabels(((Stmt.Block) label.body).stmts, newStack, 0);
-                    } else if (label.body instanceof Stmt.Loop) {
-                        List<Frame> newStack = new ArrayList<>(currentStack);
-                        newStack.add(new Frame(((Stmt.Loop) label.body).body.stmts, 0, true));
-                        collectLabels(((Stmt.Loop) label.body).body.stmts, newStack, 0);
-                    } else {
-                        // For non-block bodies, create a single-statement list
-                        List<Stmt> singleStmtList = new ArrayList<>();
-                        singleStmtList.add(label.body);
-                        List<Frame> newStack = new ArrayList<>(currentStack);
-                        newStack.add(new Frame(singleStmtList, 0, false));
-                        collectLabels(singleStmtList, newStack, 0);
-                    }
-                } else {
-                    labels.put(label.name.lexeme, new LabelInfo(labelStack, labelStack.size() - 1, i));
-                }
-            }
-            // Recursively collect labels from nested blocks
-            else if (s instanceof Stmt.Block) {
-                List<Frame> newStack = new ArrayList<>(currentStack);
-                newStack.add(new Frame(((Stmt.Block) s).stmts, 0, false));
-                collectLabels(((Stmt.Block) s).stmts, newStack, 0);
-            }
-            // Recursively collect labels from loop bodies
-            else if (s instanceof Stmt.Loop) {
-                List<Frame> newStack = new ArrayList<>(currentStack);
-                newStack.add(new Frame(((Stmt.Loop) s).body.stmts, 0, true));
-                collectLabels(((Stmt.Loop) s).body.stmts, newStack, 0);
-            }
-            // Handle if statements (both branches may contain labels)
-            else if (s instanceof Stmt.If) {
-                Stmt.If ifStmt = (Stmt.If) s;
-
-                // Check then branch
-                if (ifStmt.thenBranch instanceof Stmt.Block) {
-                    List<Frame> newStack = new ArrayList<>(currentStack);
-                    newStack.add(new Frame(((Stmt.Block) ifStmt.thenBranch).stmts, 0, false));
-                    collectLabels(((Stmt.Block) ifStmt.thenBranch).stmts, newStack, 0);
-                } else if (ifStmt.thenBranch instanceof Stmt.Loop) {
-                    List<Frame> newStack = new ArrayList<>(currentStack);
-                    newStack.add(new Frame(((Stmt.Loop) ifStmt.thenBranch).body.stmts, 0, true));
-                    collectLabels(((Stmt.Loop) ifStmt.thenBranch).body.stmts, newStack, 0);
-                }
+    // At a safepoint every statement before the current one is complete, and the
+    // current one is a goto, or an if holding one, that is simply taken again on
+    // resume. At a loop back-edge the loop frame stands past its last statement.
+    Checkpoint checkpoint() {
+        Checkpoint checkpoint = new Checkpoint(Checkpoint.fingerprint(program),
+                Checkpoint.frames(program, stack), environment.snapshot(), inputLines);
+        try {
+            checkpoint.write(checkpointPath);
+        } catch (IOException e) {
+            // A lost checkpoint should not end a run that is otherwise fine
+            System.err.println("Cannot write checkpoint " + checkpointPath + ": " + e.getMessage());
+        }
+        return checkpoint;
+    }
 
-                // Check else branch
-                if (ifStmt.elseBranch != null) {
-                    if (ifStmt.elseBranch instanceof Stmt.Block) {
-                        List<Frame> newStack = new ArrayList<>(currentStack);
-                        newStack.add(new Frame(((Stmt.Block) ifStmt.elseBranch).stmts, 0, false));
-                        collectLabels(((Stmt.Block) ifStmt.elseBranch).stmts, newStack, 0);
-                    } else if (ifStmt.elseBranch instanceof Stmt.Loop) {
-                        List<Frame> newStack = new ArrayList<>(currentStack);
-                        newStack.add(new Frame(((Stmt.Loop) ifStmt.elseBranch).body.stmts, 0, true));
-                        collectLabels(((Stmt.Loop) ifStmt.elseBranch).body.stmts, newStack, 0);
-                    }
-                }
+    private void restore(Checkpoint from) {
+        if (from.fingerprint != Checkpoint.fingerprint(program)) {
+            throw new RuntimeError(0, "The checkpoint was taken from a different program.");
+        }
+        environment = new Environment(program.variables);
+        for (Map.Entry<String, Object> variable : from.variables.entrySet()) {
+            charge(bytesOf(variable.getValue()), 0);
+            environment.define(variable.getKey(), variable.getValue());
+        }
+        popTo(0);
+        for (Checkpoint.FrameState frame : from.frames) {
+            push(Checkpoint.stmts(program, frame), frame.index, frame.isLoop).loop = Checkpoint.loop(program, frame);
+            // Loops the run was inside of are entered afresh as far as invariants go
+            if (frame.owner >= 0 && loopEntries.length > 0) loopEntries[frame.owner] = ++entries;
+        }
+        for (long i = 0; i < from.inputLines; i++) {
+            if (nextLine() == null) {
+                throw new RuntimeError(0, "The input ends before the " + from.inputLines
+                        + " lines read before the checkpoint.");
             }
+            inputLines++;
+        }
+    }
+
+    private void resetInvariants(Program program) {
+        if (invariants.length < program.invariantSlots) {
+            invariants = new Object[program.invariantSlots];
+            invariantEpochs = new long[program.invariantSlots];
+        }
+        Arrays.fill(invariants, null);
+        Arrays.fill(invariantEpochs, -1);
+        // An open program has no invariants and keeps growing, so it needs no entries
+        if (program.invariantSlots > 0 && loopEntries.length < program.statements.size()) {
+            loopEntries = new long[program.statements.size()];
+        }
+        Arrays.fill(loopEntries, 0);
+        entries = 0;
+    }
+
+    private void resetTiering(Program program) {
+        tiering = program.tiering;
+        if (tiering == null) return;
+        if (backEdges.length < program.statements.size()) backEdges = new int[program.statements.size()];
+        Arrays.fill(backEdges, 0);
+    }
+
+    // The loop is compiled, or its compiled code checked, every threshold iterations
+    private void backEdge(int bodyId) {
+        if (++backEdges[bodyId] % tiering.threshold == 0) tiering.loop(bodyId);
+    }
+
+    private void jumped(Program.LabelInfo target) {
+        int id = target.label().id;
+        if (++backEdges[id] % tiering.threshold == 0) tiering.label(target);
+    }
+
+    private Frame push(List<Stmt> stmts, int index, boolean isLoop) {
+        Frame frame = freeFrames.isEmpty() ? new Frame(stmts, index, isLoop)
+                : freeFrames.remove(freeFrames.size() - 1);
+        frame.stmts = stmts;
+        frame.index = index;
+        frame.isLoop = isLoop;
+        frame.loop = null;
+        stack.add(frame);
+        return frame;
+    }
+
+    private void popTo(int size) {
+        while (stack.size() > size) {
+            freeFrames.add(stack.remove(stack.size() - 1));
         }
     }
 
+    private void publish(Events.ProgramRun event, long start, boolean failed) {
+        if (profile != null && tiering != null) {
+            profile.add(backEdges);
+            tiering.record(profile);
+        }
+        Metrics.GLOBAL.recordRun(System.nanoTime() - start, statementsExecuted, gotoJumps,
+                outputBytes, inputBytes, memoryAllocated, peakMemory, failed);
+        event.statements = statementsExecuted;
+        event.gotoJumps = gotoJumps;
+        event.bytesWritten = outputBytes;
+        event.bytesRead = inputBytes;
+        event.failed = failed;
+        event.commit();
+    }
+
+    private void gotoEvent(Program.LabelInfo target) {
+        Events.Goto event = new Events.Goto();
+        event.line = gotoStmt.line;
+        event.label = gotoTargetLabel;
+        event.targetLine = target.label().line;
+        event.commit();
+    }
+
+    // Limits are only looked at on loop back-edges and goto jumps: any run that
+    // goes on for long has to pass one of them, and straight-line code pays nothing.
+    private void safepoint(int line) {
+        if (checkpointPath != null && System.nanoTime() - nextCheckpoint >= 0) {
+            checkpoint();
+            nextCheckpoint = System.nanoTime() + checkpointInterval;
+        }
+        if (cancellation != null && cancellation.isCancelled()) {
+            throw new RuntimeError(line, "Execution cancelled.");
+        }
+        if (limits == null) return;
+        if (statementsExecuted > limits.maxStatements) {
+            throw new RuntimeError(line, "Statement limit of " + limits.maxStatements + " exceeded.");
+        }
+        if (outputBytes > limits.maxOutputBytes) {
+            throw new RuntimeError(line, "Output limit of " + limits.maxOutputBytes + " bytes exceeded.");
+        }
+        if (limits.maxWallMillis != ExecutionLimits.UNLIMITED && System.nanoTime() - deadline > 0) {
+            throw new RuntimeError(line, "Time limit of " + limits.maxWallMillis + " ms exceeded.");
+        }
+    }
+
+    // Memory is accounted before it is allocated, so a program over its limit fails
+    // without ever holding the memory. A negative amount gives memory back.
+    private void charge(long bytes, int line) {
+        if (limits != null && bytes > 0 && memoryUsed + bytes > limits.maxMemoryBytes) {
+            throw new RuntimeError(line, "Memory limit of " + limits.maxMemoryBytes
+                    + " bytes exceeded: " + bytes + " more needed, " + memoryUsed + " in use.");
+        }
+        memoryUsed += bytes;
+        peakMemory = Math.max(peakMemory, memoryUsed);
+        if (bytes > 0) memoryAllocated += bytes;
+    }
+
+    private static long bytesOf(Object value) {
+        if (value instanceof Vector) return VARIABLE_BYTES + ((Vector) value).bytes();
+        return VARIABLE_BYTES;
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
     }
 
+    /** Variables of the current run, for compiled expressions. */
+    Environment environment() {
+        return environment;
+    }
+
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        return unary(expr, evaluate(expr.right));
+    }
 
+    /** The operator applied to an evaluated operand. */
+    static Object unary(Expr.Unary expr, Object right) {
         if (expr.operator.type == TokenType.MIN) {
-            checkNumberOperand(expr.operator, right);
+            checkNumberOperand(expr, right);
             if (right instanceof Integer) {
                 return -(int) right;
             } else if (right instanceof Double) {
@@ -218,24 +511,110 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        Object value = expr.proven ? environment.getDeclared(expr.name) : environment.get(expr.name);
+        if (expr.index == null) return value;
+        Vector vector = vector(expr.name, value);
+        return vector.get(element(expr.name, vector, expr.index));
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        if (expr.index != null) {
+            Vector vector = vector(expr.name, expr.proven
+                    ? environment.getDeclared(expr.name) : environment.get(expr.name));
+            int index = element(expr.name, vector, expr.index);
+            Object value = evaluate(expr.value);
+            store(expr.name, vector, index, value);
+            return value;
+        }
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        if (expr.proven) {
+            environment.assignDeclared(expr.name, value);
+        } else {
+            environment.assign(expr.name, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitInvariantExpr(Expr.Invariant expr) {
+        long epoch = loopEntries[expr.loop.id];
+        if (invariantEpochs[expr.slot] == epoch) return invariants[expr.slot];
+        Object value = evaluate(expr.expr);
+        invariants[expr.slot] = value;
+        invariantEpochs[expr.slot] = epoch;
         return value;
     }
 
+    @Override
+    public Object visitStepExpr(Expr.Step expr) {
+        Object value = environment.get(expr.name);
+        if (value instanceof Integer) return (int) value + expr.delta;
+        return evaluate(expr.original);
+    }
+
+    @Override
+    public Object visitCompareExpr(Expr.Compare expr) {
+        Object value = environment.get(expr.name);
+        Object bound = evaluate(expr.bound);
+        if (!(value instanceof Integer) || !(bound instanceof Integer)) return evaluate(expr.original);
+        int left = (int) value;
+        int right = (int) bound;
+        switch (expr.operator.type) {
+            case LT: return left < right;
+            case GT: return left > right;
+            case LE: return left <= right;
+            case GE: return left >= right;
+            case EQ: return left == right;
+            default: return left != right;
+        }
+    }
+
+    static Vector vector(Token name, Object value) {
+        if (value instanceof Vector) return (Vector) value;
+        throw new RuntimeError(name, "'" + name.lexeme + "' is not a vector.");
+    }
+
+    private int element(Token name, Vector vector, Expr indexExpr) {
+        return element(name, vector, evaluate(indexExpr));
+    }
+
+    static int element(Token name, Vector vector, Object index) {
+        if (!(index instanceof Integer)) {
+            throw new RuntimeError(name, "Index of '" + name.lexeme + "' must be an integer.");
+        }
+        int i = (int) index;
+        if (i < 0 || i >= vector.length) {
+            throw new RuntimeError(name, "Index " + i + " is out of bounds for '" + name.lexeme
+                    + "' of length " + vector.length + ".");
+        }
+        return i;
+    }
+
+    static void store(Token name, Vector vector, int index, Object value) {
+        writable(name, vector);
+        if (!vector.set(index, value)) {
+            throw new RuntimeError(name, "Cannot store " + stringify(value) + " in "
+                    + (vector.real ? "real" : "integer") + " vector '" + name.lexeme + "'.");
+        }
+    }
+
+    private static void writable(Token name, Vector vector) {
+        if (vector.readOnly) {
+            throw new RuntimeError(name, "Vector '" + name.lexeme + "' is mapped read-only.");
+        }
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        return binary(expr, evaluate(expr.left), evaluate(expr.right));
+    }
 
+    /** The operator applied to evaluated operands; compiled expressions fall back on it. */
+    static Object binary(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case PLUS:
-                if (left instanceof Number && right instanceof Number) {
+                if (expr.proven || left instanceof Number && right instanceof Number) {
                     if (left instanceof Double || right instanceof Double) {
                         return ((Number) left).doubleValue() + ((Number) right).doubleValue();
                     }
@@ -244,21 +623,21 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 throw new RuntimeError(expr.operator, "Operands must be numbers.");
 
             case MIN:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(expr, left, right);
                 if (left instanceof Double || right instanceof Double) {
                     return ((Number) left).doubleValue() - ((Number) right).doubleValue();
                 }
                 return ((Number) left).intValue() - ((Number) right).intValue();
 
             case MULT:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(expr, left, right);
                 if (left instanceof Double || right instanceof Double) {
                     return ((Number) left).doubleValue() * ((Number) right).doubleValue();
                 }
                 return ((Number) left).intValue() * ((Number) right).intValue();
 
             case DIV:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(expr, left, right);
                 if (((Number) right).doubleValue() == 0) {
                     throw new RuntimeError(expr.operator, "Division by zero.");
                 }
@@ -268,8 +647,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return ((Number) left).intValue() / ((Number) right).intValue();
 
             case MOD:
-                checkNumberOperands(expr.operator, left, right);
-                if (left instanceof Integer && right instanceof Integer) {
+                checkNumberOperands(expr, left, right);
+                if (expr.proven || left instanceof Integer && right instanceof Integer) {
                     return (int) left % (int) right;
                 }
                 throw new RuntimeError(expr.operator, "Modulo requires integer operands.");
@@ -281,19 +660,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return !isEqual(left, right);
 
             case LT:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(expr, left, right);
                 return ((Number) left).doubleValue() < ((Number) right).doubleValue();
 
             case GT:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(expr, left, right);
                 return ((Number) left).doubleValue() > ((Number) right).doubleValue();
 
             case LE:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(expr, left, right);
                 return ((Number) left).doubleValue() <= ((Number) right).doubleValue();
 
             case GE:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(expr, left, right);
                 return ((Number) left).doubleValue() >= ((Number) right).doubleValue();
 
             default:
@@ -306,17 +685,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.expr);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Number) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
+    // Checks the Checker has proven unnecessary are skipped
+    private static void checkNumberOperand(Expr.Unary expr, Object operand) {
+        if (expr.proven || operand instanceof Number) return;
+        throw new RuntimeError(expr.operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Number && right instanceof Number) return;
-        throw new RuntimeError(operator, "Operands must be numbers.");
+    private static void checkNumberOperands(Expr.Binary expr, Object left, Object right) {
+        if (expr.proven || left instanceof Number && right instanceof Number) return;
+        throw new RuntimeError(expr.operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         if (object instanceof Number) {
@@ -326,18 +706,27 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    private static String stringify(Object object) {
         if (object == null) return "nil";
         return object.toString();
     }
 
     private Object evaluate(Expr expr) {
+        Closure closure = expr.closure;
+        if (closure != null) {
+            try {
+                return closure.evaluate(this);
+            } catch (Tiering.Deoptimization deoptimization) {
+                // Nothing was stored before the assumption failed, so the tree starts over
+                deoptimization.region.deoptimize();
+            }
+        }
         return expr.accept(this);
     }
 
@@ -347,7 +736,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        stack.add(new Frame(stmt.stmts, 0, false));
+        push(stmt.stmts, 0, false);
         return null;
     }
 
@@ -360,6 +749,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         boolean condition = isTruthy(evaluate(stmt.condition));
+        if (listener != null) listener.onBranch(stmt, condition);
+        if (profile != null) profile.branch(stmt, condition);
         if (condition) {
             execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
@@ -370,15 +761,46 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWriteStmt(Stmt.Write stmt) {
-        for (Object arg : stmt.arguments) {
+        Events.Write event = null;
+        long bytesBefore = outputBytes;
+        if (Events.WRITE.isEnabled()) {
+            event = new Events.Write();
+            event.begin();
+        }
+        try {
+            appendArguments(stmt);
+            for (byte b : LINE_SEPARATOR) {
+                appendByte(b);
+            }
+        } finally {
+            // What was written before a failing argument still comes out, as it did unbuffered,
+            // unless buffering it would take the run over its memory limit
+            try {
+                if (bufferedOutput) charge(lineLength, stmt.line);
+                out.write(lineBuffer, 0, lineLength);
+            } finally {
+                lineLength = 0;
+            }
+        }
+        if (event != null) {
+            event.line = stmt.line;
+            event.bytes = outputBytes - bytesBefore;
+            event.commit();
+        }
+        return null;
+    }
+
+    private void appendArguments(Stmt.Write stmt) {
+        for (int i = 0; i < stmt.arguments.size(); i++) {
+            Object arg = stmt.arguments.get(i);
             if (arg instanceof TokenType) {
                 TokenType type = (TokenType) arg;
                 switch (type) {
                     case SPACE:
-                        System.out.print(" ");
+                        appendByte((byte) ' ');
                         break;
                     case TAB:
-                        System.out.print("\t");
+                        appendByte((byte) '\t');
                         break;
                     case SKIP:
                         // ничего не выводим
@@ -389,36 +811,246 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             } else {
                 Expr expr = (Expr) arg;
                 Object value = evaluate(expr);
-                System.out.print(stringify(value));
+                if (value instanceof Integer) {
+                    appendInt((int) value);
+                } else if (value instanceof Vector) {
+                    appendVector(expr, (Vector) value);
+                } else {
+                    appendText(stringify(value));
+                }
             }
         }
-        System.out.println();
-        return null;
+    }
+
+    // A whole vector goes out as its elements separated by spaces, as a read takes
+    // them back, or with -BINARYVECTORS raw to the variable's file
+    private void appendVector(Expr expr, Vector vector) {
+        if (binaryVectorDirectory != null && expr instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) expr).name;
+            Path file = binaryFile(name);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                vector.writeTo(channel);
+            } catch (IOException e) {
+                throw new RuntimeError(name, "Cannot write vector '" + name.lexeme + "' to " + file + ": "
+                        + e.getMessage());
+            }
+            outputBytes += vector.dataBytes();
+            return;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) appendByte((byte) ' ');
+            if (vector.real) {
+                appendText(Double.toString(vector.getReal(i)));
+            } else {
+                appendInt(vector.getInt(i));
+            }
+        }
+    }
+
+    // A written line is put together in a reusable buffer and handed to the output
+    // in one piece: going through PrintStream.print costs a CharBuffer every call.
+    // Output is ASCII apart from strings read from the input, which are encoded.
+    private void appendByte(byte b) {
+        if (lineLength == lineBuffer.length) lineBuffer = Arrays.copyOf(lineBuffer, lineLength * 2);
+        lineBuffer[lineLength++] = b;
+        outputBytes++;
+    }
+
+    // Same text as Integer.toString without building the string
+    private void appendInt(int value) {
+        int at = digits.length;
+        long rest = Math.abs((long) value);
+        do {
+            digits[--at] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (value < 0) digits[--at] = '-';
+        for (int i = at; i < digits.length; i++) {
+            appendByte(digits[i]);
+        }
+    }
+
+    private void appendText(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                for (byte b : text.getBytes(Charset.defaultCharset())) {
+                    appendByte(b);
+                }
+                return;
+            }
+        }
+        for (int i = 0; i < text.length(); i++) {
+            appendByte((byte) text.charAt(i));
+        }
     }
 
     @Override
     public Void visitReadStmt(Stmt.Read stmt) {
-        for (Expr var : stmt.variables) {
+        for (int position = 0; position < stmt.variables.size(); position++) {
+            Expr var = stmt.variables.get(position);
             if (var instanceof Expr.Variable) {
                 Expr.Variable variable = (Expr.Variable) var;
-                System.out.print("Enter value for " + variable.name.lexeme + ": ");
-                String input = inputScanner.nextLine();
-                try {
-                    if (input.contains(".")) {
-                        environment.assign(variable.name, Double.parseDouble(input));
-                    } else {
-                        environment.assign(variable.name, Integer.parseInt(input));
-                    }
-                } catch (NumberFormatException e) {
-                    environment.assign(variable.name, input);
+                Vector whole = variable.index == null ? heldVector(variable) : null;
+                if (whole != null) {
+                    readVector(stmt, variable, whole);
+                    if (listener != null) listener.onRead(stmt, position, whole);
+                    continue;
+                }
+                if (prompts) out.print("Enter value for " + variable.name.lexeme + ": ");
+                Events.Read event = null;
+                if (Events.READ.isEnabled()) {
+                    event = new Events.Read();
+                    event.begin();
+                }
+                String input = nextLine();
+                if (input == null) {
+                    throw new RuntimeError(variable.name, "No input left for '" + variable.name.lexeme + "'.");
+                }
+                inputLines++;
+                inputBytes += input.length() + 1;
+                if (event != null) {
+                    event.line = stmt.line;
+                    event.variable = variable.name.lexeme;
+                    event.bytes = input.length() + 1;
+                    event.commit();
+                }
+                Object value = parse(input);
+                if (listener != null) listener.onRead(stmt, position, value);
+                if (variable.index != null) {
+                    Vector vector = vector(variable.name, variable.proven
+                            ? environment.getDeclared(variable.name) : environment.get(variable.name));
+                    store(variable.name, vector, element(variable.name, vector, variable.index), value);
+                } else if (variable.proven) {
+                    environment.assignDeclared(variable.name, value);
+                } else {
+                    environment.assign(variable.name, value);
                 }
             }
         }
         return null;
     }
 
+    // The next input line, or null once the input has ended
+    private String nextLine() {
+        try {
+            return input.readLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Whatever the input parses as: a real when it has a point, an integer, or else the text itself
+    private static Object parse(String input) {
+        try {
+            if (input.contains(".")) {
+                return Double.parseDouble(input);
+            }
+            return Integer.parseInt(input);
+        } catch (NumberFormatException e) {
+            return input;
+        }
+    }
+
+    // The vector a plain read target holds; reading it fills every element at once
+    private Vector heldVector(Expr.Variable variable) {
+        Object value = variable.proven ? environment.getDeclared(variable.name)
+                : environment.contains(variable.name.lexeme) ? environment.get(variable.name) : null;
+        return value instanceof Vector ? (Vector) value : null;
+    }
+
+    private void readVector(Stmt.Read stmt, Expr.Variable variable, Vector vector) {
+        writable(variable.name, vector);
+        Events.Read event = null;
+        if (Events.READ.isEnabled()) {
+            event = new Events.Read();
+            event.begin();
+        }
+        long bytesBefore = inputBytes;
+        if (binaryVectorDirectory != null) {
+            Path file = binaryFile(variable.name);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                vector.readFrom(channel);
+            } catch (IOException e) {
+                throw new RuntimeError(variable.name, "Cannot read vector '" + variable.name.lexeme + "' from " + file
+                        + ": " + (e instanceof NoSuchFileException ? "there is no such file." : e.getMessage()));
+            }
+            inputBytes += vector.dataBytes();
+        } else {
+            if (prompts) out.print("Enter values for " + variable.name.lexeme + ": ");
+            readElements(variable.name, vector);
+        }
+        if (event != null) {
+            event.line = stmt.line;
+            event.variable = variable.name.lexeme;
+            event.bytes = inputBytes - bytesBefore;
+            event.commit();
+        }
+    }
+
+    // Elements separated by whitespace, on as many lines as it takes; the
+    // vector's values end with a line, so they never run into the next read
+    private void readElements(Token name, Vector vector) {
+        int filled = 0;
+        while (filled < vector.length) {
+            String line = nextLine();
+            if (line == null) {
+                throw new RuntimeError(name, "No input left for '" + name.lexeme + "'.");
+            }
+            inputLines++;
+            inputBytes += line.length() + 1;
+            int at = 0;
+            while (true) {
+                while (at < line.length() && Character.isWhitespace(line.charAt(at))) at++;
+                if (at == line.length()) break;
+                int start = at;
+                boolean point = false;
+                while (at < line.length() && !Character.isWhitespace(line.charAt(at))) {
+                    point |= line.charAt(at++) == '.';
+                }
+                if (filled == vector.length) {
+                    throw new RuntimeError(name, "The line has more values than vector '" + name.lexeme
+                            + "' holds.");
+                }
+                if (!vector.real && !point) {
+                    // Integers are parsed in place, without a substring or a box
+                    try {
+                        vector.setInt(filled, Integer.parseInt(line, start, at, 10));
+                        filled++;
+                        continue;
+                    } catch (NumberFormatException e) {
+                        // Text, which the vector refuses below
+                    }
+                }
+                store(name, vector, filled++, parse(line.substring(start, at)));
+            }
+        }
+    }
+
+    private Path binaryFile(Token name) {
+        return binaryVectorDirectory.resolve(name.lexeme + ".bin");
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
+        // A declaration executed again, say inside a loop, replaces the old value
+        long released = environment.contains(stmt.name.lexeme)
+                ? bytesOf(environment.get(stmt.name)) : 0;
+        if (stmt.isVector) {
+            boolean real = "real".equals(stmt.type);
+            int length = vectorLength(stmt);
+            if (vectorDirectory != null) {
+                Vector vector = mapped(stmt, real, length);
+                charge(VARIABLE_BYTES + vector.bytes() - released, stmt.line);
+                environment.define(stmt.name.lexeme, vector);
+                return null;
+            }
+            charge(VARIABLE_BYTES + Vector.bytes(real, length) - released, stmt.line);
+            environment.define(stmt.name.lexeme, new Vector(real, length));
+            return null;
+        }
+        charge(VARIABLE_BYTES - released, stmt.line);
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
@@ -433,18 +1065,49 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    // Under -VECTORS a vector lives in <directory>/<name>.vec, kept from one run to the next
+    private Vector mapped(Stmt.Var stmt, boolean real, int length) {
+        Path file = vectorDirectory.resolve(stmt.name.lexeme + ".vec");
+        try {
+            return Vector.mapped(file, real, length, vectorsReadOnly);
+        } catch (IOException e) {
+            throw new RuntimeError(stmt.name, "Cannot map vector '" + stmt.name.lexeme + "': " + e.getMessage());
+        }
+    }
+
+    private int vectorLength(Stmt.Var stmt) {
+        Object size = evaluate(stmt.size);
+        if (!(size instanceof Integer) || (int) size < 0) {
+            throw new RuntimeError(stmt.name, "Size of vector '" + stmt.name.lexeme
+                    + "' must be a non-negative integer, got " + stringify(size) + ".");
+        }
+        return (int) size;
+    }
+
     @Override
     public Void visitLoopStmt(Stmt.Loop stmt) {
         // Create a new frame for the loop body
-        Frame loopFrame = new Frame(stmt.body.stmts, 0, true);
-        stack.add(loopFrame);
+        if (loopEntries.length > 0) loopEntries[stmt.body.id] = ++entries;
+        push(stmt.body.stmts, 0, true);
         return null;
     }
 
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        if (loopEntries.length > 0) loopEntries[stmt.body.id] = ++entries;
+        if (stmt.testFirst && leaves(stmt)) return null;
+        push(stmt.body.stmts, 0, false).loop = stmt;
+        return null;
+    }
+
+    private boolean leaves(Stmt.While stmt) {
+        return isTruthy(evaluate(stmt.condition)) == stmt.until;
+    }
+
     @Override
     public Void visitGotoStmt(Stmt.Goto stmt) {
         gotoTargetLabel = stmt.label.lexeme;
-        gotoToken = stmt.label;
+        gotoStmt = stmt;
         gotoJump = true;
         return null;
     }
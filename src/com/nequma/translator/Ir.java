@@ -0,0 +1,664 @@
+package com.nequma.translator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Control-flow graph of a program in SSA form, for {@link SsaOptimizer}.
+ *
+ * Blocks hold the program's simple statements as instructions and end in a
+ * jump, a two-way branch on an if or loop condition, or nothing at the end of
+ * the program and at a goto to a label that does not exist. Goto edges lead to
+ * the block a label starts, so the graph follows the interpreter's frames:
+ * after the last statement of a nested list control goes on behind the
+ * statement that owns the list, or back to the start of a loop body.
+ *
+ * Expressions stay the parser's trees. Every variable read in them is mapped to
+ * the {@link Value} it sees, and so is every plain target of a read statement,
+ * which needs it to be declared; every definition makes a new one. Version 0 of
+ * a variable is the variable before any definition, which the interpreter
+ * reports as undefined.
+ */
+final class Ir {
+    /** Lattice values of constant propagation besides the constants themselves. */
+    static final Object TOP = new Object() {
+        @Override
+        public String toString() {
+            return "top";
+        }
+    };
+    static final Object BOTTOM = new Object() {
+        @Override
+        public String toString() {
+            return "bottom";
+        }
+    };
+
+    enum Kind {
+        /** Scalar assignment or declaration of {@code defs[0]}. */
+        DEF,
+        /** Read statement; defines its plain targets. */
+        READ,
+        /** Declaration of a vector. */
+        VECTOR,
+        /** Assignment to a vector element. */
+        STORE,
+        WRITE,
+        /** Expression statement that assigns nothing. */
+        EVAL
+    }
+
+    static final class Value {
+        final String variable;
+        final int version;
+        /** Defining instruction; null for version 0 and phis. */
+        Instr def;
+        /** Phi defining the value, or null. */
+        Phi phi;
+        /** How the program names the variable. */
+        Token name;
+        Object lattice = TOP;
+        boolean maybeUndefined;
+        /** Value this one is a copy of, directly or through an equal expression. */
+        Value copyOf;
+        boolean live;
+
+        Value(String variable, int version) {
+            this.variable = variable;
+            this.version = version;
+        }
+
+        @Override
+        public String toString() {
+            return variable + "." + version;
+        }
+    }
+
+    static final class Phi {
+        /** Set when renaming reaches the block. */
+        Value value;
+        final Block block;
+        /** One operand per predecessor of the block; null for unreachable ones. */
+        final Value[] operands;
+
+        Phi(Value value, Block block) {
+            this.value = value;
+            this.block = block;
+            this.operands = new Value[block.preds.size()];
+        }
+    }
+
+    static final class Instr {
+        final Kind kind;
+        final Stmt stmt;
+        /** Top-level expressions the statement evaluates, in order. */
+        final List<Expr> exprs = new ArrayList<>(1);
+        final List<Value> defs = new ArrayList<>(1);
+        /** For an assignment, the version it replaces; for a vector element, the vector. */
+        Value prior;
+        boolean live;
+        boolean removed;
+
+        Instr(Kind kind, Stmt stmt) {
+            this.kind = kind;
+            this.stmt = stmt;
+        }
+
+        /** Right-hand side of a DEF; null for a declaration without initializer. */
+        Expr value() {
+            if (stmt instanceof Stmt.Var) return ((Stmt.Var) stmt).initializer;
+            return ((Expr.Assign) ((Stmt.Expression) stmt).expr).value;
+        }
+    }
+
+    static final class Block {
+        final int id;
+        final List<Instr> instrs = new ArrayList<>();
+        final Map<String, Phi> phis = new LinkedHashMap<>();
+        final List<Block> preds = new ArrayList<>(2);
+        /** The branch target when the condition holds comes first. */
+        final List<Block> succs = new ArrayList<>(2);
+        Expr condition;
+        /** The if or loop the condition belongs to. */
+        Stmt branch;
+        boolean reachable;
+        boolean executable;
+        boolean[] executablePreds = new boolean[0];
+        Block idom;
+        final List<Block> children = new ArrayList<>();
+        final Set<Block> frontier = new LinkedHashSet<>();
+        int order;
+
+        Block(int id) {
+            this.id = id;
+        }
+    }
+
+    /** Marks the end of a block's dominator subtree on walk stacks. */
+    static final Block SUBTREE_END = new Block(-1);
+
+    final List<Block> blocks = new ArrayList<>();
+    /** Reachable blocks in reverse postorder; the entry is first. */
+    final List<Block> order = new ArrayList<>();
+    final Map<Expr.Variable, Value> reads = new IdentityHashMap<>();
+    /** Rewritten top-level expressions, filled in by the optimizer and shown by {@link #print}. */
+    final Map<Expr, Expr> rewritten = new IdentityHashMap<>();
+    final Block entry;
+    private final Map<String, Stmt.Label> labels = new HashMap<>();
+    private final Map<String, Block> labelBlocks = new HashMap<>();
+    private final Map<String, List<Value>> versions = new LinkedHashMap<>();
+
+    private Ir() {
+        entry = block();
+    }
+
+    static Ir build(List<Stmt> stmts) {
+        Ir ir = new Ir();
+        ir.collectLabels(stmts);
+        ir.stmts(stmts, ir.entry);
+        ir.dominators();
+        ir.placePhis();
+        ir.rename();
+        return ir;
+    }
+
+    // Labels the interpreter can jump to, found the way Program finds them, so
+    // that a label declared twice resolves to the same statement
+    private void collectLabels(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            if (stmt instanceof Stmt.Label) {
+                labels.put(((Stmt.Label) stmt).name.lexeme, (Stmt.Label) stmt);
+                stmt = ((Stmt.Label) stmt).body;
+            }
+            collectNested(stmt);
+        }
+    }
+
+    private void collectNested(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            collectLabels(((Stmt.Block) stmt).stmts);
+        } else if (stmt instanceof Stmt.Loop) {
+            collectLabels(((Stmt.Loop) stmt).body.stmts);
+        } else if (stmt instanceof Stmt.While) {
+            collectLabels(((Stmt.While) stmt).body.stmts);
+        } else if (stmt instanceof Stmt.If) {
+            collectNested(((Stmt.If) stmt).thenBranch);
+            if (((Stmt.If) stmt).elseBranch != null) collectNested(((Stmt.If) stmt).elseBranch);
+        }
+    }
+
+    private Block block() {
+        Block block = new Block(blocks.size());
+        blocks.add(block);
+        return block;
+    }
+
+    private static void jump(Block from, Block to) {
+        if (from == null) return;
+        from.succs.add(to);
+        to.preds.add(from);
+    }
+
+    private void branch(Block from, Expr condition, Stmt stmt, Block whenTrue, Block whenFalse) {
+        from.condition = condition;
+        from.branch = stmt;
+        jump(from, whenTrue);
+        jump(from, whenFalse);
+    }
+
+    /** Whether a goto to the label has a statement to go to. */
+    boolean declares(String label) {
+        return labels.containsKey(label);
+    }
+
+    private Block labelBlock(String name) {
+        return labelBlocks.computeIfAbsent(name, key -> block());
+    }
+
+    // Returns the block control falls through to afterwards, null when it cannot
+    private Block stmts(List<Stmt> stmts, Block current) {
+        for (Stmt stmt : stmts) {
+            current = stmt(stmt, current);
+        }
+        return current;
+    }
+
+    private Block stmt(Stmt stmt, Block current) {
+        // Code after a goto still gets blocks, as labels further on may be jumped to
+        if (current == null) current = block();
+
+        if (stmt instanceof Stmt.Block) {
+            return stmts(((Stmt.Block) stmt).stmts, current);
+        }
+        if (stmt instanceof Stmt.Label) {
+            Stmt.Label label = (Stmt.Label) stmt;
+            if (labels.get(label.name.lexeme) == label) {
+                Block target = labelBlock(label.name.lexeme);
+                jump(current, target);
+                current = target;
+            }
+            return label.body == null ? current : stmt(label.body, current);
+        }
+        if (stmt instanceof Stmt.Goto) {
+            String name = ((Stmt.Goto) stmt).label.lexeme;
+            // A jump to a label that does not exist ends the run with an error
+            if (labels.containsKey(name)) jump(current, labelBlock(name));
+            return null;
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            Block then = block();
+            Block otherwise = block();
+            branch(current, ifStmt.condition, stmt, then, otherwise);
+            Block join = block();
+            jump(stmt(ifStmt.thenBranch, then), join);
+            jump(ifStmt.elseBranch == null ? otherwise : stmt(ifStmt.elseBranch, otherwise), join);
+            return join;
+        }
+        if (stmt instanceof Stmt.Loop) {
+            Block body = block();
+            jump(current, body);
+            jump(stmt(((Stmt.Loop) stmt).body, body), body);
+            return null;
+        }
+        if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            Block test = block();
+            Block body = block();
+            Block exit = block();
+            jump(current, loop.testFirst ? test : body);
+            jump(stmt(loop.body, body), test);
+            branch(test, loop.condition, stmt, loop.until ? exit : body, loop.until ? body : exit);
+            return exit;
+        }
+        if (!(stmt instanceof Stmt.Empty)) current.instrs.add(instr(stmt));
+        return current;
+    }
+
+    private static Instr instr(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            Expr expr = ((Stmt.Expression) stmt).expr;
+            Kind kind = !(expr instanceof Expr.Assign) ? Kind.EVAL
+                    : ((Expr.Assign) expr).index == null ? Kind.DEF : Kind.STORE;
+            Instr instr = new Instr(kind, stmt);
+            instr.exprs.add(expr);
+            return instr;
+        }
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            Instr instr = new Instr(var.isVector ? Kind.VECTOR : Kind.DEF, stmt);
+            if (var.isVector) {
+                instr.exprs.add(var.size);
+            } else if (var.initializer != null) {
+                instr.exprs.add(var.initializer);
+            }
+            return instr;
+        }
+        if (stmt instanceof Stmt.Read) {
+            Instr instr = new Instr(Kind.READ, stmt);
+            for (Expr target : ((Stmt.Read) stmt).variables) {
+                if (((Expr.Variable) target).index != null) instr.exprs.add(target);
+            }
+            return instr;
+        }
+        Instr instr = new Instr(Kind.WRITE, stmt);
+        for (Object argument : ((Stmt.Write) stmt).arguments) {
+            if (argument instanceof Expr) instr.exprs.add((Expr) argument);
+        }
+        return instr;
+    }
+
+    // Cooper, Harvey and Kennedy's iterative algorithm over the reverse postorder
+    private void dominators() {
+        List<Block> postorder = new ArrayList<>();
+        Deque<Block> stack = new ArrayDeque<>();
+        Deque<Integer> next = new ArrayDeque<>();
+        entry.reachable = true;
+        stack.push(entry);
+        next.push(0);
+        while (!stack.isEmpty()) {
+            Block block = stack.peek();
+            int i = next.pop();
+            if (i < block.succs.size()) {
+                next.push(i + 1);
+                Block succ = block.succs.get(i);
+                if (!succ.reachable) {
+                    succ.reachable = true;
+                    stack.push(succ);
+                    next.push(0);
+                }
+            } else {
+                stack.pop();
+                postorder.add(block);
+            }
+        }
+        for (int i = postorder.size() - 1; i >= 0; i--) {
+            Block block = postorder.get(i);
+            block.order = order.size();
+            order.add(block);
+        }
+
+        entry.idom = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block block : order) {
+                if (block == entry) continue;
+                Block idom = null;
+                for (Block pred : block.preds) {
+                    if (pred.idom == null) continue;
+                    idom = idom == null ? pred : intersect(pred, idom);
+                }
+                if (idom != block.idom) {
+                    block.idom = idom;
+                    changed = true;
+                }
+            }
+        }
+        for (Block block : order) {
+            if (block != entry) block.idom.children.add(block);
+            int reachablePreds = 0;
+            for (Block pred : block.preds) {
+                if (pred.reachable) reachablePreds++;
+            }
+            if (reachablePreds < 2) continue;
+            for (Block pred : block.preds) {
+                if (!pred.reachable) continue;
+                for (Block runner = pred; runner != block.idom; runner = runner.idom) {
+                    runner.frontier.add(block);
+                }
+            }
+        }
+    }
+
+    private static Block intersect(Block a, Block b) {
+        while (a != b) {
+            while (a.order > b.order) a = a.idom;
+            while (b.order > a.order) b = b.idom;
+        }
+        return a;
+    }
+
+    private void placePhis() {
+        Map<String, Set<Block>> sites = new LinkedHashMap<>();
+        for (Block block : order) {
+            for (Instr instr : block.instrs) {
+                for (String variable : defined(instr)) {
+                    sites.computeIfAbsent(variable, key -> new LinkedHashSet<>()).add(block);
+                }
+            }
+        }
+        for (Map.Entry<String, Set<Block>> entry : sites.entrySet()) {
+            Deque<Block> work = new ArrayDeque<>(entry.getValue());
+            while (!work.isEmpty()) {
+                for (Block frontier : work.pop().frontier) {
+                    if (frontier.phis.containsKey(entry.getKey())) continue;
+                    frontier.phis.put(entry.getKey(), new Phi(null, frontier));
+                    if (!entry.getValue().contains(frontier)) work.push(frontier);
+                }
+            }
+        }
+    }
+
+    private static List<String> defined(Instr instr) {
+        List<String> names = new ArrayList<>(1);
+        if (instr.kind == Kind.DEF || instr.kind == Kind.VECTOR) {
+            names.add(target(instr).lexeme);
+        } else if (instr.kind == Kind.READ) {
+            for (Expr target : ((Stmt.Read) instr.stmt).variables) {
+                if (((Expr.Variable) target).index == null) names.add(((Expr.Variable) target).name.lexeme);
+            }
+        }
+        return names;
+    }
+
+    /** Name of the variable a DEF, VECTOR or STORE instruction assigns. */
+    static Token target(Instr instr) {
+        if (instr.stmt instanceof Stmt.Var) return ((Stmt.Var) instr.stmt).name;
+        return ((Expr.Assign) ((Stmt.Expression) instr.stmt).expr).name;
+    }
+
+    // Walks the dominator tree keeping the current version of every variable
+    private void rename() {
+        Map<String, Deque<Value>> current = new HashMap<>();
+        Deque<Block> stack = new ArrayDeque<>();
+        Deque<List<String>> pushed = new ArrayDeque<>();
+        stack.push(entry);
+        while (!stack.isEmpty()) {
+            Block block = stack.pop();
+            if (block == SUBTREE_END) {
+                for (String variable : pushed.pop()) {
+                    current.get(variable).pop();
+                }
+                continue;
+            }
+            List<String> names = new ArrayList<>();
+            for (Map.Entry<String, Phi> entry : block.phis.entrySet()) {
+                Phi phi = entry.getValue();
+                phi.value = newValue(entry.getKey());
+                phi.value.phi = phi;
+                push(current, names, phi.value);
+            }
+            for (Instr instr : block.instrs) {
+                for (Expr expr : instr.exprs) {
+                    recordReads(expr, current);
+                }
+                if (instr.kind == Kind.DEF || instr.kind == Kind.VECTOR) {
+                    Token name = target(instr);
+                    instr.prior = top(current, name.lexeme);
+                    Value value = newValue(name.lexeme);
+                    value.def = instr;
+                    value.name = name;
+                    instr.defs.add(value);
+                    push(current, names, value);
+                } else if (instr.kind == Kind.STORE) {
+                    instr.prior = top(current, target(instr).lexeme);
+                } else if (instr.kind == Kind.READ) {
+                    for (Expr target : ((Stmt.Read) instr.stmt).variables) {
+                        Expr.Variable variable = (Expr.Variable) target;
+                        if (variable.index != null) continue;
+                        reads.put(variable, top(current, variable.name.lexeme));
+                        Value value = newValue(variable.name.lexeme);
+                        value.def = instr;
+                        value.name = variable.name;
+                        instr.defs.add(value);
+                        push(current, names, value);
+                    }
+                }
+            }
+            if (block.condition != null) recordReads(block.condition, current);
+            for (Block succ : block.succs) {
+                for (Map.Entry<String, Phi> entry : succ.phis.entrySet()) {
+                    for (int i = 0; i < succ.preds.size(); i++) {
+                        if (succ.preds.get(i) == block) entry.getValue().operands[i] = top(current, entry.getKey());
+                    }
+                }
+            }
+            pushed.push(names);
+            stack.push(SUBTREE_END);
+            for (int i = block.children.size() - 1; i >= 0; i--) {
+                stack.push(block.children.get(i));
+            }
+        }
+    }
+
+    private void recordReads(Expr expr, Map<String, Deque<Value>> current) {
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            Value value = top(current, variable.name.lexeme);
+            reads.put(variable, value);
+            if (value.name == null) value.name = variable.name;
+            if (variable.index != null) recordReads(variable.index, current);
+        } else if (expr instanceof Expr.Assign) {
+            if (((Expr.Assign) expr).index != null) recordReads(((Expr.Assign) expr).index, current);
+            recordReads(((Expr.Assign) expr).value, current);
+        } else if (expr instanceof Expr.Binary) {
+            recordReads(((Expr.Binary) expr).left, current);
+            recordReads(((Expr.Binary) expr).right, current);
+        } else if (expr instanceof Expr.Grouping) {
+            recordReads(((Expr.Grouping) expr).expr, current);
+        } else if (expr instanceof Expr.Unary) {
+            recordReads(((Expr.Unary) expr).right, current);
+        }
+    }
+
+    private Value newValue(String variable) {
+        List<Value> list = versions.computeIfAbsent(variable, this::undefined);
+        Value value = new Value(variable, list.size());
+        list.add(value);
+        return value;
+    }
+
+    private List<Value> undefined(String variable) {
+        List<Value> list = new ArrayList<>();
+        Value value = new Value(variable, 0);
+        value.lattice = BOTTOM;
+        value.maybeUndefined = true;
+        list.add(value);
+        return list;
+    }
+
+    private Value top(Map<String, Deque<Value>> current, String variable) {
+        Deque<Value> stack = current.get(variable);
+        if (stack == null || stack.isEmpty()) return versions.computeIfAbsent(variable, this::undefined).get(0);
+        return stack.peek();
+    }
+
+    private static void push(Map<String, Deque<Value>> current, List<String> names, Value value) {
+        current.computeIfAbsent(value.variable, key -> new ArrayDeque<>()).push(value);
+        names.add(value.variable);
+    }
+
+    /** Every version of every variable, version 0 first. */
+    Iterable<List<Value>> versions() {
+        return versions.values();
+    }
+
+    /** Prints the reachable blocks with phis, instructions and what the optimizer found. */
+    void print(Appendable out) {
+        try {
+            for (Block block : order) {
+                out.append("B").append(Integer.toString(block.id));
+                if (!block.preds.isEmpty()) {
+                    out.append(" <-");
+                    for (Block pred : block.preds) {
+                        if (pred.reachable) out.append(" B").append(Integer.toString(pred.id));
+                    }
+                }
+                if (!block.executable) out.append("  (never executed)");
+                out.append('\n');
+                for (Phi phi : block.phis.values()) {
+                    out.append("  ").append(phi.value.toString()).append(" = phi(");
+                    String separator = "";
+                    for (Value operand : phi.operands) {
+                        if (operand == null) continue;
+                        out.append(separator).append(operand.toString());
+                        separator = ", ";
+                    }
+                    out.append(")").append(annotation(phi.value, phi.value.live)).append('\n');
+                }
+                for (Instr instr : block.instrs) {
+                    out.append("  ").append(print(instr)).append('\n');
+                }
+                if (block.condition != null) {
+                    out.append("  branch ").append(print(current(block.condition)))
+                            .append(" ? B").append(Integer.toString(block.succs.get(0).id))
+                            .append(" : B").append(Integer.toString(block.succs.get(1).id)).append('\n');
+                } else if (!block.succs.isEmpty()) {
+                    out.append("  jump B").append(Integer.toString(block.succs.get(0).id)).append('\n');
+                } else {
+                    out.append("  end\n");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String print(Instr instr) {
+        StringBuilder text = new StringBuilder();
+        switch (instr.kind) {
+            case DEF: {
+                Expr value = instr.exprs.isEmpty() ? null : instr.exprs.get(0);
+                if (value instanceof Expr.Assign) value = ((Expr.Assign) current(value)).value;
+                else if (value != null) value = current(value);
+                text.append(instr.defs.get(0)).append(" := ")
+                        .append(value == null ? "default " + ((Stmt.Var) instr.stmt).type : print(value));
+                break;
+            }
+            case READ:
+                text.append("read");
+                int plain = 0;
+                for (Expr target : ((Stmt.Read) instr.stmt).variables) {
+                    text.append(' ').append(((Expr.Variable) target).index == null
+                            ? instr.defs.get(plain++).toString() : print(current(target)));
+                }
+                break;
+            case VECTOR:
+                text.append(instr.defs.get(0)).append(" := vector[").append(print(current(instr.exprs.get(0))))
+                        .append("]");
+                break;
+            default:
+                text.append(instr.kind.name().toLowerCase());
+                for (Expr expr : instr.exprs) {
+                    text.append(' ').append(print(current(expr)));
+                }
+        }
+        if (instr.removed) {
+            text.append("  (removed)");
+        } else if (!instr.defs.isEmpty() && instr.kind == Kind.DEF) {
+            text.append(annotation(instr.defs.get(0), true));
+        }
+        return text.toString();
+    }
+
+    private static String annotation(Value value, boolean live) {
+        String text = "";
+        if (value.lattice != TOP && value.lattice != BOTTOM) text += "  = " + value.lattice;
+        if (value.copyOf != null) text += "  copy of " + value.copyOf;
+        if (!live) text += "  (dead)";
+        return text;
+    }
+
+    private Expr current(Expr expr) {
+        return rewritten.getOrDefault(expr, expr);
+    }
+
+    /** Expression with every variable named by the version it reads. */
+    String print(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            return value == null ? "nil" : value.toString();
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            Value value = reads.get(variable);
+            String name = value == null ? variable.name.lexeme : value.toString();
+            return variable.index == null ? name : name + "[" + print(variable.index) + "]";
+        }
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            String target = assign.name.lexeme + (assign.index == null ? "" : "[" + print(assign.index) + "]");
+            return "(= " + target + " " + print(assign.value) + ")";
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return "(" + binary.operator.lexeme + " " + print(binary.left) + " " + print(binary.right) + ")";
+        }
+        if (expr instanceof Expr.Grouping) return "(group " + print(((Expr.Grouping) expr).expr) + ")";
+        if (expr instanceof Expr.Unary) {
+            return "(" + ((Expr.Unary) expr).operator.lexeme + " " + print(((Expr.Unary) expr).right) + ")";
+        }
+        return new AstPrinter(true).print(expr);
+    }
+}
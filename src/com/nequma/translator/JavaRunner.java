@@ -0,0 +1,104 @@
+package com.nequma.translator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles the source {@link JavaTranspiler} produced with the JDK's compiler,
+ * in memory, and runs it in this JVM with the process's standard input and
+ * output.
+ */
+final class JavaRunner {
+    private JavaRunner() {
+    }
+
+    /**
+     * Returns false when the program stopped with a runtime error, which it has
+     * reported. A source that does not compile is a fault of the transpiler and
+     * throws.
+     */
+    static boolean run(String className, String source) {
+        Map<String, byte[]> classes = compile(className, source);
+        ClassLoader loader = new ClassLoader(JavaRunner.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] bytes = classes.get(name);
+                if (bytes == null) throw new ClassNotFoundException(name);
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        try {
+            return (boolean) loader.loadClass(className).getMethod("run").invoke(null);
+        } catch (InvocationTargetException e) {
+            // What the interpreter would not have caught either
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot run " + className + ": " + e, e);
+        }
+    }
+
+    private static Map<String, byte[]> compile(String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler is available; -JAVAC needs a JDK rather than a JRE.");
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+        Map<String, ByteArrayOutputStream> outputs = new HashMap<>();
+        JavaFileManager manager = new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("memory:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        outputs.put(name, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        boolean compiled = compiler.getTask(null, manager, diagnostics, Arrays.asList("-nowarn", "-g:none"),
+                null, Collections.singletonList(file)).call();
+        if (!compiled) {
+            StringBuilder message = new StringBuilder("The translated program does not compile:");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                message.append("\n  line ").append(diagnostic.getLineNumber()).append(": ")
+                        .append(diagnostic.getMessage(null));
+            }
+            throw new IllegalStateException(message.toString());
+        }
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> output : outputs.entrySet()) {
+            classes.put(output.getKey(), output.getValue().toByteArray());
+        }
+        return classes;
+    }
+}
@@ -0,0 +1,1007 @@
+package com.nequma.translator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates a checked program to the source of a Java class that does what
+ * the interpreter would: the same output, the same runtime errors at the same
+ * lines. The class needs nothing but the JDK, with {@code main} to run it from
+ * the command line and {@code run} for {@link JavaRunner}.
+ *
+ * Loops recovered by {@link LoopRecovery} become Java loops. A goto forward to
+ * a label in an enclosing list breaks out of a labeled block that ends right
+ * before the label, and a goto back to the start of an enclosing loop
+ * continues it. When any goto is left that neither covers, the whole program
+ * becomes a state machine: a {@code switch} over the blocks of its {@link Ir}
+ * inside an endless loop.
+ *
+ * Variables are locals of one method. One that only ever holds integers, in
+ * code where the {@link Checker} has proven every use declared, is an
+ * {@code int} and so is arithmetic on such values; the rest are boxed and go
+ * through the helpers at the top of the class, which follow the interpreter's
+ * rules. Execution limits, checkpoints and listeners are not carried over, so
+ * -JAVAC refuses the flags that need them, and whole vectors are read and
+ * written as text even under -BINARYVECTORS.
+ */
+final class JavaTranspiler {
+    // Java types of emitted expressions
+    private static final int INT = 0;
+    private static final int BOOL = 1;
+    private static final int OBJECT = 2;
+
+    private static final String[] RUNTIME = {
+        "private static final Object UNDEFINED = new Object();",
+        "private static final PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);",
+        "private static final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));",
+        "",
+        "private static final class Failure extends RuntimeException {",
+        "    final int line;",
+        "",
+        "    Failure(int line, String message) {",
+        "        super(message, null, false, false);",
+        "        this.line = line;",
+        "    }",
+        "}",
+        "",
+        "public static void main(String[] args) {",
+        "    if (!run()) System.exit(70);",
+        "}",
+        "",
+        "/** Runs the program; false when a runtime error, reported on stderr, stopped it. */",
+        "public static boolean run() {",
+        "    try {",
+        "        body();",
+        "        return true;",
+        "    } catch (Failure failure) {",
+        "        out.flush();",
+        "        System.err.println(\"[line \" + failure.line + \"] Runtime Error: \" + failure.getMessage());",
+        "        return false;",
+        "    } finally {",
+        "        out.flush();",
+        "    }",
+        "}",
+        "",
+        "private static Object defined(Object value, String name, int line) {",
+        "    if (value == UNDEFINED) throw new Failure(line, \"Undefined variable '\" + name + \"'.\");",
+        "    return value;",
+        "}",
+        "",
+        "private static Object declared(Object value, Object current, String name, int line) {",
+        "    if (current == UNDEFINED) {",
+        "        throw new Failure(line, \"Undefined variable '\" + name + \"'. Variable must be declared before use.\");",
+        "    }",
+        "    return value;",
+        "}",
+        "",
+        "private static void numbers(Object left, Object right, int line) {",
+        "    if (!(left instanceof Number) || !(right instanceof Number)) throw new Failure(line, \"Operands must be numbers.\");",
+        "}",
+        "",
+        "private static Object add(Object left, Object right, int line) {",
+        "    if (left instanceof Integer && right instanceof Integer) return (int) left + (int) right;",
+        "    numbers(left, right, line);",
+        "    if (left instanceof Double || right instanceof Double) return ((Number) left).doubleValue() + ((Number) right).doubleValue();",
+        "    return ((Number) left).intValue() + ((Number) right).intValue();",
+        "}",
+        "",
+        "private static Object sub(Object left, Object right, int line) {",
+        "    if (left instanceof Integer && right instanceof Integer) return (int) left - (int) right;",
+        "    numbers(left, right, line);",
+        "    if (left instanceof Double || right instanceof Double) return ((Number) left).doubleValue() - ((Number) right).doubleValue();",
+        "    return ((Number) left).intValue() - ((Number) right).intValue();",
+        "}",
+        "",
+        "private static Object mul(Object left, Object right, int line) {",
+        "    if (left instanceof Integer && right instanceof Integer) return (int) left * (int) right;",
+        "    numbers(left, right, line);",
+        "    if (left instanceof Double || right instanceof Double) return ((Number) left).doubleValue() * ((Number) right).doubleValue();",
+        "    return ((Number) left).intValue() * ((Number) right).intValue();",
+        "}",
+        "",
+        "private static int div(int left, int right, int line) {",
+        "    if (right == 0) throw new Failure(line, \"Division by zero.\");",
+        "    return left / right;",
+        "}",
+        "",
+        "private static Object div(Object left, Object right, int line) {",
+        "    numbers(left, right, line);",
+        "    if (((Number) right).doubleValue() == 0) throw new Failure(line, \"Division by zero.\");",
+        "    if (left instanceof Double || right instanceof Double) return ((Number) left).doubleValue() / ((Number) right).doubleValue();",
+        "    return ((Number) left).intValue() / ((Number) right).intValue();",
+        "}",
+        "",
+        "private static Object mod(Object left, Object right, int line) {",
+        "    numbers(left, right, line);",
+        "    if (left instanceof Integer && right instanceof Integer) return (int) left % (int) right;",
+        "    throw new Failure(line, \"Modulo requires integer operands.\");",
+        "}",
+        "",
+        "private static boolean lt(Object left, Object right, int line) {",
+        "    numbers(left, right, line);",
+        "    return ((Number) left).doubleValue() < ((Number) right).doubleValue();",
+        "}",
+        "",
+        "private static boolean gt(Object left, Object right, int line) {",
+        "    numbers(left, right, line);",
+        "    return ((Number) left).doubleValue() > ((Number) right).doubleValue();",
+        "}",
+        "",
+        "private static boolean le(Object left, Object right, int line) {",
+        "    numbers(left, right, line);",
+        "    return ((Number) left).doubleValue() <= ((Number) right).doubleValue();",
+        "}",
+        "",
+        "private static boolean ge(Object left, Object right, int line) {",
+        "    numbers(left, right, line);",
+        "    return ((Number) left).doubleValue() >= ((Number) right).doubleValue();",
+        "}",
+        "",
+        "private static boolean eq(Object left, Object right) {",
+        "    return left == null ? right == null : left.equals(right);",
+        "}",
+        "",
+        "private static Object neg(Object value, int line) {",
+        "    if (value instanceof Integer) return -(int) value;",
+        "    if (value instanceof Double) return -(double) value;",
+        "    throw new Failure(line, \"Operand must be a number.\");",
+        "}",
+        "",
+        "private static boolean truthy(Object value) {",
+        "    if (value == null) return false;",
+        "    if (value instanceof Boolean) return (boolean) value;",
+        "    if (value instanceof Integer) return (int) value != 0;",
+        "    if (value instanceof Double) return (double) value != 0.0;",
+        "    return true;",
+        "}",
+        "",
+        "private static String str(Object value) {",
+        "    if (value == null) return \"nil\";",
+        "    if (value instanceof int[]) return Arrays.toString((int[]) value);",
+        "    if (value instanceof double[]) return Arrays.toString((double[]) value);",
+        "    return value.toString();",
+        "}",
+        "",
+        "private static String text(Object value) {",
+        "    if (!(value instanceof int[] || value instanceof double[])) return str(value);",
+        "    StringBuilder text = new StringBuilder();",
+        "    int length = value instanceof int[] ? ((int[]) value).length : ((double[]) value).length;",
+        "    for (int i = 0; i < length; i++) {",
+        "        if (i > 0) text.append(' ');",
+        "        if (value instanceof int[]) {",
+        "            text.append(((int[]) value)[i]);",
+        "        } else {",
+        "            text.append(((double[]) value)[i]);",
+        "        }",
+        "    }",
+        "    return text.toString();",
+        "}",
+        "",
+        "private static void evaluate(Object value) {",
+        "}",
+        "",
+        "private static Object newVector(boolean real, Object size, String name, int line) {",
+        "    if (!(size instanceof Integer) || (int) size < 0) {",
+        "        throw new Failure(line, \"Size of vector '\" + name + \"' must be a non-negative integer, got \" + str(size) + \".\");",
+        "    }",
+        "    return real ? (Object) new double[(int) size] : (Object) new int[(int) size];",
+        "}",
+        "",
+        "private static Object vector(Object value, String name, int line) {",
+        "    if (value instanceof int[] || value instanceof double[]) return value;",
+        "    throw new Failure(line, \"'\" + name + \"' is not a vector.\");",
+        "}",
+        "",
+        "private static int index(Object vector, Object index, String name, int line) {",
+        "    if (!(index instanceof Integer)) throw new Failure(line, \"Index of '\" + name + \"' must be an integer.\");",
+        "    return index(vector, (int) index, name, line);",
+        "}",
+        "",
+        "private static int index(Object vector, int index, String name, int line) {",
+        "    int length = vector instanceof int[] ? ((int[]) vector).length : ((double[]) vector).length;",
+        "    if (index < 0 || index >= length) {",
+        "        throw new Failure(line, \"Index \" + index + \" is out of bounds for '\" + name + \"' of length \" + length + \".\");",
+        "    }",
+        "    return index;",
+        "}",
+        "",
+        "private static Object element(Object vector, Object index, String name, int line) {",
+        "    int i = index(vector, index, name, line);",
+        "    return vector instanceof int[] ? (Object) ((int[]) vector)[i] : (Object) ((double[]) vector)[i];",
+        "}",
+        "",
+        "private static Object element(Object vector, int index, String name, int line) {",
+        "    int i = index(vector, index, name, line);",
+        "    return vector instanceof int[] ? (Object) ((int[]) vector)[i] : (Object) ((double[]) vector)[i];",
+        "}",
+        "",
+        "private static Object store(Object vector, int index, Object value, String name, int line) {",
+        "    if (vector instanceof double[] && value instanceof Number) {",
+        "        ((double[]) vector)[index] = ((Number) value).doubleValue();",
+        "    } else if (vector instanceof int[] && value instanceof Integer) {",
+        "        ((int[]) vector)[index] = (int) value;",
+        "    } else {",
+        "        throw new Failure(line, \"Cannot store \" + str(value) + \" in \"",
+        "                + (vector instanceof double[] ? \"real\" : \"integer\") + \" vector '\" + name + \"'.\");",
+        "    }",
+        "    return value;",
+        "}",
+        "",
+        "private static Object read(String name, int line) {",
+        "    out.print(\"Enter value for \" + name + \": \");",
+        "    return parse(line(name, line));",
+        "}",
+        "",
+        "private static Object read(Object current, String name, int line) {",
+        "    if (!(current instanceof int[] || current instanceof double[])) return read(name, line);",
+        "    out.print(\"Enter values for \" + name + \": \");",
+        "    int length = current instanceof int[] ? ((int[]) current).length : ((double[]) current).length;",
+        "    for (int filled = 0; filled < length; ) {",
+        "        String input = line(name, line);",
+        "        int at = 0;",
+        "        while (true) {",
+        "            while (at < input.length() && Character.isWhitespace(input.charAt(at))) at++;",
+        "            if (at == input.length()) break;",
+        "            int start = at;",
+        "            while (at < input.length() && !Character.isWhitespace(input.charAt(at))) at++;",
+        "            if (filled == length) throw new Failure(line, \"The line has more values than vector '\" + name + \"' holds.\");",
+        "            store(current, filled++, parse(input.substring(start, at)), name, line);",
+        "        }",
+        "    }",
+        "    return current;",
+        "}",
+        "",
+        "private static String line(String name, int line) {",
+        "    out.flush();",
+        "    String input;",
+        "    try {",
+        "        input = in.readLine();",
+        "    } catch (IOException e) {",
+        "        throw new UncheckedIOException(e);",
+        "    }",
+        "    if (input == null) throw new Failure(line, \"No input left for '\" + name + \"'.\");",
+        "    return input;",
+        "}",
+        "",
+        "private static Object parse(String input) {",
+        "    try {",
+        "        return input.contains(\".\") ? (Object) Double.parseDouble(input) : (Object) Integer.parseInt(input);",
+        "    } catch (NumberFormatException e) {",
+        "        return input;",
+        "    }",
+        "}",
+    };
+
+    // A block that a forward goto breaks out of, ending right before its label
+    private static final class Jump {
+        final String label;
+        int start;
+        final int end;
+
+        Jump(String label, int start, int end) {
+            this.label = label;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Where a statement stands in a statement list
+    private static final class Position {
+        final List<Stmt> list;
+        final int index;
+
+        Position(List<Stmt> list, int index) {
+            this.list = list;
+            this.index = index;
+        }
+    }
+
+    private static final class Code {
+        final String text;
+        final int type;
+
+        Code(String text, int type) {
+            this.text = text;
+            this.type = type;
+        }
+    }
+
+    private final List<Stmt> stmts;
+    private final StringBuilder source = new StringBuilder();
+    private int depth = 0;
+    // Every variable the program names, and those kept as ints
+    private final Set<String> variables = new LinkedHashSet<>();
+    private final Set<String> ints = new HashSet<>();
+    private final Map<Object, String> constants = new LinkedHashMap<>();
+    // Labels a goto goes to, resolved the way the interpreter resolves them
+    private final Map<String, Stmt.Label> labels = new HashMap<>();
+    private final Map<Stmt.Label, Position> labelPositions = new IdentityHashMap<>();
+    private final Map<List<Stmt>, List<Jump>> jumps = new IdentityHashMap<>();
+    private final Map<Stmt.Goto, String> gotos = new IdentityHashMap<>();
+    private final Map<Stmt, String> loopLabels = new IdentityHashMap<>();
+    // Labels of blocks with a break that is emitted, which makes what follows them reachable
+    private final Set<String> broken = new HashSet<>();
+    private boolean structured = true;
+
+    private JavaTranspiler(List<Stmt> stmts) {
+        this.stmts = LoopRecovery.recover(stmts);
+    }
+
+    /** Java source of a class with the given name that runs the program. */
+    static String transpile(List<Stmt> stmts, String className) {
+        JavaTranspiler transpiler = new JavaTranspiler(stmts);
+        transpiler.collect(transpiler.stmts);
+        transpiler.ints();
+        transpiler.collectLabels(transpiler.stmts);
+        transpiler.jumps(transpiler.stmts, new ArrayList<>(), new ArrayList<>());
+        return transpiler.emit(className);
+    }
+
+    // --- Analysis ---
+
+    private void collect(List<Stmt> list) {
+        for (Stmt stmt : list) {
+            collect(stmt);
+        }
+    }
+
+    private void collect(Stmt stmt) {
+        if (stmt instanceof Stmt.Var) {
+            variables.add(((Stmt.Var) stmt).name.lexeme);
+            collect(((Stmt.Var) stmt).initializer);
+            collect(((Stmt.Var) stmt).size);
+        } else if (stmt instanceof Stmt.Expression) {
+            collect(((Stmt.Expression) stmt).expr);
+        } else if (stmt instanceof Stmt.Read) {
+            for (Expr variable : ((Stmt.Read) stmt).variables) {
+                collect(variable);
+            }
+        } else if (stmt instanceof Stmt.Write) {
+            for (Object argument : ((Stmt.Write) stmt).arguments) {
+                if (argument instanceof Expr) collect((Expr) argument);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            collect(((Stmt.If) stmt).condition);
+        } else if (stmt instanceof Stmt.While) {
+            collect(((Stmt.While) stmt).condition);
+        }
+        for (Stmt child : LoopRecovery.children(stmt)) {
+            collect(child);
+        }
+    }
+
+    private void collect(Expr expr) {
+        if (expr instanceof Expr.Variable) {
+            variables.add(((Expr.Variable) expr).name.lexeme);
+            collect(((Expr.Variable) expr).index);
+        } else if (expr instanceof Expr.Assign) {
+            variables.add(((Expr.Assign) expr).name.lexeme);
+            collect(((Expr.Assign) expr).index);
+            collect(((Expr.Assign) expr).value);
+        } else if (expr instanceof Expr.Binary) {
+            collect(((Expr.Binary) expr).left);
+            collect(((Expr.Binary) expr).right);
+        } else if (expr instanceof Expr.Grouping) {
+            collect(((Expr.Grouping) expr).expr);
+        } else if (expr instanceof Expr.Unary) {
+            collect(((Expr.Unary) expr).right);
+        } else if (expr instanceof Expr.Invariant) {
+            collect(((Expr.Invariant) expr).expr);
+        } else if (expr instanceof Expr.Step) {
+            collect(((Expr.Step) expr).original);
+        } else if (expr instanceof Expr.Compare) {
+            collect(((Expr.Compare) expr).original);
+        }
+    }
+
+    // Every variable starts out an int; those with a use that is not proven
+    // declared, or a value that is not an int, are boxed until nothing changes
+    private void ints() {
+        ints.addAll(variables);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Stmt stmt : stmts) {
+                changed |= box(stmt);
+            }
+        }
+    }
+
+    private boolean box(Stmt stmt) {
+        boolean changed = false;
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            boolean integer = !var.isVector && (var.initializer != null ? type(var.initializer) == INT
+                    : "integer".equals(var.type));
+            if (!integer) changed |= ints.remove(var.name.lexeme);
+            changed |= box(var.initializer) | box(var.size);
+        } else if (stmt instanceof Stmt.Expression) {
+            changed |= box(((Stmt.Expression) stmt).expr);
+        } else if (stmt instanceof Stmt.Read) {
+            for (Expr variable : ((Stmt.Read) stmt).variables) {
+                // Input may be anything
+                changed |= ints.remove(((Expr.Variable) variable).name.lexeme);
+                changed |= box(variable);
+            }
+        } else if (stmt instanceof Stmt.Write) {
+            for (Object argument : ((Stmt.Write) stmt).arguments) {
+                if (argument instanceof Expr) changed |= box((Expr) argument);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            changed |= box(((Stmt.If) stmt).condition);
+        } else if (stmt instanceof Stmt.While) {
+            changed |= box(((Stmt.While) stmt).condition);
+        }
+        for (Stmt child : LoopRecovery.children(stmt)) {
+            changed |= box(child);
+        }
+        return changed;
+    }
+
+    private boolean box(Expr expr) {
+        if (expr == null) return false;
+        boolean changed = false;
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (!variable.proven || variable.index != null) changed |= ints.remove(variable.name.lexeme);
+            changed |= box(variable.index);
+        } else if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            changed |= box(assign.index) | box(assign.value);
+            if (!assign.proven || assign.index != null || type(assign.value) != INT) {
+                changed |= ints.remove(assign.name.lexeme);
+            }
+        } else if (expr instanceof Expr.Binary) {
+            changed |= box(((Expr.Binary) expr).left) | box(((Expr.Binary) expr).right);
+        } else if (expr instanceof Expr.Grouping) {
+            changed |= box(((Expr.Grouping) expr).expr);
+        } else if (expr instanceof Expr.Unary) {
+            changed |= box(((Expr.Unary) expr).right);
+        } else if (expr instanceof Expr.Invariant) {
+            changed |= box(((Expr.Invariant) expr).expr);
+        } else if (expr instanceof Expr.Step) {
+            changed |= box(((Expr.Step) expr).original);
+        } else if (expr instanceof Expr.Compare) {
+            changed |= box(((Expr.Compare) expr).original);
+        }
+        return changed;
+    }
+
+    // Java type the expression is emitted with
+    private int type(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof Integer) return INT;
+            return value instanceof Boolean ? BOOL : OBJECT;
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            return variable.index == null && ints.contains(variable.name.lexeme) ? INT : OBJECT;
+        }
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            return assign.index == null && ints.contains(assign.name.lexeme) ? INT : OBJECT;
+        }
+        if (expr instanceof Expr.Grouping) return type(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.operator.type != TokenType.MIN) return type(unary.right);
+            return type(unary.right) == INT ? INT : OBJECT;
+        }
+        if (expr instanceof Expr.Invariant) return type(((Expr.Invariant) expr).expr);
+        if (expr instanceof Expr.Step) return type(((Expr.Step) expr).original);
+        if (expr instanceof Expr.Compare) return type(((Expr.Compare) expr).original);
+        Expr.Binary binary = (Expr.Binary) expr;
+        switch (binary.operator.type) {
+            case PLUS: case MIN: case MULT: case DIV: case MOD:
+                return type(binary.left) == INT && type(binary.right) == INT ? INT : OBJECT;
+            default:
+                return BOOL;
+        }
+    }
+
+    // The last declaration of a name is the one jumped to, as in Program
+    private void collectLabels(List<Stmt> list) {
+        for (int i = 0; i < list.size(); i++) {
+            Stmt stmt = list.get(i);
+            while (stmt instanceof Stmt.Label) {
+                Stmt.Label label = (Stmt.Label) stmt;
+                labels.put(label.name.lexeme, label);
+                labelPositions.put(label, new Position(list, i));
+                stmt = label.body;
+            }
+            collectNested(stmt);
+        }
+    }
+
+    private void collectNested(Stmt stmt) {
+        if (stmt instanceof Stmt.Label) {
+            // A labeled statement that is not in a list; a goto to it leaves no structure
+            labels.put(((Stmt.Label) stmt).name.lexeme, (Stmt.Label) stmt);
+            collectNested(((Stmt.Label) stmt).body);
+        } else if (stmt instanceof Stmt.Block) {
+            collectLabels(((Stmt.Block) stmt).stmts);
+        } else if (stmt instanceof Stmt.Loop) {
+            collectLabels(((Stmt.Loop) stmt).body.stmts);
+        } else if (stmt instanceof Stmt.While) {
+            collectLabels(((Stmt.While) stmt).body.stmts);
+        } else if (stmt instanceof Stmt.If) {
+            collectNested(((Stmt.If) stmt).thenBranch);
+            collectNested(((Stmt.If) stmt).elseBranch);
+        }
+    }
+
+    private void jumps(List<Stmt> list, List<Position> path, List<Stmt> loops) {
+        for (int i = 0; i < list.size(); i++) {
+            path.add(new Position(list, i));
+            jumps(list.get(i), path, loops);
+            path.remove(path.size() - 1);
+        }
+    }
+
+    private void jumps(Stmt stmt, List<Position> path, List<Stmt> loops) {
+        if (stmt instanceof Stmt.Goto) {
+            jump((Stmt.Goto) stmt, path, loops);
+        } else if (stmt instanceof Stmt.Label) {
+            jumps(((Stmt.Label) stmt).body, path, loops);
+        } else if (stmt instanceof Stmt.Block) {
+            jumps(((Stmt.Block) stmt).stmts, path, loops);
+        } else if (stmt instanceof Stmt.If) {
+            jumps(((Stmt.If) stmt).thenBranch, path, loops);
+            jumps(((Stmt.If) stmt).elseBranch, path, loops);
+        } else if (stmt instanceof Stmt.Loop || stmt instanceof Stmt.While) {
+            loops.add(stmt);
+            jumps(stmt instanceof Stmt.Loop ? ((Stmt.Loop) stmt).body.stmts : ((Stmt.While) stmt).body.stmts,
+                    path, loops);
+            loops.remove(loops.size() - 1);
+        }
+    }
+
+    private void jump(Stmt.Goto stmt, List<Position> path, List<Stmt> loops) {
+        Stmt.Label label = labels.get(stmt.label.lexeme);
+        Position target = label == null ? null : labelPositions.get(label);
+        if (target == null) {
+            structured = false;
+            return;
+        }
+        // Back to the start of an enclosing loop: the loop itself, or the first statement of an endless one
+        Stmt labeled = label.body;
+        while (labeled instanceof Stmt.Label) labeled = ((Stmt.Label) labeled).body;
+        for (int i = loops.size() - 1; i >= 0; i--) {
+            Stmt loop = loops.get(i);
+            boolean again = labeled == loop && (loop instanceof Stmt.Loop || ((Stmt.While) loop).testFirst)
+                    || loop instanceof Stmt.Loop && target.list == ((Stmt.Loop) loop).body.stmts && target.index == 0;
+            if (again) {
+                gotos.put(stmt, "continue " + loopLabels.computeIfAbsent(loop, key -> "loop" + loopLabels.size()) + ";");
+                return;
+            }
+        }
+        // Forward to a label in an enclosing list
+        for (Position position : path) {
+            if (position.list != target.list || position.index >= target.index) continue;
+            String name = "l_" + identifier(label.name.lexeme);
+            List<Jump> listJumps = jumps.computeIfAbsent(target.list, key -> new ArrayList<>());
+            Jump jump = null;
+            for (Jump existing : listJumps) {
+                if (existing.label.equals(name)) jump = existing;
+            }
+            if (jump == null) {
+                jump = new Jump(name, position.index, target.index);
+                listJumps.add(jump);
+            }
+            jump.start = Math.min(jump.start, position.index);
+            gotos.put(stmt, "break " + name + ";");
+            return;
+        }
+        structured = false;
+    }
+
+    // Blocks that overlap are widened until they nest
+    private static void nest(List<Jump> list) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Jump a : list) {
+                for (Jump b : list) {
+                    if (a.start < b.start && b.start < a.end && a.end < b.end) {
+                        b.start = a.start;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // --- Emission ---
+
+    private String emit(String className) {
+        for (List<Jump> list : jumps.values()) {
+            nest(list);
+        }
+        StringBuilder body = source;
+        depth = 2;
+        if (structured) {
+            range(stmts, 0, stmts.size(), new HashSet<>());
+        } else {
+            stateMachine();
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("// Generated by the translator; the program it was translated from is the source to edit.\n");
+        out.append("import java.io.BufferedOutputStream;\n");
+        out.append("import java.io.BufferedReader;\n");
+        out.append("import java.io.IOException;\n");
+        out.append("import java.io.InputStreamReader;\n");
+        out.append("import java.io.PrintStream;\n");
+        out.append("import java.io.UncheckedIOException;\n");
+        out.append("import java.util.Arrays;\n\n");
+        out.append("public final class ").append(className).append(" {\n");
+        for (Map.Entry<Object, String> constant : constants.entrySet()) {
+            out.append("    private static final Object ").append(constant.getValue()).append(" = ")
+                    .append(constant.getKey()).append(";\n");
+        }
+        for (String line : RUNTIME) {
+            out.append(line.isEmpty() ? "" : "    " + line).append('\n');
+        }
+        out.append("\n    private static void body() {\n");
+        for (String variable : variables) {
+            out.append("        ").append(ints.contains(variable) ? "int " : "Object ").append(local(variable))
+                    .append(ints.contains(variable) ? " = 0;\n" : " = UNDEFINED;\n");
+        }
+        out.append(body);
+        out.append("    }\n}\n");
+        return out.toString();
+    }
+
+    private void line(String text) {
+        for (int i = 0; i < depth; i++) {
+            source.append("    ");
+        }
+        source.append(text).append('\n');
+    }
+
+    // Statements from one index of a list to another; returns whether what follows is reachable.
+    // Code Java would find unreachable is left out, as nothing can get to it.
+    private boolean range(List<Stmt> list, int from, int to, Set<Jump> open) {
+        List<Jump> listJumps = jumps.getOrDefault(list, new ArrayList<>());
+        int i = from;
+        while (i < to) {
+            Jump block = null;
+            for (Jump jump : listJumps) {
+                if (jump.start == i && jump.end <= to && !open.contains(jump)
+                        && (block == null || jump.end > block.end)) {
+                    block = jump;
+                }
+            }
+            if (block != null) {
+                line(block.label + ": {");
+                depth++;
+                open.add(block);
+                boolean completes = range(list, i, block.end, open);
+                depth--;
+                line("}");
+                if (!completes && !broken.contains(block.label)) return false;
+                i = block.end;
+                continue;
+            }
+            if (!stmt(list.get(i))) return false;
+            i++;
+        }
+        return true;
+    }
+
+    private boolean stmt(Stmt stmt) {
+        if (stmt == null || stmt instanceof Stmt.Empty) return true;
+        if (stmt instanceof Stmt.Label) return stmt(((Stmt.Label) stmt).body);
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> list = ((Stmt.Block) stmt).stmts;
+            return range(list, 0, list.size(), new HashSet<>());
+        }
+        if (stmt instanceof Stmt.Goto) {
+            String jump = gotos.get(stmt);
+            if (jump.startsWith("break ")) broken.add(jump.substring("break ".length(), jump.length() - 1));
+            line(jump);
+            return false;
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            line("if (" + condition(expr(ifStmt.condition)) + ") {");
+            depth++;
+            boolean completes = stmt(ifStmt.thenBranch);
+            depth--;
+            if (ifStmt.elseBranch == null) {
+                line("}");
+                return true;
+            }
+            line("} else {");
+            depth++;
+            completes |= stmt(ifStmt.elseBranch);
+            depth--;
+            line("}");
+            return completes;
+        }
+        String label = loopLabels.containsKey(stmt) ? loopLabels.get(stmt) + ": " : "";
+        if (stmt instanceof Stmt.Loop) {
+            line(label + "for (;;) {");
+            depth++;
+            stmt(((Stmt.Loop) stmt).body);
+            depth--;
+            line("}");
+            return false;
+        }
+        if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            String condition = loopCondition(loop);
+            line(label + (loop.testFirst ? "while (" + condition + ") {" : "do {"));
+            depth++;
+            boolean completes = stmt(loop.body);
+            depth--;
+            line(loop.testFirst ? "}" : "} while (" + condition + ");");
+            return loop.testFirst || completes;
+        }
+        simple(stmt);
+        return true;
+    }
+
+    // A constant condition would make Java treat the loop as endless or never entered
+    private String loopCondition(Stmt.While loop) {
+        Code condition = expr(loop.condition);
+        String text = condition(condition);
+        if (!mentionsVariable(loop.condition)) text = "truthy((Object) " + condition.text + ")";
+        return loop.until ? "!(" + text + ")" : text;
+    }
+
+    private static boolean mentionsVariable(Expr expr) {
+        if (expr instanceof Expr.Variable || expr instanceof Expr.Assign) return true;
+        if (expr instanceof Expr.Binary) {
+            return mentionsVariable(((Expr.Binary) expr).left) || mentionsVariable(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Grouping) return mentionsVariable(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) return mentionsVariable(((Expr.Unary) expr).right);
+        if (expr instanceof Expr.Invariant) return mentionsVariable(((Expr.Invariant) expr).expr);
+        if (expr instanceof Expr.Step) return mentionsVariable(((Expr.Step) expr).original);
+        if (expr instanceof Expr.Compare) return mentionsVariable(((Expr.Compare) expr).original);
+        return false;
+    }
+
+    // Blocks follow one another in an endless loop; each sets the one to go to next
+    private void stateMachine() {
+        Ir ir = Ir.build(stmts);
+        List<Ir.Block> blocks = new ArrayList<>(ir.order);
+        blocks.sort(Comparator.comparingInt(block -> block.id));
+        line("int next = " + ir.entry.id + ";");
+        line("for (;;) {");
+        depth++;
+        line("switch (next) {");
+        depth++;
+        for (Ir.Block block : blocks) {
+            line("case " + block.id + ":");
+            depth++;
+            for (Ir.Instr instr : block.instrs) {
+                simple(instr.stmt);
+            }
+            if (block.succs.isEmpty()) {
+                line("return;");
+            } else if (block.condition != null) {
+                line("next = " + condition(expr(block.condition)) + " ? " + block.succs.get(0).id
+                        + " : " + block.succs.get(1).id + ";");
+                line("continue;");
+            } else {
+                line("next = " + block.succs.get(0).id + ";");
+                line("continue;");
+            }
+            depth--;
+        }
+        line("default:");
+        line("    return;");
+        depth--;
+        line("}");
+        depth--;
+        line("}");
+    }
+
+    private void simple(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            Expr expr = ((Stmt.Expression) stmt).expr;
+            if (expr instanceof Expr.Assign) {
+                line(assignment((Expr.Assign) expr) + ";");
+            } else {
+                line("evaluate(" + expr(expr).text + ");");
+            }
+        } else if (stmt instanceof Stmt.Var) {
+            var((Stmt.Var) stmt);
+        } else if (stmt instanceof Stmt.Read) {
+            for (Expr target : ((Stmt.Read) stmt).variables) {
+                read((Expr.Variable) target);
+            }
+        } else if (stmt instanceof Stmt.Write) {
+            for (Object argument : ((Stmt.Write) stmt).arguments) {
+                if (argument == TokenType.SPACE) {
+                    line("out.print(' ');");
+                } else if (argument == TokenType.TAB) {
+                    line("out.print('\\t');");
+                } else if (argument instanceof Expr) {
+                    Code value = expr((Expr) argument);
+                    line(value.type == OBJECT ? "out.print(text(" + value.text + "));" : "out.print(" + value.text + ");");
+                }
+            }
+            line("out.println();");
+        }
+    }
+
+    private void var(Stmt.Var stmt) {
+        String name = stmt.name.lexeme;
+        if (stmt.isVector) {
+            line(local(name) + " = newVector(" + "real".equals(stmt.type) + ", " + expr(stmt.size).text + ", "
+                    + quote(name) + ", " + stmt.name.line + ");");
+        } else if (stmt.initializer != null) {
+            line(local(name) + " = " + expr(stmt.initializer).text + ";");
+        } else {
+            line(local(name) + " = " + ("integer".equals(stmt.type) ? "0" : "real".equals(stmt.type) ? "0.0" : "null") + ";");
+        }
+    }
+
+    // Input is read before the target is looked at, as in the interpreter
+    private void read(Expr.Variable target) {
+        String name = target.name.lexeme;
+        String at = quote(name) + ", " + target.name.line;
+        String value = "read(" + at + ")";
+        if (target.index == null) {
+            // A vector the variable holds is filled in place
+            value = "read(" + local(name) + ", " + at + ")";
+            line(local(name) + " = " + (target.proven ? value : "declared(" + value + ", " + local(name) + ", " + at + ")") + ";");
+            return;
+        }
+        String vector = current(name, target.proven, target.name.line);
+        line("{");
+        line("    Object value = " + value + ";");
+        line("    store(vector(" + vector + ", " + at + "), index(" + vector + ", " + expr(target.index).text + ", "
+                + at + "), value, " + at + ");");
+        line("}");
+    }
+
+    // --- Expressions ---
+
+    private Code expr(Expr expr) {
+        if (expr instanceof Expr.Literal) return literal(((Expr.Literal) expr).value);
+        if (expr instanceof Expr.Variable) return variable((Expr.Variable) expr);
+        if (expr instanceof Expr.Assign) return new Code("(" + assignment((Expr.Assign) expr) + ")", type(expr));
+        if (expr instanceof Expr.Grouping) return expr(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            Code right = expr(unary.right);
+            if (unary.operator.type != TokenType.MIN) return right;
+            if (right.type == INT) return new Code("(-" + right.text + ")", INT);
+            return new Code("neg(" + right.text + ", " + unary.operator.line + ")", OBJECT);
+        }
+        if (expr instanceof Expr.Binary) return binary((Expr.Binary) expr);
+        if (expr instanceof Expr.Invariant) return expr(((Expr.Invariant) expr).expr);
+        if (expr instanceof Expr.Step) return expr(((Expr.Step) expr).original);
+        return expr(((Expr.Compare) expr).original);
+    }
+
+    private Code literal(Object value) {
+        if (value instanceof Integer) {
+            int i = (int) value;
+            return new Code(i < 0 ? "(" + i + ")" : String.valueOf(i), INT);
+        }
+        if (value instanceof Boolean) return new Code(value.toString(), BOOL);
+        if (value == null) return new Code("null", OBJECT);
+        String text = value instanceof Double ? "Double.valueOf(" + javaDouble((double) value) + ")" : quote(value.toString());
+        return new Code(constants.computeIfAbsent(text, key -> "K" + constants.size()), OBJECT);
+    }
+
+    private static String javaDouble(double value) {
+        if (Double.isNaN(value)) return "Double.NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        return Double.toString(value);
+    }
+
+    private String current(String name, boolean proven, int line) {
+        return proven ? local(name) : "defined(" + local(name) + ", " + quote(name) + ", " + line + ")";
+    }
+
+    private Code variable(Expr.Variable variable) {
+        String name = variable.name.lexeme;
+        if (variable.index == null) {
+            if (ints.contains(name)) return new Code(local(name), INT);
+            return new Code(current(name, variable.proven, variable.name.line), OBJECT);
+        }
+        String at = quote(name) + ", " + variable.name.line;
+        return new Code("element(vector(" + current(name, variable.proven, variable.name.line) + ", " + at + "), "
+                + expr(variable.index).text + ", " + at + ")", OBJECT);
+    }
+
+    // The vector and its index are checked before the value is computed
+    private String assignment(Expr.Assign assign) {
+        String name = assign.name.lexeme;
+        String at = quote(name) + ", " + assign.name.line;
+        String value = expr(assign.value).text;
+        if (assign.index != null) {
+            String vector = current(name, assign.proven, assign.name.line);
+            return "store(vector(" + vector + ", " + at + "), index(" + vector + ", " + expr(assign.index).text
+                    + ", " + at + "), " + value + ", " + at + ")";
+        }
+        if (assign.proven) return local(name) + " = " + value;
+        return local(name) + " = declared(" + value + ", " + local(name) + ", " + at + ")";
+    }
+
+    private Code binary(Expr.Binary binary) {
+        Code left = expr(binary.left);
+        Code right = expr(binary.right);
+        int line = binary.operator.line;
+        if (left.type == INT && right.type == INT) {
+            switch (binary.operator.type) {
+                case PLUS: return new Code("(" + left.text + " + " + right.text + ")", INT);
+                case MIN: return new Code("(" + left.text + " - " + right.text + ")", INT);
+                case MULT: return new Code("(" + left.text + " * " + right.text + ")", INT);
+                case DIV: return new Code("div(" + left.text + ", " + right.text + ", " + line + ")", INT);
+                case MOD: return new Code("(" + left.text + " % " + right.text + ")", INT);
+                case LT: return new Code("(" + left.text + " < " + right.text + ")", BOOL);
+                case GT: return new Code("(" + left.text + " > " + right.text + ")", BOOL);
+                case LE: return new Code("(" + left.text + " <= " + right.text + ")", BOOL);
+                case GE: return new Code("(" + left.text + " >= " + right.text + ")", BOOL);
+                case EQ: return new Code("(" + left.text + " == " + right.text + ")", BOOL);
+                default: return new Code("(" + left.text + " != " + right.text + ")", BOOL);
+            }
+        }
+        String operands = "(" + left.text + ", " + right.text + ", " + line + ")";
+        switch (binary.operator.type) {
+            case PLUS: return new Code("add" + operands, OBJECT);
+            case MIN: return new Code("sub" + operands, OBJECT);
+            case MULT: return new Code("mul" + operands, OBJECT);
+            case DIV: return new Code("div" + operands, OBJECT);
+            case MOD: return new Code("mod" + operands, OBJECT);
+            case LT: return new Code("lt" + operands, BOOL);
+            case GT: return new Code("gt" + operands, BOOL);
+            case LE: return new Code("le" + operands, BOOL);
+            case GE: return new Code("ge" + operands, BOOL);
+            case EQ: return new Code("eq(" + left.text + ", " + right.text + ")", BOOL);
+            default: return new Code("!eq(" + left.text + ", " + right.text + ")", BOOL);
+        }
+    }
+
+    private static String condition(Code code) {
+        if (code.type == BOOL) return code.text;
+        if (code.type == INT) return "(" + code.text + " != 0)";
+        return "truthy(" + code.text + ")";
+    }
+
+    private static String local(String name) {
+        return "v_" + identifier(name);
+    }
+
+    private static String identifier(String name) {
+        StringBuilder identifier = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            if (Character.isJavaIdentifierPart(c) && c != '$') {
+                identifier.append(c);
+            } else {
+                identifier.append('$').append(Integer.toHexString(c));
+            }
+        }
+        return identifier.toString();
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ' || c > '~') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
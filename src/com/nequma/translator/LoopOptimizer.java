@@ -0,0 +1,306 @@
+package com.nequma.translator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optimizes natural loops: {@code loop ... end} and the loops {@link LoopRecovery}
+ * rebuilt from goto. Only loops without labels inside are touched, since nothing
+ * else can jump into their middle.
+ *
+ * Invariant code motion: an expression reading only variables the loop never
+ * assigns becomes an {@link Expr.Invariant} of the outermost such loop. It is
+ * still evaluated where it stands, so a loop that never gets to it raises no
+ * error it would not have raised, but only once per entry into the loop.
+ * Vectors are shared by reference, so after {@code B := A} a store into
+ * {@code A[1]} changes {@code B[1]}: a loop that stores into any element, or
+ * reads into a whole variable that may be a vector, keeps all its element reads.
+ *
+ * Induction variables: a variable whose only assignment in the loop is
+ * {@code V := V + k} or {@code V := V - k} on the loop's own level, with k an
+ * integer literal. Its update becomes an {@link Expr.Step} and its comparisons
+ * with literals and invariants become {@link Expr.Compare}, both of which work
+ * on ints without going through the operator switch. Multiplying an induction
+ * variable costs no more than adding to it in this interpreter, so the classic
+ * rewrite of {@code V * c} into a running sum is not done.
+ */
+final class LoopOptimizer {
+    private static final class Loop {
+        final Stmt.Block body;
+        // Assignments, reads and declarations per variable
+        final Map<String, Integer> assigned = new HashMap<>();
+        // Whether any element of any vector may change inside the loop
+        boolean storesElements;
+        final List<String> inductions = new ArrayList<>();
+
+        Loop(Stmt.Block body) {
+            this.body = body;
+        }
+    }
+
+    private final List<Loop> loops = new ArrayList<>();
+    /** Invariant values the optimized program needs room for. */
+    int slots = 0;
+
+    List<Stmt> optimize(List<Stmt> stmts) {
+        List<Stmt> out = new ArrayList<>(stmts.size());
+        for (Stmt stmt : stmts) {
+            out.add(stmt(stmt));
+        }
+        return out;
+    }
+
+    private Stmt stmt(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            return at(new Stmt.Block(optimize(((Stmt.Block) stmt).stmts)), stmt.line);
+        }
+        if (stmt instanceof Stmt.Loop) {
+            Stmt.Block body = ((Stmt.Loop) stmt).body;
+            Stmt.Block optimized = at(new Stmt.Block(new ArrayList<>()), body.line);
+            boolean entered = enter(body, optimized);
+            optimized.stmts.addAll(optimize(body.stmts));
+            if (entered) loops.remove(loops.size() - 1);
+            return at(new Stmt.Loop(optimized), stmt.line);
+        }
+        if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            Stmt.Block optimized = at(new Stmt.Block(new ArrayList<>()), loop.body.line);
+            boolean entered = enter(loop.body, optimized);
+            Expr condition = expr(loop.condition);
+            optimized.stmts.addAll(optimize(loop.body.stmts));
+            if (entered) loops.remove(loops.size() - 1);
+            return at(new Stmt.While(condition, loop.until, loop.testFirst, optimized), stmt.line);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return at(new Stmt.If(expr(ifStmt.condition), stmt(ifStmt.thenBranch),
+                    ifStmt.elseBranch == null ? null : stmt(ifStmt.elseBranch)), stmt.line);
+        }
+        if (stmt instanceof Stmt.Label && ((Stmt.Label) stmt).body != null) {
+            Stmt.Label label = (Stmt.Label) stmt;
+            return at(new Stmt.Label(label.name, stmt(label.body)), stmt.line);
+        }
+        if (stmt instanceof Stmt.Expression) {
+            Expr expr = ((Stmt.Expression) stmt).expr;
+            Expr.Step step = step(expr);
+            if (step != null) {
+                return at(new Stmt.Expression(like(new Expr.Assign(step.name, step), expr)), stmt.line);
+            }
+            return at(new Stmt.Expression(expr(expr)), stmt.line);
+        }
+        if (stmt instanceof Stmt.Write) {
+            List<Object> arguments = new ArrayList<>();
+            for (Object argument : ((Stmt.Write) stmt).arguments) {
+                arguments.add(argument instanceof Expr ? expr((Expr) argument) : argument);
+            }
+            return at(new Stmt.Write(arguments), stmt.line);
+        }
+        if (stmt instanceof Stmt.Read) {
+            List<Expr> variables = new ArrayList<>();
+            for (Expr variable : ((Stmt.Read) stmt).variables) {
+                Expr.Variable target = (Expr.Variable) variable;
+                variables.add(target.index == null ? target
+                        : like(new Expr.Variable(target.name, expr(target.index)), target));
+            }
+            return at(new Stmt.Read(variables), stmt.line);
+        }
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            return at(new Stmt.Var(var.name, var.initializer == null ? null : expr(var.initializer),
+                    var.isVector, var.size == null ? null : expr(var.size), var.type), stmt.line);
+        }
+        return stmt;
+    }
+
+    // Invariants of the loop are attached to its optimized body, which is being filled
+    private boolean enter(Stmt.Block body, Stmt.Block optimized) {
+        if (LoopRecovery.containsLabel(body)) return false;
+        Loop loop = new Loop(optimized);
+        assignments(body, loop);
+        for (Stmt stmt : body.stmts) {
+            if (!(stmt instanceof Stmt.Expression)) continue;
+            Expr.Step step = step(((Stmt.Expression) stmt).expr);
+            if (step != null && loop.assigned.get(step.name.lexeme) == 1) {
+                loop.inductions.add(step.name.lexeme);
+            }
+        }
+        loops.add(loop);
+        return true;
+    }
+
+    private Expr expr(Expr expr) {
+        if (worthHoisting(expr)) {
+            Loop loop = outermostInvariant(expr);
+            if (loop != null) return new Expr.Invariant(expr, loop.body, slots++);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            Expr right = expr(binary.right);
+            Expr.Binary optimized = like(new Expr.Binary(expr(binary.left), binary.operator, right), binary);
+            if (isComparison(binary.operator.type) && isInduction(binary.left) && isBound(right)) {
+                return new Expr.Compare(((Expr.Variable) binary.left).name, binary.operator, right, optimized);
+            }
+            return optimized;
+        }
+        if (expr instanceof Expr.Unary) {
+            return like(new Expr.Unary(((Expr.Unary) expr).operator, expr(((Expr.Unary) expr).right)), expr);
+        }
+        if (expr instanceof Expr.Grouping) {
+            return like(new Expr.Grouping(expr(((Expr.Grouping) expr).expr)), expr);
+        }
+        if (expr instanceof Expr.Variable && ((Expr.Variable) expr).index != null) {
+            return like(new Expr.Variable(((Expr.Variable) expr).name, expr(((Expr.Variable) expr).index)), expr);
+        }
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            return like(new Expr.Assign(assign.name, assign.index == null ? null : expr(assign.index),
+                    expr(assign.value)), expr);
+        }
+        return expr;
+    }
+
+    // V := V + k, V := k + V or V := V - k with an integer literal k
+    private static Expr.Step step(Expr expr) {
+        if (!(expr instanceof Expr.Assign) || ((Expr.Assign) expr).index != null) return null;
+        Expr.Assign assign = (Expr.Assign) expr;
+        if (!(assign.value instanceof Expr.Binary)) return null;
+        Expr.Binary binary = (Expr.Binary) assign.value;
+        String name = assign.name.lexeme;
+        if (binary.operator.type == TokenType.PLUS) {
+            if (isVariable(binary.left, name) && isInteger(binary.right)) {
+                return new Expr.Step(assign.name, (int) ((Expr.Literal) binary.right).value, binary);
+            }
+            if (isInteger(binary.left) && isVariable(binary.right, name)) {
+                return new Expr.Step(assign.name, (int) ((Expr.Literal) binary.left).value, binary);
+            }
+        } else if (binary.operator.type == TokenType.MIN && isVariable(binary.left, name) && isInteger(binary.right)) {
+            // Negating MIN_VALUE wraps around to itself, as subtracting it does
+            return new Expr.Step(assign.name, -(int) ((Expr.Literal) binary.right).value, binary);
+        }
+        return null;
+    }
+
+    private Loop outermostInvariant(Expr expr) {
+        List<String> reads = new ArrayList<>();
+        if (!reads(expr, reads)) return null;
+        boolean readsElement = readsElement(expr);
+        for (Loop loop : loops) {
+            boolean invariant = !(readsElement && loop.storesElements);
+            for (String name : reads) {
+                invariant &= !loop.assigned.containsKey(name);
+            }
+            // Inner loops assign a subset of what outer ones do
+            if (invariant) return loop;
+        }
+        return null;
+    }
+
+    // Collects the variables an expression reads; false when it assigns one
+    private static boolean reads(Expr expr, List<String> names) {
+        if (expr instanceof Expr.Assign) return false;
+        if (expr instanceof Expr.Variable) {
+            names.add(((Expr.Variable) expr).name.lexeme);
+            Expr index = ((Expr.Variable) expr).index;
+            return index == null || reads(index, names);
+        }
+        if (expr instanceof Expr.Binary) {
+            return reads(((Expr.Binary) expr).left, names) && reads(((Expr.Binary) expr).right, names);
+        }
+        if (expr instanceof Expr.Grouping) return reads(((Expr.Grouping) expr).expr, names);
+        if (expr instanceof Expr.Unary) return reads(((Expr.Unary) expr).right, names);
+        return true;
+    }
+
+    private static boolean readsElement(Expr expr) {
+        if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).index != null;
+        if (expr instanceof Expr.Binary) {
+            return readsElement(((Expr.Binary) expr).left) || readsElement(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Grouping) return readsElement(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) return readsElement(((Expr.Unary) expr).right);
+        return false;
+    }
+
+    // A lone variable or literal is as cheap to read as a saved value
+    private static boolean worthHoisting(Expr expr) {
+        if (expr instanceof Expr.Binary || expr instanceof Expr.Unary) return true;
+        if (expr instanceof Expr.Grouping) return worthHoisting(((Expr.Grouping) expr).expr);
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).index != null;
+    }
+
+    private boolean isInduction(Expr expr) {
+        if (!(expr instanceof Expr.Variable) || ((Expr.Variable) expr).index != null) return false;
+        String name = ((Expr.Variable) expr).name.lexeme;
+        for (Loop loop : loops) {
+            if (loop.inductions.contains(name)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isBound(Expr expr) {
+        return isInteger(expr) || expr instanceof Expr.Invariant;
+    }
+
+    private static boolean isComparison(TokenType type) {
+        switch (type) {
+            case LT: case GT: case LE: case GE: case EQ: case NE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).index == null
+                && ((Expr.Variable) expr).name.lexeme.equals(name);
+    }
+
+    private static boolean isInteger(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Integer;
+    }
+
+    private static void assignments(Stmt stmt, Loop loop) {
+        if (stmt instanceof Stmt.Expression) {
+            assignments(((Stmt.Expression) stmt).expr, loop);
+        } else if (stmt instanceof Stmt.Read) {
+            // Reading into a whole variable fills it in place if it is a vector
+            for (Expr variable : ((Stmt.Read) stmt).variables) {
+                loop.assigned.merge(((Expr.Variable) variable).name.lexeme, 1, Integer::sum);
+                loop.storesElements = true;
+            }
+        } else if (stmt instanceof Stmt.Var) {
+            loop.assigned.merge(((Stmt.Var) stmt).name.lexeme, 1, Integer::sum);
+        }
+        for (Stmt child : LoopRecovery.children(stmt)) {
+            assignments(child, loop);
+        }
+    }
+
+    private static void assignments(Expr expr, Loop loop) {
+        if (expr instanceof Expr.Assign) {
+            loop.assigned.merge(((Expr.Assign) expr).name.lexeme, 1, Integer::sum);
+            if (((Expr.Assign) expr).index != null) loop.storesElements = true;
+            assignments(((Expr.Assign) expr).value, loop);
+        } else if (expr instanceof Expr.Binary) {
+            assignments(((Expr.Binary) expr).left, loop);
+            assignments(((Expr.Binary) expr).right, loop);
+        } else if (expr instanceof Expr.Grouping) {
+            assignments(((Expr.Grouping) expr).expr, loop);
+        } else if (expr instanceof Expr.Unary) {
+            assignments(((Expr.Unary) expr).right, loop);
+        }
+    }
+
+    // Copies keep what the Checker proved about the node they replace
+    private static <T extends Expr> T like(T copy, Expr original) {
+        copy.proven = original.proven;
+        return copy;
+    }
+
+    private static <T extends Stmt> T at(T stmt, int line) {
+        stmt.line = line;
+        return stmt;
+    }
+}
@@ -0,0 +1,247 @@
+package com.nequma.translator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns loops built out of goto into {@link Stmt.While} nodes, so that whatever
+ * runs the program sees natural loops with an explicit exit condition instead
+ * of jumps. Three shapes are recognised within one statement list:
+ *
+ *   loop begin S; if C then goto X; end; end; X: ...    do S until C
+ *   loop begin if C then goto X; S; end; end; X: ...    until C do S
+ *   L: S; if C then goto L [else E];                    do S while C [; E]
+ *   L: if C then goto X; S; goto L;                     until C do S [; goto X]
+ *
+ * A loop is only rebuilt when no label is left inside it, so nothing can jump
+ * into its middle; labels that no goto refers to any more are dropped, which
+ * lets nested loops be recovered from the inside out. Irreducible flow, and
+ * anything else that does not match, is left as it was.
+ *
+ * The tree the parser built is not changed: lists and the statements holding
+ * them are copied.
+ */
+final class LoopRecovery {
+    // Gotos left pointing at each label, and how often each label is declared
+    private final Map<String, Integer> references = new HashMap<>();
+    private final Map<String, Integer> declarations = new HashMap<>();
+
+    static List<Stmt> recover(List<Stmt> stmts) {
+        LoopRecovery recovery = new LoopRecovery();
+        for (Stmt stmt : stmts) {
+            recovery.count(stmt);
+        }
+        return recovery.list(stmts);
+    }
+
+    private void count(Stmt stmt) {
+        if (stmt instanceof Stmt.Goto) {
+            references.merge(((Stmt.Goto) stmt).label.lexeme, 1, Integer::sum);
+        } else if (stmt instanceof Stmt.Label) {
+            declarations.merge(((Stmt.Label) stmt).name.lexeme, 1, Integer::sum);
+        }
+        for (Stmt child : children(stmt)) {
+            count(child);
+        }
+    }
+
+    private List<Stmt> list(List<Stmt> stmts) {
+        List<Stmt> out = new ArrayList<>(stmts.size());
+        for (Stmt stmt : stmts) {
+            out.add(rewrite(stmt));
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < out.size(); i++) {
+                changed |= dropLabel(out, i) || dropJumpToNext(out, i) || loopExit(out, i)
+                        || backEdge(out, i);
+            }
+        }
+        return out;
+    }
+
+    private Stmt rewrite(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            return block(list(((Stmt.Block) stmt).stmts), stmt.line);
+        }
+        if (stmt instanceof Stmt.Loop) {
+            Stmt.Block body = ((Stmt.Loop) stmt).body;
+            return at(new Stmt.Loop(block(list(body.stmts), body.line)), stmt.line);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return at(new Stmt.If(ifStmt.condition, rewrite(ifStmt.thenBranch),
+                    ifStmt.elseBranch == null ? null : rewrite(ifStmt.elseBranch)), stmt.line);
+        }
+        if (stmt instanceof Stmt.Label && ((Stmt.Label) stmt).body != null) {
+            Stmt.Label label = (Stmt.Label) stmt;
+            return at(new Stmt.Label(label.name, rewrite(label.body)), stmt.line);
+        }
+        return stmt;
+    }
+
+    // A label nothing jumps to is just its statement
+    private boolean dropLabel(List<Stmt> out, int i) {
+        if (!(out.get(i) instanceof Stmt.Label)) return false;
+        Stmt.Label label = (Stmt.Label) out.get(i);
+        if (label.body == null || references.getOrDefault(label.name.lexeme, 0) > 0) return false;
+        out.set(i, label.body);
+        return true;
+    }
+
+    // goto X; X: ...
+    private boolean dropJumpToNext(List<Stmt> out, int i) {
+        if (!(out.get(i) instanceof Stmt.Goto) || i + 1 >= out.size()) return false;
+        String target = ((Stmt.Goto) out.get(i)).label.lexeme;
+        if (!labels(out.get(i + 1), target)) return false;
+        out.remove(i);
+        references.merge(target, -1, Integer::sum);
+        return true;
+    }
+
+    // loop ... end left by a conditional goto to the statement right after it
+    private boolean loopExit(List<Stmt> out, int i) {
+        if (!(out.get(i) instanceof Stmt.Loop) || i + 1 >= out.size()) return false;
+        Stmt.Block body = ((Stmt.Loop) out.get(i)).body;
+        if (body.stmts.isEmpty() || containsLabel(body)) return false;
+
+        List<Stmt> stmts = body.stmts;
+        boolean testFirst = false;
+        Stmt.If test = exitTest(stmts.get(stmts.size() - 1), out.get(i + 1));
+        if (test == null) {
+            test = exitTest(stmts.get(0), out.get(i + 1));
+            testFirst = true;
+        }
+        if (test == null) return false;
+
+        List<Stmt> rest = new ArrayList<>(testFirst ? stmts.subList(1, stmts.size())
+                : stmts.subList(0, stmts.size() - 1));
+        out.set(i, at(new Stmt.While(test.condition, true, testFirst, block(rest, body.line)),
+                out.get(i).line));
+        references.merge(target(test.thenBranch), -1, Integer::sum);
+        return true;
+    }
+
+    // if C then goto X, where the statement after the loop carries label X
+    private Stmt.If exitTest(Stmt stmt, Stmt next) {
+        if (!(stmt instanceof Stmt.If) || ((Stmt.If) stmt).elseBranch != null) return null;
+        String target = target(((Stmt.If) stmt).thenBranch);
+        return target != null && labels(next, target) ? (Stmt.If) stmt : null;
+    }
+
+    // L: ... up to a goto back to L further down the same list
+    private boolean backEdge(List<Stmt> out, int i) {
+        if (!(out.get(i) instanceof Stmt.Label)) return false;
+        Stmt.Label label = (Stmt.Label) out.get(i);
+        String name = label.name.lexeme;
+        if (label.body == null || declarations.get(name) != 1 || containsLabel(label.body)) return false;
+
+        for (int j = i + 1; j < out.size(); j++) {
+            Stmt stmt = out.get(j);
+            if (name.equals(target(stmt))) {
+                return testFirst(out, i, j);
+            }
+            if (stmt instanceof Stmt.If && name.equals(target(((Stmt.If) stmt).thenBranch))) {
+                return testLast(out, i, j);
+            }
+            if (containsLabel(stmt)) return false;
+        }
+        return false;
+    }
+
+    // L: S1; S...; if C then goto L [else E];
+    private boolean testLast(List<Stmt> out, int i, int j) {
+        Stmt.Label label = (Stmt.Label) out.get(i);
+        Stmt.If test = (Stmt.If) out.get(j);
+        if (test.elseBranch != null && containsLabel(test.elseBranch)) return false;
+
+        List<Stmt> body = new ArrayList<>();
+        body.add(label.body);
+        body.addAll(out.subList(i + 1, j));
+        Stmt loop = at(new Stmt.While(test.condition, false, false, block(body, label.line)), label.line);
+        replace(out, i, j, label, loop, test.elseBranch);
+        return true;
+    }
+
+    // L: if C then goto X; S...; goto L;  An unconditional loop without the test.
+    private boolean testFirst(List<Stmt> out, int i, int j) {
+        Stmt.Label label = (Stmt.Label) out.get(i);
+        Stmt first = label.body;
+        String exit = first instanceof Stmt.If && ((Stmt.If) first).elseBranch == null
+                ? target(((Stmt.If) first).thenBranch) : null;
+        if (label.name.lexeme.equals(exit)) exit = null;
+
+        List<Stmt> body = new ArrayList<>();
+        Stmt loop;
+        if (exit == null) {
+            body.add(first);
+            body.addAll(out.subList(i + 1, j));
+            loop = at(new Stmt.Loop(block(body, label.line)), label.line);
+        } else {
+            body.addAll(out.subList(i + 1, j));
+            loop = at(new Stmt.While(((Stmt.If) first).condition, true, true, block(body, label.line)),
+                    label.line);
+        }
+        // The exit goto stays behind the loop; dropJumpToNext removes it when X is next
+        replace(out, i, j, label, loop, exit == null ? null : ((Stmt.If) first).thenBranch);
+        return true;
+    }
+
+    private void replace(List<Stmt> out, int i, int j, Stmt.Label label, Stmt loop, Stmt after) {
+        out.subList(i, j + 1).clear();
+        // Gotos from elsewhere still enter the loop at its start
+        out.add(i, at(new Stmt.Label(label.name, loop), label.line));
+        if (after != null) out.add(i + 1, after);
+        references.merge(label.name.lexeme, -1, Integer::sum);
+    }
+
+    // Label the goto jumps to when the statement is a goto, possibly alone in a block
+    private static String target(Stmt stmt) {
+        if (stmt instanceof Stmt.Block && ((Stmt.Block) stmt).stmts.size() == 1) {
+            stmt = ((Stmt.Block) stmt).stmts.get(0);
+        }
+        return stmt instanceof Stmt.Goto ? ((Stmt.Goto) stmt).label.lexeme : null;
+    }
+
+    private boolean labels(Stmt stmt, String name) {
+        return stmt instanceof Stmt.Label && ((Stmt.Label) stmt).name.lexeme.equals(name)
+                && declarations.get(name) == 1;
+    }
+
+    static boolean containsLabel(Stmt stmt) {
+        if (stmt instanceof Stmt.Label) return true;
+        for (Stmt child : children(stmt)) {
+            if (containsLabel(child)) return true;
+        }
+        return false;
+    }
+
+    static List<Stmt> children(Stmt stmt) {
+        List<Stmt> children = new ArrayList<>();
+        if (stmt instanceof Stmt.Block) {
+            children.addAll(((Stmt.Block) stmt).stmts);
+        } else if (stmt instanceof Stmt.Loop) {
+            children.add(((Stmt.Loop) stmt).body);
+        } else if (stmt instanceof Stmt.While) {
+            children.add(((Stmt.While) stmt).body);
+        } else if (stmt instanceof Stmt.If) {
+            children.add(((Stmt.If) stmt).thenBranch);
+            if (((Stmt.If) stmt).elseBranch != null) children.add(((Stmt.If) stmt).elseBranch);
+        } else if (stmt instanceof Stmt.Label && ((Stmt.Label) stmt).body != null) {
+            children.add(((Stmt.Label) stmt).body);
+        }
+        return children;
+    }
+
+    private static Stmt.Block block(List<Stmt> stmts, int line) {
+        return at(new Stmt.Block(stmts), line);
+    }
+
+    private static <T extends Stmt> T at(T stmt, int line) {
+        stmt.line = line;
+        return stmt;
+    }
+}
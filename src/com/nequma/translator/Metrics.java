@@ -0,0 +1,248 @@
+package com.nequma.translator;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Phase timings and program statistics behind -STATS and JMX.
+ * Counters are LongAdders, so concurrent batch runs do not contend on them, and
+ * an interpreter counts in plain fields while it runs and adds its totals once
+ * at the end of the run.
+ */
+final class Metrics implements MetricsMBean {
+    static final Metrics GLOBAL = new Metrics();
+    static final String OBJECT_NAME = "com.nequma.translator:type=Metrics";
+
+    private final LongAdder scanNanos = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder optimizeNanos = new LongAdder();
+    private final LongAdder labelCollectionNanos = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+    private final LongAdder interpretNanos = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder astNodes = new LongAdder();
+    private final LongAdder labels = new LongAdder();
+    private final LongAccumulator maxNestingDepth = new LongAccumulator(Math::max, 0);
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder runtimeErrors = new LongAdder();
+    private final LongAdder statementsExecuted = new LongAdder();
+    private final LongAdder gotoJumps = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder memoryAllocated = new LongAdder();
+    private final LongAdder tierUps = new LongAdder();
+    private final LongAdder deoptimizations = new LongAdder();
+    private final LongAccumulator peakRunMemory = new LongAccumulator(Math::max, 0);
+
+    private Metrics() {
+    }
+
+    /** Registers the global instance with the platform MBean server, once. */
+    static synchronized void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(GLOBAL, name);
+        } catch (JMException e) {
+            System.err.println("Metrics are not available over JMX: " + e.getMessage());
+        }
+    }
+
+    void recordScan(long nanos, int tokenCount) {
+        scanNanos.add(nanos);
+        tokens.add(tokenCount);
+    }
+
+    void recordParse(long nanos) {
+        parseNanos.add(nanos);
+    }
+
+    void recordOptimization(long nanos) {
+        optimizeNanos.add(nanos);
+    }
+
+    void recordCompilation(long nanos) {
+        compileNanos.add(nanos);
+    }
+
+    void recordLabelCollection(long nanos, int nodes, int labelCount, int depth) {
+        labelCollectionNanos.add(nanos);
+        astNodes.add(nodes);
+        labels.add(labelCount);
+        maxNestingDepth.accumulate(depth);
+    }
+
+    void tierUp() {
+        tierUps.increment();
+    }
+
+    void deoptimized() {
+        deoptimizations.increment();
+    }
+
+    void recordRun(long nanos, long statements, long gotos, long written, long read,
+                   long allocated, long peakMemory, boolean failed) {
+        memoryAllocated.add(allocated);
+        peakRunMemory.accumulate(peakMemory);
+        runs.increment();
+        if (failed) runtimeErrors.increment();
+        interpretNanos.add(nanos);
+        statementsExecuted.add(statements);
+        gotoJumps.add(gotos);
+        bytesWritten.add(written);
+        bytesRead.add(read);
+    }
+
+    void report(PrintStream out) {
+        out.println("\nStatistics:");
+        out.println(String.format("  %-22s %12.3f ms", "scan", scanNanos.sum() / 1e6));
+        out.println(String.format("  %-22s %12.3f ms", "parse", parseNanos.sum() / 1e6));
+        out.println(String.format("  %-22s %12.3f ms", "optimize", optimizeNanos.sum() / 1e6));
+        out.println(String.format("  %-22s %12.3f ms", "label collection", labelCollectionNanos.sum() / 1e6));
+        out.println(String.format("  %-22s %12.3f ms", "closure compile", compileNanos.sum() / 1e6));
+        out.println(String.format("  %-22s %12.3f ms", "interpret", interpretNanos.sum() / 1e6));
+        out.println(String.format("  %-22s %12d", "tokens", tokens.sum()));
+        out.println(String.format("  %-22s %12d", "AST nodes", astNodes.sum()));
+        out.println(String.format("  %-22s %12d", "labels", labels.sum()));
+        out.println(String.format("  %-22s %12d", "max nesting depth", maxNestingDepth.get()));
+        out.println(String.format("  %-22s %12d", "runs", runs.sum()));
+        out.println(String.format("  %-22s %12d", "runtime errors", runtimeErrors.sum()));
+        out.println(String.format("  %-22s %12d", "statements executed", statementsExecuted.sum()));
+        out.println(String.format("  %-22s %12d", "goto jumps", gotoJumps.sum()));
+        out.println(String.format("  %-22s %12d", "bytes written", bytesWritten.sum()));
+        out.println(String.format("  %-22s %12d", "bytes read", bytesRead.sum()));
+        out.println(String.format("  %-22s %12d", "memory allocated", memoryAllocated.sum()));
+        out.println(String.format("  %-22s %12d", "peak run memory", peakRunMemory.get()));
+        out.println(String.format("  %-22s %12d", "tier-ups", tierUps.sum()));
+        out.println(String.format("  %-22s %12d", "deoptimizations", deoptimizations.sum()));
+    }
+
+    @Override
+    public long getScanNanos() {
+        return scanNanos.sum();
+    }
+
+    @Override
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    @Override
+    public long getOptimizeNanos() {
+        return optimizeNanos.sum();
+    }
+
+    @Override
+    public long getLabelCollectionNanos() {
+        return labelCollectionNanos.sum();
+    }
+
+    @Override
+    public long getCompileNanos() {
+        return compileNanos.sum();
+    }
+
+    @Override
+    public long getInterpretNanos() {
+        return interpretNanos.sum();
+    }
+
+    @Override
+    public long getTokens() {
+        return tokens.sum();
+    }
+
+    @Override
+    public long getAstNodes() {
+        return astNodes.sum();
+    }
+
+    @Override
+    public long getLabels() {
+        return labels.sum();
+    }
+
+    @Override
+    public long getMaxNestingDepth() {
+        return maxNestingDepth.get();
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+        return runtimeErrors.sum();
+    }
+
+    @Override
+    public long getStatementsExecuted() {
+        return statementsExecuted.sum();
+    }
+
+    @Override
+    public long getGotoJumps() {
+        return gotoJumps.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getMemoryAllocated() {
+        return memoryAllocated.sum();
+    }
+
+    @Override
+    public long getPeakRunMemory() {
+        return peakRunMemory.get();
+    }
+
+    @Override
+    public long getTierUps() {
+        return tierUps.sum();
+    }
+
+    @Override
+    public long getDeoptimizations() {
+        return deoptimizations.sum();
+    }
+
+    @Override
+    public void reset() {
+        scanNanos.reset();
+        parseNanos.reset();
+        optimizeNanos.reset();
+        labelCollectionNanos.reset();
+        compileNanos.reset();
+        interpretNanos.reset();
+        tokens.reset();
+        astNodes.reset();
+        labels.reset();
+        maxNestingDepth.reset();
+        runs.reset();
+        runtimeErrors.reset();
+        statementsExecuted.reset();
+        gotoJumps.reset();
+        bytesWritten.reset();
+        bytesRead.reset();
+        memoryAllocated.reset();
+        peakRunMemory.reset();
+        tierUps.reset();
+        deoptimizations.reset();
+    }
+}
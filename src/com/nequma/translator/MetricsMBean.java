@@ -0,0 +1,37 @@
+package com.nequma.translator;
+
+/**
+ * Management interface of {@link Metrics}, registered as
+ * {@code com.nequma.translator:type=Metrics}. Times are totals in nanoseconds
+ * over every program handled by this JVM; JMX needs the interface to be public.
+ */
+public interface MetricsMBean {
+    long getScanNanos();
+    long getParseNanos();
+    /** Loop recovery, SSA and loop optimizations. */
+    long getOptimizeNanos();
+    long getLabelCollectionNanos();
+    /** Compilation of expressions to closures, or their preparation under -TIERED. */
+    long getCompileNanos();
+    long getInterpretNanos();
+
+    long getTokens();
+    long getAstNodes();
+    long getLabels();
+    long getMaxNestingDepth();
+
+    long getRuns();
+    long getRuntimeErrors();
+    long getStatementsExecuted();
+    long getGotoJumps();
+    long getBytesWritten();
+    long getBytesRead();
+    /** Estimated bytes the finished runs allocated, counted by each run and added when it ends. */
+    long getMemoryAllocated();
+    long getPeakRunMemory();
+    /** Regions compiled by -TIERED, and those given back to the interpreter. */
+    long getTierUps();
+    long getDeoptimizations();
+
+    void reset();
+}
@@ -3,24 +3,37 @@ package com.nequma.translator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 import static com.nequma.translator.TokenType.*;
 
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    private final TokenSource tokens;
     private int current = 0;
     private boolean hadError = false;
 
     Parser(List<Token> tokens) {
+        this(TokenSource.of(tokens));
+    }
+
+    Parser(TokenSource tokens) {
         this.tokens = tokens;
     }
 
     // EBNF: программа = { ( описание | оператор ) ";" } конец_файла.
     List<Stmt> parse() {
         List<Stmt> stmts = new ArrayList<>();
+        parse(stmts::add);
+        return stmts;
+    }
 
+    /**
+     * Parses the program handing every top-level statement to the sink as soon as
+     * it is complete.
+     */
+    void parse(Consumer<Stmt> sink) {
         try {
             while (!isAtEnd()) {
                 // Skip comments
@@ -32,8 +45,10 @@ public class Parser {
 
                 // Parse a declaration or statement
                 List<Stmt> decls = declarationOrStatement();
-                if (decls != null && !decls.isEmpty()) {
-                    stmts.addAll(decls);
+                if (decls != null) {
+                    for (Stmt decl : decls) {
+                        sink.accept(decl);
+                    }
                 }
 
                 // After each declaration or statement, there must be ';'
@@ -47,8 +62,6 @@ public class Parser {
         } catch (ParseError error) {
             // Error already logged
         }
-
-        return stmts;
     }
 
     // EBNF: описание | оператор
@@ -67,12 +80,12 @@ public class Parser {
             // (assignments use := not comma)
             int checkPos = current + 1;
             // Skip comments
-            while (checkPos < tokens.size() && tokens.get(checkPos).type == COMMENT) {
+            while (tokens.get(checkPos).type == COMMENT) {
                 checkPos++;
             }
             
             // If next token after comments is comma, it's definitely a declaration
-            if (checkPos < tokens.size() && tokens.get(checkPos).type == COMMA) {
+            if (tokens.get(checkPos).type == COMMA) {
                 return varDeclaration();
             }
             
@@ -80,27 +93,25 @@ public class Parser {
             int lookaheadPos = current;
             boolean isDeclaration = false;
             
-            if (lookaheadPos < tokens.size() && tokens.get(lookaheadPos).type == IDENTIFIER) {
+            if (tokens.get(lookaheadPos).type == IDENTIFIER) {
                 lookaheadPos++; // skip first identifier
                 
                 // Skip identifiers and commas: identifier { "," identifier }
-                while (lookaheadPos < tokens.size()) {
+                for (;;) {
                     // Skip comments
-                    while (lookaheadPos < tokens.size() && tokens.get(lookaheadPos).type == COMMENT) {
+                    while (tokens.get(lookaheadPos).type == COMMENT) {
                         lookaheadPos++;
                     }
                     
-                    if (lookaheadPos >= tokens.size()) break;
-                    
                     // Check if next is comma
                     if (tokens.get(lookaheadPos).type == COMMA) {
                         lookaheadPos++; // skip comma
                         // Skip comments after comma
-                        while (lookaheadPos < tokens.size() && tokens.get(lookaheadPos).type == COMMENT) {
+                        while (tokens.get(lookaheadPos).type == COMMENT) {
                             lookaheadPos++;
                         }
                         // Should be identifier after comma
-                        if (lookaheadPos >= tokens.size() || tokens.get(lookaheadPos).type != IDENTIFIER) {
+                        if (tokens.get(lookaheadPos).type != IDENTIFIER) {
                             break; // Not a declaration pattern
                         }
                         lookaheadPos++; // skip identifier
@@ -110,33 +121,31 @@ public class Parser {
                 }
                 
                 // Skip comments before colon
-                while (lookaheadPos < tokens.size() && tokens.get(lookaheadPos).type == COMMENT) {
+                while (tokens.get(lookaheadPos).type == COMMENT) {
                     lookaheadPos++;
                 }
                 
                 // Now check if we have COLON followed by type keyword
-                if (lookaheadPos < tokens.size() && tokens.get(lookaheadPos).type == COLON) {
+                if (tokens.get(lookaheadPos).type == COLON) {
                     lookaheadPos++; // skip colon
                     
                     // Skip comments after colon
-                    while (lookaheadPos < tokens.size() && tokens.get(lookaheadPos).type == COMMENT) {
+                    while (tokens.get(lookaheadPos).type == COMMENT) {
                         lookaheadPos++;
                     }
                     
                     // Check if next token is a type keyword
-                    if (lookaheadPos < tokens.size()) {
-                        TokenType nextType = tokens.get(lookaheadPos).type;
-                        if (nextType == INTEGER || nextType == REAL) {
-                            isDeclaration = true;
-                        } else if (nextType == VECTOR) {
-                            // Could be vector declaration
+                    TokenType nextType = tokens.get(lookaheadPos).type;
+                    if (nextType == INTEGER || nextType == REAL) {
+                        isDeclaration = true;
+                    } else if (nextType == VECTOR) {
+                        // Could be vector declaration
+                        lookaheadPos++;
+                        while (tokens.get(lookaheadPos).type == COMMENT) {
                             lookaheadPos++;
-                            while (lookaheadPos < tokens.size() && tokens.get(lookaheadPos).type == COMMENT) {
-                                lookaheadPos++;
-                            }
-                            if (lookaheadPos < tokens.size() && tokens.get(lookaheadPos).type == LBRACKET) {
-                                isDeclaration = true;
-                            }
+                        }
+                        if (tokens.get(lookaheadPos).type == LBRACKET) {
+                            isDeclaration = true;
                         }
                     }
                 }
@@ -168,10 +177,10 @@ public class Parser {
         if (check(IDENTIFIER)) {
             // Look ahead to see if colon follows (skipping comments)
             int checkPos = current + 1;
-            while (checkPos < tokens.size() && tokens.get(checkPos).type == COMMENT) {
+            while (tokens.get(checkPos).type == COMMENT) {
                 checkPos++;
             }
-            if (checkPos < tokens.size() && tokens.get(checkPos).type == COLON) {
+            if (tokens.get(checkPos).type == COLON) {
                 label = advance();
                 advance(); // consume ':'
                 // Skip any comments after colon
@@ -190,7 +199,7 @@ public class Parser {
 
         // Wrap in label if present
         if (label != null) {
-            return new Stmt.Label(label, unlabeled);
+            return at(label.line, new Stmt.Label(label, unlabeled));
         }
 
         return unlabeled;
@@ -205,20 +214,21 @@ public class Parser {
 
         if (isAtEnd()) return null;
 
-        if (match(BST)) return compoundStatement(); // составной
-        if (match(GOTO)) return gotoStatement();     // перехода
-        if (match(IF)) return ifStatement();         // условный
-        if (match(LOOP)) return loopStatement();     // цикла
-        if (match(READ)) return readStatement();     // ввода
-        if (match(WRITE)) return writeStatement();   // вывода
+        int line = peek().line;
+        if (match(BST)) return at(line, compoundStatement()); // составной
+        if (match(GOTO)) return at(line, gotoStatement());     // перехода
+        if (match(IF)) return at(line, ifStatement());         // условный
+        if (match(LOOP)) return at(line, loopStatement());     // цикла
+        if (match(READ)) return at(line, readStatement());     // ввода
+        if (match(WRITE)) return at(line, writeStatement());   // вывода
 
         // Check for assignment
         if (check(IDENTIFIER)) {
-            return assignmentStatement(); // присваивание
+            return at(line, assignmentStatement()); // присваивание
         }
 
         // Empty statement
-        return new Stmt.Empty(); // пустой
+        return at(line, new Stmt.Empty()); // пустой
     }
 
     // EBNF: составной = BST { оператор ";" } EST.
@@ -311,7 +321,7 @@ public class Parser {
             loopBody = (Stmt.Block) stmts.get(0);
         } else {
             // Multiple statements or non-block statement - wrap in Block
-            loopBody = new Stmt.Block(stmts);
+            loopBody = at(stmts.isEmpty() ? previous().line : stmts.get(0).line, new Stmt.Block(stmts));
         }
         
         return new Stmt.Loop(loopBody);
@@ -396,7 +406,7 @@ public class Parser {
             }
             Expr.Variable var = (Expr.Variable) expr;
             Expr value = expression();
-            return new Stmt.Expression(new Expr.Assign(var.name, value));
+            return new Stmt.Expression(new Expr.Assign(var.name, var.index, value));
         }
 
         throw error(peek(), "Expected ':=' in assignment statement");
@@ -465,7 +475,7 @@ public class Parser {
         // Create Var statements for each identifier
         List<Stmt> declarations = new ArrayList<>();
         for (Token name : identifiers) {
-            declarations.add(new Stmt.Var(name, null, isVector, size, type));
+            declarations.add(at(name.line, new Stmt.Var(name, null, isVector, size, type)));
         }
 
         return declarations;
@@ -476,15 +486,15 @@ public class Parser {
     private Expr variable() {
         Token name = consume(IDENTIFIER, "Expected variable name");
 
-        // Handle array indexing if present
-        if (match(LBRACKET)) {
-            Expr index = expression(); // Can be identifier or integer
-            consume(RBRACKET, "Expected ']' after index");
-            // For now, just return the variable name
-            // In a full implementation, you'd create an ArrayAccess expression
-        }
+        return new Expr.Variable(name, index());
+    }
 
-        return new Expr.Variable(name);
+    // EBNF says индекс is an identifier or an integer; any expression is accepted
+    private Expr index() {
+        if (!match(LBRACKET)) return null;
+        Expr index = expression();
+        consume(RBRACKET, "Expected ']' after index");
+        return index;
     }
 
     // Expression parsing methods following EBNF
@@ -545,7 +555,8 @@ public class Parser {
         }
 
         if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
+            Token name = previous();
+            return new Expr.Variable(name, index());
         }
 
         if (match(LPAREN)) {
@@ -558,6 +569,11 @@ public class Parser {
     }
 
     // Helper methods
+    private static <T extends Stmt> T at(int line, T stmt) {
+        stmt.line = line;
+        return stmt;
+    }
+
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (check(type)) {
@@ -583,12 +599,13 @@ public class Parser {
     }
 
     private boolean checkNext(TokenType type, int offset) {
-        if (current + offset >= tokens.size()) return false;
         return tokens.get(current + offset).type == type;
     }
 
     private Token advance() {
         if (!isAtEnd()) current++;
+        // Lookahead only goes forward, so nothing before the previous token is needed again
+        tokens.release(current - 1);
         return previous();
     }
 
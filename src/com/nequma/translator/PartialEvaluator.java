@@ -0,0 +1,398 @@
+package com.nequma.translator;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Specializes a program for read statements whose values are known in advance,
+ * given by variable name or by the place of the value among everything the
+ * program reads (1 for the first variable of the first read, and so on). Such
+ * reads become assignments of the value, and the rest of the program is then
+ * evaluated as far as the known values reach:
+ *
+ *   - expressions over known variables fold to literals, with the interpreter's
+ *     own arithmetic, so that an operation that would fail is left for the run;
+ *   - an if whose condition is known gives way to its branch;
+ *   - a loop recovered from goto ({@link Stmt.While}) whose condition stays
+ *     known on every pass is unrolled, as long as its body has no goto of its
+ *     own and the copies stay small.
+ *
+ * Where control flow joins at a label nothing is assumed about the values;
+ * {@link SsaOptimizer} then propagates what it can across the jumps and drops
+ * the assignments nothing reads any more. The result is an ordinary program
+ * that reads only the values that were not given.
+ */
+final class PartialEvaluator {
+    // Passes of one loop and statements they may add before it is left rolled
+    private static final int MAX_PASSES = 64;
+    private static final int MAX_UNROLLED = 512;
+    // Folds constants by running the interpreter's operators on literals
+    private static final Interpreter FOLDER = new Interpreter(new BufferedReader(Reader.nullReader()),
+            new PrintStream(OutputStream.nullOutputStream()), false);
+
+    private final Map<String, Object> byName;
+    private final Map<Integer, Object> byPosition;
+    // Place of every variable of a read statement among the values read, from 1
+    private final Map<Expr, Integer> positions = new IdentityHashMap<>();
+    // Names declared as vectors; a plain read of one fills the vector, so no value stands for it
+    private final Set<String> vectors = new HashSet<>();
+    int folded;
+    int unrolled;
+
+    PartialEvaluator(Map<String, Object> byName, Map<Integer, Object> byPosition) {
+        this.byName = byName;
+        this.byPosition = byPosition;
+    }
+
+    /** A value given for a read, taken the way the interpreter takes an input line. */
+    static Object value(String input) {
+        try {
+            if (input.contains(".")) return Double.parseDouble(input);
+            return Integer.parseInt(input);
+        } catch (NumberFormatException e) {
+            return input;
+        }
+    }
+
+    /** Throws IllegalArgumentException when a position is past the last value the program reads. */
+    List<Stmt> specialize(List<Stmt> stmts, boolean optimize) {
+        number(stmts);
+        for (int position : byPosition.keySet()) {
+            if (position > positions.size()) {
+                throw new IllegalArgumentException("-FIX=#" + position + " is past the last read: the program reads "
+                        + positions.size() + " value" + (positions.size() == 1 ? "" : "s") + ".");
+            }
+        }
+        List<Stmt> residual = list(LoopRecovery.recover(stmts), new HashMap<>());
+        return optimize ? new SsaOptimizer(residual).optimize() : residual;
+    }
+
+    private void number(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            number(stmt);
+        }
+    }
+
+    private void number(Stmt stmt) {
+        if (stmt instanceof Stmt.Var && ((Stmt.Var) stmt).isVector) vectors.add(((Stmt.Var) stmt).name.lexeme);
+        if (stmt instanceof Stmt.Read) {
+            for (Expr variable : ((Stmt.Read) stmt).variables) {
+                positions.put(variable, positions.size() + 1);
+            }
+        }
+        for (Stmt child : children(stmt)) {
+            number(child);
+        }
+    }
+
+    // --- Statements, with the values known before them in the store ---
+
+    private List<Stmt> list(List<Stmt> stmts, Map<String, Object> store) {
+        List<Stmt> residual = new ArrayList<>();
+        for (Stmt stmt : stmts) {
+            stmt(stmt, store, residual);
+        }
+        return residual;
+    }
+
+    private Stmt single(Stmt stmt, Map<String, Object> store) {
+        if (stmt == null) return null;
+        List<Stmt> residual = new ArrayList<>();
+        stmt(stmt, store, residual);
+        if (residual.size() == 1) return residual.get(0);
+        return at(residual.isEmpty() ? new Stmt.Empty() : new Stmt.Block(residual), stmt.line);
+    }
+
+    private void stmt(Stmt stmt, Map<String, Object> store, List<Stmt> residual) {
+        if (stmt instanceof Stmt.Block) {
+            residual.add(at(new Stmt.Block(list(((Stmt.Block) stmt).stmts, store)), stmt.line));
+        } else if (stmt instanceof Stmt.Var) {
+            declare((Stmt.Var) stmt, store, residual);
+        } else if (stmt instanceof Stmt.Expression) {
+            assign((Stmt.Expression) stmt, store, residual);
+        } else if (stmt instanceof Stmt.Read) {
+            read((Stmt.Read) stmt, store, residual);
+        } else if (stmt instanceof Stmt.Write) {
+            List<Object> arguments = new ArrayList<>();
+            for (Object argument : ((Stmt.Write) stmt).arguments) {
+                arguments.add(argument instanceof Expr ? expr((Expr) argument, store) : argument);
+            }
+            residual.add(at(new Stmt.Write(arguments), stmt.line));
+        } else if (stmt instanceof Stmt.If) {
+            branch((Stmt.If) stmt, store, residual);
+        } else if (stmt instanceof Stmt.While) {
+            loop((Stmt.While) stmt, store, residual);
+        } else if (stmt instanceof Stmt.Loop) {
+            // Left only through goto, so whatever follows is reached by a jump
+            forget(store, stmt);
+            residual.add(at(new Stmt.Loop((Stmt.Block) single(((Stmt.Loop) stmt).body, store)), stmt.line));
+            store.clear();
+        } else if (stmt instanceof Stmt.Label) {
+            // Jumps from anywhere arrive here
+            store.clear();
+            Stmt.Label label = (Stmt.Label) stmt;
+            residual.add(at(new Stmt.Label(label.name, single(label.body, store)), stmt.line));
+        } else if (stmt instanceof Stmt.Goto) {
+            residual.add(at(new Stmt.Goto(((Stmt.Goto) stmt).label), stmt.line));
+            store.clear();
+        } else {
+            residual.add(at(new Stmt.Empty(), stmt.line));
+        }
+    }
+
+    private void declare(Stmt.Var var, Map<String, Object> store, List<Stmt> residual) {
+        Expr initializer = expr(var.initializer, store);
+        Expr size = expr(var.size, store);
+        residual.add(at(new Stmt.Var(var.name, initializer, var.isVector, size, var.type), var.line));
+        Object value = var.isVector ? null
+                : initializer != null ? constant(initializer)
+                : "integer".equals(var.type) ? (Object) 0
+                : "real".equals(var.type) ? (Object) 0.0 : null;
+        known(store, var.name.lexeme, value);
+    }
+
+    private void assign(Stmt.Expression stmt, Map<String, Object> store, List<Stmt> residual) {
+        if (!(stmt.expr instanceof Expr.Assign)) {
+            residual.add(at(new Stmt.Expression(expr(stmt.expr, store)), stmt.line));
+            return;
+        }
+        Expr.Assign assign = (Expr.Assign) stmt.expr;
+        Expr index = expr(assign.index, store);
+        Expr value = expr(assign.value, store);
+        residual.add(at(new Stmt.Expression(like(new Expr.Assign(assign.name, index, value), assign)), stmt.line));
+        // Vectors are never known, so only plain variables change the store
+        if (index == null) known(store, assign.name.lexeme, constant(value));
+    }
+
+    // Given values become assignments; the others stay reads, in their order
+    private void read(Stmt.Read read, Map<String, Object> store, List<Stmt> residual) {
+        List<Expr> remaining = new ArrayList<>();
+        for (Expr target : read.variables) {
+            Expr.Variable variable = (Expr.Variable) target;
+            Object given = given(variable);
+            if (given == null) {
+                remaining.add(like(new Expr.Variable(variable.name, expr(variable.index, store)), variable));
+                if (variable.index == null) store.remove(variable.name.lexeme);
+                continue;
+            }
+            if (!remaining.isEmpty()) {
+                residual.add(at(new Stmt.Read(remaining), read.line));
+                remaining = new ArrayList<>();
+            }
+            Expr.Assign assign = like(new Expr.Assign(variable.name, expr(variable.index, store),
+                    new Expr.Literal(given)), variable);
+            residual.add(at(new Stmt.Expression(assign), read.line));
+            if (variable.index == null) known(store, variable.name.lexeme, given);
+        }
+        if (!remaining.isEmpty()) residual.add(at(new Stmt.Read(remaining), read.line));
+    }
+
+    private Object given(Expr.Variable variable) {
+        if (variable.index == null && vectors.contains(variable.name.lexeme)) return null;
+        Integer position = positions.get(variable);
+        if (position != null && byPosition.containsKey(position)) return byPosition.get(position);
+        return variable.index == null ? byName.get(variable.name.lexeme) : null;
+    }
+
+    private void branch(Stmt.If stmt, Map<String, Object> store, List<Stmt> residual) {
+        Expr condition = expr(stmt.condition, store);
+        Object known = constant(condition);
+        // A branch holding a label can be jumped into, so it stays
+        if (known instanceof Boolean && !contains(stmt, Stmt.Label.class)) {
+            Stmt taken = (boolean) known ? stmt.thenBranch : stmt.elseBranch;
+            if (taken != null) stmt(taken, store, residual);
+            return;
+        }
+        Map<String, Object> otherwise = new HashMap<>(store);
+        Stmt thenBranch = single(stmt.thenBranch, store);
+        Stmt elseBranch = single(stmt.elseBranch, otherwise);
+        // After the if only what both branches agree on is known
+        store.entrySet().removeIf(entry -> !same(entry.getValue(), otherwise.get(entry.getKey())));
+        residual.add(at(new Stmt.If(condition, thenBranch, elseBranch), stmt.line));
+    }
+
+    private void loop(Stmt.While loop, Map<String, Object> store, List<Stmt> residual) {
+        if (!contains(loop.body, Stmt.Goto.class)) {
+            Map<String, Object> passes = new HashMap<>(store);
+            List<Stmt> unrolledBody = unroll(loop, passes);
+            if (unrolledBody != null) {
+                unrolled++;
+                if (!unrolledBody.isEmpty()) residual.add(at(new Stmt.Block(unrolledBody), loop.line));
+                store.clear();
+                store.putAll(passes);
+                return;
+            }
+        }
+        // Only what the loop never assigns keeps its value through it
+        forget(store, loop);
+        Expr condition = expr(loop.condition, store);
+        Stmt.Block body = (Stmt.Block) single(loop.body, new HashMap<>(store));
+        residual.add(at(new Stmt.While(condition, loop.until, loop.testFirst, body), loop.line));
+    }
+
+    // The passes of the loop one after another, or null once the condition is not known
+    private List<Stmt> unroll(Stmt.While loop, Map<String, Object> store) {
+        List<Stmt> passes = new ArrayList<>();
+        for (int pass = 0; ; pass++) {
+            if (loop.testFirst || pass > 0) {
+                Object known = constant(expr(loop.condition, store));
+                if (!(known instanceof Boolean)) return null;
+                if ((boolean) known == loop.until) return passes;
+            }
+            if (pass == MAX_PASSES) return null;
+            passes.addAll(list(loop.body.stmts, store));
+            if (count(passes) > MAX_UNROLLED) return null;
+        }
+    }
+
+    // --- Expressions ---
+
+    // Always a new tree: an unrolled loop has its body many times, and the IR tells nodes apart by identity
+    private Expr expr(Expr expr, Map<String, Object> store) {
+        if (expr == null) return null;
+        if (expr instanceof Expr.Literal) return like(new Expr.Literal(((Expr.Literal) expr).value), expr);
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.index != null) {
+                return like(new Expr.Variable(variable.name, expr(variable.index, store)), expr);
+            }
+            Object value = store.get(variable.name.lexeme);
+            if (value == null) return like(new Expr.Variable(variable.name), expr);
+            folded++;
+            return like(new Expr.Literal(value), expr);
+        }
+        if (expr instanceof Expr.Grouping) {
+            Expr inner = expr(((Expr.Grouping) expr).expr, store);
+            return inner instanceof Expr.Literal ? inner : like(new Expr.Grouping(inner), expr);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return fold(like(new Expr.Unary(unary.operator, expr(unary.right, store)), expr));
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return fold(like(new Expr.Binary(expr(binary.left, store), binary.operator,
+                    expr(binary.right, store)), expr));
+        }
+        // Assignments are statements, and loop nodes only come from compiling
+        throw new IllegalArgumentException("Unexpected expression " + expr.getClass().getSimpleName());
+    }
+
+    // An operation on literals becomes the literal of its value, unless it would fail
+    private Expr fold(Expr expr) {
+        boolean literals = expr instanceof Expr.Unary
+                ? ((Expr.Unary) expr).right instanceof Expr.Literal
+                : ((Expr.Binary) expr).left instanceof Expr.Literal && ((Expr.Binary) expr).right instanceof Expr.Literal;
+        if (!literals) return expr;
+        try {
+            Object value = expr.accept(FOLDER);
+            if (value == null) return expr;
+            folded++;
+            return like(new Expr.Literal(value), expr);
+        } catch (RuntimeError | ArithmeticException e) {
+            // Left for the run to report, if it ever gets there; mod by zero throws the latter
+            return expr;
+        }
+    }
+
+    private static Object constant(Expr expr) {
+        return expr instanceof Expr.Literal ? ((Expr.Literal) expr).value : null;
+    }
+
+    // --- Helpers ---
+
+    private static void known(Map<String, Object> store, String name, Object value) {
+        if (value instanceof Integer || value instanceof Double || value instanceof Boolean) {
+            store.put(name, value);
+        } else {
+            store.remove(name);
+        }
+    }
+
+    // Equal as Java objects: 1 and 1.0 are different values
+    private static boolean same(Object a, Object b) {
+        return a != null && a.equals(b);
+    }
+
+    private static void forget(Map<String, Object> store, Stmt stmt) {
+        Set<String> assigned = new HashSet<>();
+        assigned(stmt, assigned);
+        store.keySet().removeAll(assigned);
+    }
+
+    private static void assigned(Stmt stmt, Set<String> names) {
+        if (stmt instanceof Stmt.Var) {
+            names.add(((Stmt.Var) stmt).name.lexeme);
+        } else if (stmt instanceof Stmt.Expression && ((Stmt.Expression) stmt).expr instanceof Expr.Assign) {
+            names.add(((Expr.Assign) ((Stmt.Expression) stmt).expr).name.lexeme);
+        } else if (stmt instanceof Stmt.Read) {
+            for (Expr variable : ((Stmt.Read) stmt).variables) {
+                names.add(((Expr.Variable) variable).name.lexeme);
+            }
+        }
+        for (Stmt child : children(stmt)) {
+            assigned(child, names);
+        }
+    }
+
+    private static boolean contains(Stmt stmt, Class<? extends Stmt> kind) {
+        if (kind.isInstance(stmt)) return true;
+        for (Stmt child : children(stmt)) {
+            if (contains(child, kind)) return true;
+        }
+        return false;
+    }
+
+    private static int count(List<Stmt> stmts) {
+        int count = 0;
+        for (Stmt stmt : stmts) {
+            count += count(stmt);
+        }
+        return count;
+    }
+
+    private static int count(Stmt stmt) {
+        int count = 1;
+        for (Stmt child : children(stmt)) {
+            count += count(child);
+        }
+        return count;
+    }
+
+    private static List<Stmt> children(Stmt stmt) {
+        List<Stmt> children = new ArrayList<>();
+        if (stmt instanceof Stmt.Block) {
+            children.addAll(((Stmt.Block) stmt).stmts);
+        } else if (stmt instanceof Stmt.Loop) {
+            children.add(((Stmt.Loop) stmt).body);
+        } else if (stmt instanceof Stmt.While) {
+            children.add(((Stmt.While) stmt).body);
+        } else if (stmt instanceof Stmt.If) {
+            if (((Stmt.If) stmt).thenBranch != null) children.add(((Stmt.If) stmt).thenBranch);
+            if (((Stmt.If) stmt).elseBranch != null) children.add(((Stmt.If) stmt).elseBranch);
+        } else if (stmt instanceof Stmt.Label && ((Stmt.Label) stmt).body != null) {
+            children.add(((Stmt.Label) stmt).body);
+        }
+        return children;
+    }
+
+    // Copies keep what the Checker proved about the node they replace
+    private static <T extends Expr> T like(T copy, Expr original) {
+        copy.proven = original.proven;
+        return copy;
+    }
+
+    private static <T extends Stmt> T at(T stmt, int line) {
+        stmt.line = line;
+        return stmt;
+    }
+}
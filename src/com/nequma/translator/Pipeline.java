@@ -0,0 +1,195 @@
+package com.nequma.translator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Scans, parses and executes a program at the same time.
+ * The scanner runs on its own thread and fills a bounded token queue, the parser
+ * runs on another and hands over completed top-level statements, and the calling
+ * thread executes them as soon as they arrive. A goto to a label that has not been
+ * parsed yet waits for it.
+ *
+ * Only top-level statements are handed over one by one, so a program wrapped in
+ * a single begin ... end starts once that block is parsed. Tokens are dropped as
+ * soon as the parser has moved past them; parsed statements are kept, since a
+ * goto may jump back to any of them.
+ */
+final class Pipeline {
+    private static final int TOKEN_QUEUE_CAPACITY = 4096;
+    private static final int STMT_QUEUE_CAPACITY = 256;
+
+    // Thrown and caught within one run, never serialized
+    @SuppressWarnings("serial")
+    private static final class Stopped extends RuntimeException {}
+
+    private final String source;
+    private final Interpreter interpreter;
+    private final Program.Options options;
+
+    Pipeline(String source, Interpreter interpreter, Program.Options options) {
+        this.source = source;
+        this.interpreter = interpreter;
+        this.options = options;
+    }
+
+    /** Returns false when scanning or parsing failed part way through the program. */
+    boolean run() {
+        TokenQueue tokens = new TokenQueue();
+        StmtQueue stmts = new StmtQueue();
+        Parser parser = new Parser(tokens);
+
+        Thread scannerThread = new Thread(() -> {
+            try {
+                Events.Scan event = new Events.Scan();
+                event.begin();
+                long start = System.nanoTime();
+                int[] count = {0};
+                new Scanner(source).scanTokens(token -> {
+                    count[0]++;
+                    tokens.accept(token);
+                });
+                Metrics.GLOBAL.recordScan(System.nanoTime() - start, count[0]);
+                event.tokens = count[0];
+                event.commit();
+            } catch (Stopped ignored) {
+                // Execution finished before the whole source was scanned
+            }
+        }, "translator-scanner");
+        Thread parserThread = new Thread(() -> {
+            try {
+                Events.Parse event = new Events.Parse();
+                event.begin();
+                long start = System.nanoTime();
+                int[] count = {0};
+                parser.parse(stmt -> {
+                    count[0]++;
+                    stmts.accept(stmt);
+                });
+                Metrics.GLOBAL.recordParse(System.nanoTime() - start);
+                event.statements = count[0];
+                event.commit();
+                stmts.close();
+            } catch (Stopped ignored) {
+                // Execution finished before the whole program was parsed
+            } catch (RuntimeException e) {
+                stmts.close();
+                throw e;
+            }
+        }, "translator-parser");
+        scannerThread.setDaemon(true);
+        parserThread.setDaemon(true);
+        scannerThread.start();
+        parserThread.start();
+
+        interpreter.setFeed(stmts);
+        try {
+            interpreter.interpret(Program.open(options));
+        } finally {
+            interpreter.setFeed(null);
+            scannerThread.interrupt();
+            parserThread.interrupt();
+        }
+
+        try {
+            parserThread.join();
+            scannerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !parser.hadError();
+    }
+
+    private static <T> void put(BlockingQueue<T> queue, T item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            throw new Stopped();
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            throw new Stopped();
+        }
+    }
+
+    /** Tokens travelling from the scanner thread to the parser thread. */
+    private static final class TokenQueue implements TokenSource, Consumer<Token> {
+        private final BlockingQueue<Token> queue = new ArrayBlockingQueue<>(TOKEN_QUEUE_CAPACITY);
+        // Tokens the parser may still look at, starting from absolute position offset
+        private final List<Token> window = new ArrayList<>();
+        private int offset = 0;
+        private Token eof = null;
+
+        @Override
+        public void accept(Token token) {
+            put(queue, token);
+        }
+
+        @Override
+        public Token get(int index) {
+            while (index - offset >= window.size()) {
+                if (eof != null) return eof;
+                Token token = take(queue);
+                if (token.type == TokenType.EOF) eof = token;
+                window.add(token);
+            }
+            return window.get(index - offset);
+        }
+
+        @Override
+        public void release(int index) {
+            int drop = Math.min(index - offset, window.size());
+            if (drop <= 0) return;
+            window.subList(0, drop).clear();
+            offset += drop;
+        }
+    }
+
+    /** Top-level statements travelling from the parser thread to the executing thread. */
+    private static final class StmtQueue implements Program.Feed, Consumer<Stmt> {
+        private static final Stmt END = new Stmt.Empty();
+
+        private final BlockingQueue<Stmt> queue = new ArrayBlockingQueue<>(STMT_QUEUE_CAPACITY);
+        private boolean ended = false;
+
+        @Override
+        public void accept(Stmt stmt) {
+            put(queue, stmt);
+        }
+
+        void close() {
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // The executing thread is gone and nobody is waiting for the end
+            }
+        }
+
+        @Override
+        public boolean fill(Program program) {
+            if (ended) return false;
+            Stmt stmt = take(queue);
+            if (stmt == END) {
+                ended = true;
+                return false;
+            }
+            program.append(stmt);
+            // Take whatever else is ready without waiting
+            while ((stmt = queue.poll()) != null) {
+                if (stmt == END) {
+                    ended = true;
+                    break;
+                }
+                program.append(stmt);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.nequma.translator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * What runs of a program under -PGO have seen, kept next to the program and
+ * added to by every run: how often each loop went round, each label was jumped
+ * to, each goto was taken and each if went either way, and which compiled
+ * regions found operands other than integers.
+ *
+ * A later run hands the profile to {@link Tiering} before it starts, so the
+ * loops that were hot are compiled straight away, regions that deoptimized are
+ * compiled for any operands, and branches never taken are left out.
+ *
+ * Counts are kept by {@link Stmt#id}, and the program's fingerprint is saved
+ * with them; a profile of a program that has since changed is started afresh.
+ */
+final class Profile {
+    private static final int MAGIC = 0x4E515046; // "NQPF"
+    private static final int VERSION = 1;
+
+    final long fingerprint;
+    /**
+     * Back-edges of the loop whose body has the id, jumps to a label, times a
+     * goto was taken, or times the then branch of an if ran.
+     */
+    final long[] counts;
+    /** Times an if ran its else branch, or nothing. */
+    final long[] untaken;
+    /** Compiled regions, by the id heading them, that needed more than integers. */
+    final boolean[] generic;
+
+    Profile(Program program) {
+        this(Checkpoint.fingerprint(program), program.statements.size());
+    }
+
+    private Profile(long fingerprint, int statements) {
+        this.fingerprint = fingerprint;
+        this.counts = new long[statements];
+        this.untaken = new long[statements];
+        this.generic = new boolean[statements];
+    }
+
+    void branch(Stmt.If stmt, boolean taken) {
+        if (taken) {
+            counts[stmt.id]++;
+        } else {
+            untaken[stmt.id]++;
+        }
+    }
+
+    /** Adds the back-edge and jump counts of a run. */
+    void add(int[] backEdges) {
+        for (int id = 0; id < counts.length && id < backEdges.length; id++) {
+            counts[id] += backEdges[id];
+        }
+    }
+
+    /** Whether the if has been seen often enough for a branch it never took to count as cold. */
+    boolean settled(Stmt.If stmt, int threshold) {
+        return counts[stmt.id] + untaken[stmt.id] >= threshold;
+    }
+
+    /** Reads the profile of the program, or returns null when there is none for it yet. */
+    static Profile read(Path path, Program program) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a profile.");
+            }
+            long fingerprint = in.readLong();
+            int statements = in.readInt();
+            if (fingerprint != Checkpoint.fingerprint(program) || statements != program.statements.size()) {
+                return null;
+            }
+            Profile profile = new Profile(fingerprint, statements);
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                int id = in.readInt();
+                profile.counts[id] = in.readLong();
+                profile.untaken[id] = in.readLong();
+                profile.generic[id] = in.readBoolean();
+            }
+            return profile;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /** Writes the statements that have been seen at all, through a temporary file like a checkpoint. */
+    void write(Path path) throws IOException {
+        int entries = 0;
+        for (int id = 0; id < counts.length; id++) {
+            if (seen(id)) entries++;
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(counts.length);
+            out.writeInt(entries);
+            for (int id = 0; id < counts.length; id++) {
+                if (!seen(id)) continue;
+                out.writeInt(id);
+                out.writeLong(counts[id]);
+                out.writeLong(untaken[id]);
+                out.writeBoolean(generic[id]);
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean seen(int id) {
+        return counts[id] != 0 || untaken[id] != 0 || generic[id];
+    }
+}
@@ -0,0 +1,180 @@
+package com.nequma.translator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Execution profiler behind -PROF.
+ * Every statement execution, goto jump and label arrival is counted exactly; that
+ * is a couple of array increments per statement. Time is only measured for a
+ * sample of roughly one statement in {@code interval} and scaled up, and the same
+ * samples feed the collapsed stacks for flame graphs, where blocks and loops are
+ * frames and statements are leaves.
+ */
+final class Profiler implements ExecutionListener {
+    static final int DEFAULT_INTERVAL = 64;
+
+    private final Program program;
+    private final int interval;
+    private long[] executions = new long[0];
+    private long[] sampledNanos = new long[0];
+    private long[] gotoJumps = new long[0];
+    private final Map<Stmt.Label, long[]> labelJumps = new HashMap<>();
+    private final Map<String, long[]> stacks = new HashMap<>();
+
+    private int countdown;
+    private int seed = 0x2545F491;
+    private Stmt sampled = null;
+    private String sampledStack = null;
+    private long sampleStart;
+
+    Profiler(Program program) {
+        this(program, DEFAULT_INTERVAL);
+    }
+
+    Profiler(Program program, int interval) {
+        this.program = program;
+        this.interval = interval;
+        this.countdown = nextCountdown();
+    }
+
+    @Override
+    public void beforeStatement(Stmt stmt, List<Interpreter.Frame> stack) {
+        if (stmt.id >= executions.length) grow();
+        executions[stmt.id]++;
+        if (--countdown > 0) return;
+
+        countdown = nextCountdown();
+        sampled = stmt;
+        sampledStack = stackKey(stmt, stack);
+        sampleStart = System.nanoTime();
+    }
+
+    @Override
+    public void afterStatement(Stmt stmt) {
+        if (stmt != sampled) return;
+        long nanos = (System.nanoTime() - sampleStart) * interval;
+        sampledNanos[stmt.id] += nanos;
+        stacks.computeIfAbsent(sampledStack, key -> new long[1])[0] += nanos;
+        sampled = null;
+    }
+
+    @Override
+    public void onGoto(Stmt.Goto from, Program.LabelInfo target) {
+        if (from.id >= gotoJumps.length) grow();
+        gotoJumps[from.id]++;
+        labelJumps.computeIfAbsent(target.label(), key -> new long[1])[0]++;
+    }
+
+    /** Prints statements ranked by estimated time, then goto edges and labels. */
+    void report(PrintStream out) {
+        Map<Integer, long[]> lines = new TreeMap<>();
+        Map<Integer, List<String>> kinds = new HashMap<>();
+        long totalNanos = 0;
+        for (int id = 0; id < executions.length; id++) {
+            if (executions[id] == 0) continue;
+            Stmt stmt = program.statements.get(id);
+            long[] line = lines.computeIfAbsent(stmt.line, key -> new long[2]);
+            line[0] += executions[id];
+            line[1] += sampledNanos[id];
+            totalNanos += sampledNanos[id];
+            List<String> names = kinds.computeIfAbsent(stmt.line, key -> new ArrayList<>());
+            if (!names.contains(kind(stmt))) names.add(kind(stmt));
+        }
+
+        List<Map.Entry<Integer, long[]>> ranked = new ArrayList<>(lines.entrySet());
+        ranked.sort((a, b) -> a.getValue()[1] != b.getValue()[1]
+                ? Long.compare(b.getValue()[1], a.getValue()[1])
+                : Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        out.println("\nProfile (time sampled on 1 in " + interval + " statements):");
+        out.println(String.format("%8s %14s %12s %7s  %s", "line", "executions", "time ms", "time %", "statements"));
+        for (Map.Entry<Integer, long[]> entry : ranked) {
+            long[] line = entry.getValue();
+            out.println(String.format("%8d %14d %12.3f %6.1f%%  %s", entry.getKey(), line[0], line[1] / 1e6,
+                    totalNanos == 0 ? 0.0 : 100.0 * line[1] / totalNanos,
+                    String.join(", ", kinds.get(entry.getKey()))));
+        }
+
+        List<Stmt.Goto> edges = new ArrayList<>();
+        for (int id = 0; id < gotoJumps.length; id++) {
+            if (gotoJumps[id] > 0) edges.add((Stmt.Goto) program.statements.get(id));
+        }
+        edges.sort((a, b) -> Long.compare(gotoJumps[b.id], gotoJumps[a.id]));
+        if (!edges.isEmpty()) {
+            out.println("\nGoto edges:");
+            for (Stmt.Goto edge : edges) {
+                Program.LabelInfo target = program.labels.get(edge.label.lexeme);
+                out.println(String.format("%14d  line %d -> %s (line %d)", gotoJumps[edge.id], edge.line,
+                        edge.label.lexeme, target == null ? 0 : target.label().line));
+            }
+        }
+
+        List<Stmt.Label> labels = new ArrayList<>();
+        for (Program.LabelInfo info : program.labels.values()) {
+            labels.add(info.label());
+        }
+        labels.sort((a, b) -> Long.compare(arrivals(b), arrivals(a)));
+        if (!labels.isEmpty()) {
+            out.println("\nLabels:");
+            out.println(String.format("%14s %14s  %s", "arrivals", "by goto", "label"));
+            for (Stmt.Label label : labels) {
+                long[] jumps = labelJumps.get(label);
+                out.println(String.format("%14d %14d  %s (line %d)", arrivals(label),
+                        jumps == null ? 0 : jumps[0], label.name.lexeme, label.line));
+            }
+        }
+    }
+
+    /** Writes sampled stacks in the collapsed format read by flamegraph.pl, weighted in nanoseconds. */
+    void writeCollapsed(Writer out) throws IOException {
+        List<String> keys = new ArrayList<>(stacks.keySet());
+        keys.sort(null);
+        for (String key : keys) {
+            out.write(key + " " + stacks.get(key)[0] + "\n");
+        }
+    }
+
+    private long arrivals(Stmt.Label label) {
+        return label.id < executions.length ? executions[label.id] : 0;
+    }
+
+    // Frames above the root were pushed by the statement their parent frame stands on
+    private static String stackKey(Stmt stmt, List<Interpreter.Frame> stack) {
+        StringBuilder key = new StringBuilder("program");
+        for (int i = 1; i < stack.size(); i++) {
+            Interpreter.Frame parent = stack.get(i - 1);
+            int line = parent.index < parent.stmts.size() ? parent.stmts.get(parent.index).line : 0;
+            key.append(';').append(stack.get(i).isLoop ? "loop:" : "block:").append(line);
+        }
+        return key.append(';').append(kind(stmt)).append(':').append(stmt.line).toString();
+    }
+
+    static String kind(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) return "assign";
+        return stmt.getClass().getSimpleName().toLowerCase();
+    }
+
+    private void grow() {
+        int size = Math.max(program.statements.size(), executions.length * 2);
+        executions = Arrays.copyOf(executions, size);
+        sampledNanos = Arrays.copyOf(sampledNanos, size);
+        gotoJumps = Arrays.copyOf(gotoJumps, size);
+    }
+
+    // Sampling period jittered around the interval, so that loops whose length
+    // divides the interval are not always sampled on the same statement
+    private int nextCountdown() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return 1 + Math.floorMod(seed, 2 * interval);
+    }
+}
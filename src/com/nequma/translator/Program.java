@@ -0,0 +1,289 @@
+package com.nequma.translator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed program together with its label table.
+ * A single compiled instance may be executed by any number of interpreters at
+ * the same time. Its statements, ids and labels never change after compilation;
+ * the one exception is {@link Expr#closure}, which {@link Tiering} installs and
+ * removes during runs, under its own lock, through a volatile field.
+ */
+final class Program {
+    /** Supplies the rest of an open program while it is being executed. */
+    interface Feed {
+        /**
+         * Blocks until at least one more top-level statement has been appended to
+         * the program. Returns false once the program is complete.
+         */
+        boolean fill(Program program);
+    }
+
+    /** How a program is compiled; each caller passes its own, so runs never share them. */
+    static final class Options {
+        /** Optimized, with closures compiled up front: what a run without flags gets. */
+        static final Options DEFAULT = new Options(true, true, 0);
+
+        /** Whether loops are recovered and the SSA and loop optimizers run. */
+        final boolean optimize;
+        /** Whether expressions get closures rather than being walked as trees. */
+        final boolean closures;
+        /** Reaches of a loop or label before its code is compiled; 0 compiles it all up front. */
+        final int tierThreshold;
+
+        Options(boolean optimize, boolean closures, int tierThreshold) {
+            this.optimize = optimize;
+            this.closures = closures;
+            this.tierThreshold = tierThreshold;
+        }
+    }
+
+    static final class LabelInfo {
+        final List<Interpreter.Frame> stack;
+        final int frameIndex;
+        final int stmtIndex;
+
+        LabelInfo(List<Interpreter.Frame> stack, int frameIndex, int stmtIndex) {
+            this.stack = stack;
+            this.frameIndex = frameIndex;
+            this.stmtIndex = stmtIndex;
+        }
+
+        Stmt.Label label() {
+            Interpreter.Frame frame = stack.get(stack.size() - 1);
+            return (Stmt.Label) frame.stmts.get(stmtIndex);
+        }
+    }
+
+    final List<Stmt> stmts;
+    final Map<String, LabelInfo> labels;
+    /** What the program was compiled with; statement ids depend on it. */
+    final Options options;
+    /** Every statement of the program, nested ones included, indexed by {@link Stmt#id}. */
+    final List<Stmt> statements = new ArrayList<>();
+    /** Statements and expressions in the tree, for statistics. */
+    int nodes = 0;
+    /** Deepest nesting of blocks and loops; top-level statements are at depth 0. */
+    int maxDepth = 0;
+    /** Loop invariants whose values an interpreter keeps while running this program. */
+    int invariantSlots = 0;
+    /** Slots of the variables the program names, numbered as they are first seen. */
+    final Map<String, Integer> variables = new HashMap<>();
+    /** Compiles hot code under -TIERED; null when closures are compiled up front or not at all. */
+    Tiering tiering;
+    private final List<Interpreter.Frame> root;
+
+    private Program(List<Stmt> stmts, Map<String, LabelInfo> labels, Options options) {
+        this.stmts = stmts;
+        this.labels = labels;
+        this.options = options;
+        this.root = new ArrayList<>();
+        root.add(new Interpreter.Frame(stmts, 0, false));
+    }
+
+    static Program compile(List<Stmt> stmts) {
+        return compile(stmts, Options.DEFAULT);
+    }
+
+    static Program compile(List<Stmt> stmts, Options options) {
+        Events.Optimize optimizeEvent = new Events.Optimize();
+        optimizeEvent.begin();
+        long start = System.nanoTime();
+        // Structured loops replace the goto patterns they came from before anything is numbered.
+        // Recovery is an optimization like the others: under -NOOPT the gotos and labels of the
+        // source stay, and with them what -PROF, -STATS and the goto events report.
+        if (options.optimize) stmts = LoopRecovery.recover(stmts);
+        if (options.optimize) stmts = new SsaOptimizer(stmts).optimize();
+        LoopOptimizer optimizer = new LoopOptimizer();
+        if (options.optimize) stmts = optimizer.optimize(stmts);
+        Metrics.GLOBAL.recordOptimization(System.nanoTime() - start);
+        optimizeEvent.statements = stmts.size();
+        optimizeEvent.commit();
+
+        Events.LabelCollection labelEvent = new Events.LabelCollection();
+        labelEvent.begin();
+        start = System.nanoTime();
+        Program program = new Program(stmts, new HashMap<>(), options);
+        program.invariantSlots = optimizer.slots;
+        for (Stmt stmt : stmts) {
+            program.number(stmt, 0);
+        }
+        collectLabels(program.labels, stmts, program.root);
+        Metrics.GLOBAL.recordLabelCollection(System.nanoTime() - start, program.nodes,
+                program.labels.size(), program.maxDepth);
+        labelEvent.nodes = program.nodes;
+        labelEvent.labels = program.labels.size();
+        labelEvent.commit();
+
+        if (!options.closures) return program;
+        Events.ClosureCompile compileEvent = new Events.ClosureCompile();
+        compileEvent.begin();
+        start = System.nanoTime();
+        if (options.tierThreshold > 0) {
+            // Slots are numbered now, so a run never changes them while code is compiled
+            ClosureCompiler.resolve(program);
+            program.tiering = new Tiering(program, options.tierThreshold);
+        } else {
+            ClosureCompiler.compile(program, 0);
+        }
+        Metrics.GLOBAL.recordCompilation(System.nanoTime() - start);
+        compileEvent.statements = program.statements.size();
+        compileEvent.tiered = program.tiering != null;
+        compileEvent.commit();
+        return program;
+    }
+
+    /**
+     * Starts a program whose top-level statements are still being parsed.
+     * Statements are added with {@link #append}; unlike a compiled program an open
+     * one must only be used by the thread that appends to it.
+     */
+    static Program open(Options options) {
+        return new Program(new ArrayList<>(), new HashMap<>(), options);
+    }
+
+    void append(Stmt stmt) {
+        long start = System.nanoTime();
+        int nodesBefore = nodes;
+        int labelsBefore = labels.size();
+        int first = statements.size();
+        stmts.add(stmt);
+        number(stmt, 0);
+        collectLabel(labels, stmts, stmts.size() - 1, root);
+        Metrics.GLOBAL.recordLabelCollection(System.nanoTime() - start, nodes - nodesBefore,
+                labels.size() - labelsBefore, maxDepth);
+        if (options.closures) {
+            start = System.nanoTime();
+            ClosureCompiler.compile(this, first);
+            Metrics.GLOBAL.recordCompilation(System.nanoTime() - start);
+        }
+    }
+
+    // Ids follow source order, so the same source always gets the same ids
+    private void number(Stmt stmt, int depth) {
+        if (stmt == null) return;
+        stmt.id = statements.size();
+        statements.add(stmt);
+        nodes++;
+        maxDepth = Math.max(maxDepth, depth);
+
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt s : ((Stmt.Block) stmt).stmts) {
+                number(s, depth + 1);
+            }
+        } else if (stmt instanceof Stmt.Loop) {
+            // The body block is the loop's own frame rather than one more level
+            number(((Stmt.Loop) stmt).body, depth);
+        } else if (stmt instanceof Stmt.While) {
+            // The body is numbered right after the loop, which Checkpoint relies on
+            nodes += countExpr(((Stmt.While) stmt).condition);
+            number(((Stmt.While) stmt).body, depth);
+        } else if (stmt instanceof Stmt.If) {
+            nodes += countExpr(((Stmt.If) stmt).condition);
+            number(((Stmt.If) stmt).thenBranch, depth);
+            number(((Stmt.If) stmt).elseBranch, depth);
+        } else if (stmt instanceof Stmt.Label) {
+            number(((Stmt.Label) stmt).body, depth);
+        } else {
+            if (stmt instanceof Stmt.Var) variables.putIfAbsent(((Stmt.Var) stmt).name.lexeme, variables.size());
+            nodes += countExprs(stmt);
+        }
+    }
+
+    private static int countExprs(Stmt stmt) {
+        int count = 0;
+        if (stmt instanceof Stmt.Expression) {
+            count += countExpr(((Stmt.Expression) stmt).expr);
+        } else if (stmt instanceof Stmt.Write) {
+            for (Object arg : ((Stmt.Write) stmt).arguments) {
+                if (arg instanceof Expr) count += countExpr((Expr) arg);
+            }
+        } else if (stmt instanceof Stmt.Read) {
+            for (Expr var : ((Stmt.Read) stmt).variables) {
+                count += countExpr(var);
+            }
+        } else if (stmt instanceof Stmt.Var) {
+            count += countExpr(((Stmt.Var) stmt).initializer) + countExpr(((Stmt.Var) stmt).size);
+        }
+        return count;
+    }
+
+    private static int countExpr(Expr expr) {
+        if (expr == null) return 0;
+        if (expr instanceof Expr.Assign) {
+            return 1 + countExpr(((Expr.Assign) expr).index) + countExpr(((Expr.Assign) expr).value);
+        }
+        if (expr instanceof Expr.Variable) return 1 + countExpr(((Expr.Variable) expr).index);
+        if (expr instanceof Expr.Binary) {
+            return 1 + countExpr(((Expr.Binary) expr).left) + countExpr(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Grouping) return 1 + countExpr(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) return 1 + countExpr(((Expr.Unary) expr).right);
+        if (expr instanceof Expr.Invariant) return countExpr(((Expr.Invariant) expr).expr);
+        if (expr instanceof Expr.Step) return countExpr(((Expr.Step) expr).original);
+        if (expr instanceof Expr.Compare) return countExpr(((Expr.Compare) expr).original);
+        return 1;
+    }
+
+    // Every label remembers the frame stack leading to it. Enclosing frames keep the
+    // index of the statement that owns the nested list, so that after the nested
+    // block finishes execution continues right after that statement.
+    private static void collectLabels(Map<String, LabelInfo> labels, List<Stmt> stmts,
+                                      List<Interpreter.Frame> stack) {
+        for (int i = 0; i < stmts.size(); i++) {
+            collectLabel(labels, stmts, i, stack);
+        }
+    }
+
+    private static void collectLabel(Map<String, LabelInfo> labels, List<Stmt> stmts, int i,
+                                     List<Interpreter.Frame> stack) {
+        Stmt s = stmts.get(i);
+        List<Interpreter.Frame> here = positioned(stack, i);
+
+        if (s instanceof Stmt.Label) {
+            Stmt.Label label = (Stmt.Label) s;
+            labels.put(label.name.lexeme, new LabelInfo(here, here.size() - 1, i));
+            s = label.body;
+        }
+        collectNested(labels, s, here);
+    }
+
+    private static void collectNested(Map<String, LabelInfo> labels, Stmt s,
+                                      List<Interpreter.Frame> here) {
+        if (s instanceof Stmt.Block) {
+            List<Stmt> body = ((Stmt.Block) s).stmts;
+            collectLabels(labels, body, pushed(here, new Interpreter.Frame(body, 0, false)));
+        } else if (s instanceof Stmt.Loop) {
+            List<Stmt> body = ((Stmt.Loop) s).body.stmts;
+            collectLabels(labels, body, pushed(here, new Interpreter.Frame(body, 0, true)));
+        } else if (s instanceof Stmt.While) {
+            List<Stmt> body = ((Stmt.While) s).body.stmts;
+            Interpreter.Frame frame = new Interpreter.Frame(body, 0, false);
+            frame.loop = (Stmt.While) s;
+            collectLabels(labels, body, pushed(here, frame));
+        } else if (s instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) s;
+            collectNested(labels, ifStmt.thenBranch, here);
+            if (ifStmt.elseBranch != null) {
+                collectNested(labels, ifStmt.elseBranch, here);
+            }
+        }
+    }
+
+    private static List<Interpreter.Frame> positioned(List<Interpreter.Frame> stack, int index) {
+        List<Interpreter.Frame> copy = new ArrayList<>(stack);
+        Interpreter.Frame last = copy.get(copy.size() - 1).copy();
+        last.index = index;
+        copy.set(copy.size() - 1, last);
+        return copy;
+    }
+
+    private static List<Interpreter.Frame> pushed(List<Interpreter.Frame> stack, Interpreter.Frame frame) {
+        List<Interpreter.Frame> copy = new ArrayList<>(stack);
+        copy.add(frame);
+        return copy;
+    }
+}
@@ -0,0 +1,380 @@
+package com.nequma.translator;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates valid programs (see EBNF.txt) of any size for benchmarks and stress runs.
+ * The same options and seed always give the same source text.
+ *
+ * Every generated program terminates: each loop, whether it is written with
+ * loop ... end or with a backward goto, counts down its own counter variable
+ * that nothing else assigns, and all other gotos jump forward within the same
+ * statement list. Programs read no input.
+ */
+final class ProgramGenerator {
+    enum NumberBase { DECIMAL, BINARY, OCTAL, HEX, REAL }
+
+    static final class Options {
+        long seed = 1;
+        /** Approximate number of simple statements. */
+        int statements = 100;
+        /** Maximum nesting of begin ... end and loop ... end. */
+        int maxDepth = 3;
+        /** Iterations of every generated loop; nested loops multiply. */
+        int loopTrips = 3;
+        /** Chance that a statement slot becomes a loop or a block, 0..1. */
+        double nestingDensity = 0.15;
+        /** Chance that a statement slot becomes a goto construct, 0..1. */
+        double gotoDensity = 0.1;
+        /** Chance that a statement gets a label nobody jumps to, 0..1. */
+        double labelDensity = 0.05;
+        /** Number of operators in a generated expression. */
+        int expressionSize = 3;
+        Set<NumberBase> numberBases = EnumSet.allOf(NumberBase.class);
+        /** Chance of a comment before a statement, 0..1. */
+        double commentDensity = 0.05;
+        /** Chance that an assignment targets a vector element, 0..1. */
+        double vectorDensity = 0.1;
+        /** Chance that a statement slot becomes a write, 0..1. */
+        double writeDensity = 0.1;
+        int integerVariables = 6;
+        int realVariables = 3;
+        int vectors = 2;
+        int vectorSize = 16;
+
+        /** Sets an option from its field name, as given on the command line. */
+        void set(String name, String value) {
+            switch (name) {
+                case "seed": seed = Long.parseLong(value); break;
+                case "statements": statements = Integer.parseInt(value); break;
+                case "maxDepth": maxDepth = Integer.parseInt(value); break;
+                case "loopTrips": loopTrips = Integer.parseInt(value); break;
+                case "nestingDensity": nestingDensity = Double.parseDouble(value); break;
+                case "gotoDensity": gotoDensity = Double.parseDouble(value); break;
+                case "labelDensity": labelDensity = Double.parseDouble(value); break;
+                case "expressionSize": expressionSize = Integer.parseInt(value); break;
+                case "numberBases":
+                    numberBases = EnumSet.noneOf(NumberBase.class);
+                    for (String base : value.split(",")) {
+                        numberBases.add(NumberBase.valueOf(base.trim().toUpperCase()));
+                    }
+                    break;
+                case "commentDensity": commentDensity = Double.parseDouble(value); break;
+                case "vectorDensity": vectorDensity = Double.parseDouble(value); break;
+                case "writeDensity": writeDensity = Double.parseDouble(value); break;
+                case "integerVariables": integerVariables = Integer.parseInt(value); break;
+                case "realVariables": realVariables = Integer.parseInt(value); break;
+                case "vectors": vectors = Integer.parseInt(value); break;
+                case "vectorSize": vectorSize = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+    }
+
+    private static final String[] INT_OPERATORS = {"+", "-", "*", "/", "mod"};
+    private static final String[] REAL_OPERATORS = {"+", "-", "*", "/"};
+    private static final String[] RELATIONS = {"=", "<>", "<", ">", "<=", ">="};
+
+    private final Options options;
+    private final Random random;
+    private final List<NumberBase> intBases = new ArrayList<>();
+    private final List<String> counters = new ArrayList<>();
+    private int budget;
+    private int labelCount = 0;
+    private int commentCount = 0;
+
+    ProgramGenerator(Options options) {
+        this.options = options;
+        this.random = new Random(options.seed);
+        for (NumberBase base : options.numberBases) {
+            if (base != NumberBase.REAL) intBases.add(base);
+        }
+        if (intBases.isEmpty()) intBases.add(NumberBase.DECIMAL);
+    }
+
+    String generate() {
+        budget = options.statements;
+        StringBuilder body = new StringBuilder();
+        while (budget > 0) {
+            statementList(body, 0, 8);
+        }
+
+        StringBuilder source = new StringBuilder();
+        source.append("{ generated program, seed ").append(options.seed).append(" }\n");
+        declare(source, "I", options.integerVariables, "integer");
+        declare(source, "R", options.realVariables, "real");
+        for (int i = 0; i < options.vectors; i++) {
+            source.append("V").append(i).append(": vector[").append(options.vectorSize).append("] of ")
+                    .append(i % 2 == 0 ? "integer" : "real").append(";\n");
+        }
+        if (!counters.isEmpty()) {
+            source.append(String.join(", ", counters)).append(": integer;\n");
+        }
+        source.append(body);
+        return source.toString();
+    }
+
+    void write(String path) throws IOException {
+        Files.write(Paths.get(path), generate().getBytes(Charset.defaultCharset()));
+    }
+
+    private void declare(StringBuilder source, String prefix, int count, String type) {
+        if (count == 0) return;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) source.append(", ");
+            source.append(prefix).append(i);
+        }
+        source.append(": ").append(type).append(";\n");
+    }
+
+    // A statement list ending in ';' after every statement. Forward goto targets are
+    // placed a few statements after their goto and always inside the same list.
+    private void statementList(StringBuilder out, int depth, int length) {
+        List<String> pendingLabels = new ArrayList<>();
+        List<Integer> pendingDistances = new ArrayList<>();
+
+        for (int n = 0; n < length && budget > 0; n++) {
+            String label = null;
+            for (int i = pendingDistances.size() - 1; i >= 0; i--) {
+                int distance = pendingDistances.get(i) - 1;
+                pendingDistances.set(i, distance);
+                if (distance > 0) continue;
+                if (label != null) {
+                    indent(out, depth).append(label).append(": ;\n");
+                }
+                label = pendingLabels.remove(i);
+                pendingDistances.remove(i);
+            }
+            if (label == null && chance(options.labelDensity)) {
+                label = nextLabel("N");
+            }
+            if (chance(options.commentDensity)) {
+                indent(out, depth).append("{ comment ").append(commentCount++).append(" }\n");
+            }
+
+            if (depth < options.maxDepth && chance(options.nestingDensity)) {
+                if (random.nextBoolean()) {
+                    loopStatement(out, depth, label);
+                } else {
+                    blockStatement(out, depth, label);
+                }
+            } else if (chance(options.gotoDensity)) {
+                if (random.nextBoolean()) {
+                    String target = nextLabel("F");
+                    gotoStatement(out, depth, label, target);
+                    pendingLabels.add(target);
+                    pendingDistances.add(1 + random.nextInt(3));
+                } else {
+                    backwardGotoLoop(out, depth, label);
+                }
+            } else {
+                simpleStatement(out, depth, label);
+            }
+        }
+
+        for (String label : pendingLabels) {
+            indent(out, depth).append(label).append(": ;\n");
+        }
+    }
+
+    private void simpleStatement(StringBuilder out, int depth, String label) {
+        budget--;
+        StringBuilder line = labeled(indent(out, depth), label);
+        if (chance(options.writeDensity)) {
+            line.append("write ");
+            int arguments = 1 + random.nextInt(3);
+            for (int i = 0; i < arguments; i++) {
+                if (i > 0) line.append(", ");
+                int kind = random.nextInt(5);
+                if (kind == 0) line.append(new String[]{"space", "tab", "skip"}[random.nextInt(3)]);
+                else if (kind == 1 && options.realVariables > 0) line.append(realExpression(options.expressionSize));
+                else line.append(intExpression(options.expressionSize));
+            }
+        } else if (random.nextInt(4) == 0) {
+            line.append("if ").append(condition()).append(" then ").append(assignment());
+            if (random.nextBoolean()) line.append(" else ").append(assignment());
+        } else {
+            line.append(assignment());
+        }
+        line.append(";\n");
+    }
+
+    private String assignment() {
+        if (options.vectors > 0 && chance(options.vectorDensity)) {
+            int vector = random.nextInt(options.vectors);
+            String element = "V" + vector + "[" + random.nextInt(options.vectorSize) + "]";
+            return element + " := " + (vector % 2 == 0 || options.realVariables == 0
+                    ? intExpression(options.expressionSize) : realExpression(options.expressionSize));
+        }
+        if (options.realVariables > 0 && (options.integerVariables == 0 || random.nextInt(3) == 0)) {
+            return realVariable() + " := " + realExpression(options.expressionSize);
+        }
+        return intVariable() + " := " + intExpression(options.expressionSize);
+    }
+
+    private void blockStatement(StringBuilder out, int depth, String label) {
+        labeled(indent(out, depth), label).append("begin\n");
+        statementList(out, depth + 1, 2 + random.nextInt(6));
+        indent(out, depth).append("end;\n");
+    }
+
+    // loop ... end left through a goto once its own counter runs out
+    private void loopStatement(StringBuilder out, int depth, String label) {
+        String counter = nextCounter();
+        String exit = nextLabel("E");
+        labeled(indent(out, depth), label).append(counter).append(" := ").append(options.loopTrips).append(";\n");
+        indent(out, depth).append("loop\n");
+        statementList(out, depth + 1, 2 + random.nextInt(6));
+        indent(out, depth + 1).append(counter).append(" := ").append(counter).append(" - 1;\n");
+        indent(out, depth + 1).append("if ").append(counter).append(" <= 0 then goto ").append(exit).append(";\n");
+        indent(out, depth).append("end;\n");
+        indent(out, depth).append(exit).append(": ;\n");
+    }
+
+    // The cycleLabel pattern of test.txt: a label, some statements and a conditional goto back
+    private void backwardGotoLoop(StringBuilder out, int depth, String label) {
+        String counter = nextCounter();
+        String head = nextLabel("L");
+        String exit = nextLabel("X");
+        labeled(indent(out, depth), label).append(counter).append(" := ").append(options.loopTrips).append(";\n");
+        indent(out, depth).append(head).append(": ");
+        budget--;
+        out.append(assignment()).append(";\n");
+        int extra = random.nextInt(3);
+        for (int i = 0; i < extra && budget > 0; i++) {
+            simpleStatement(out, depth, null);
+        }
+        indent(out, depth).append(counter).append(" := ").append(counter).append(" - 1;\n");
+        indent(out, depth).append("if ").append(counter).append(" > 0 then goto ").append(head)
+                .append(" else goto ").append(exit).append(";\n");
+        indent(out, depth).append(exit).append(": ;\n");
+    }
+
+    private void gotoStatement(StringBuilder out, int depth, String label, String target) {
+        budget--;
+        StringBuilder line = labeled(indent(out, depth), label);
+        if (random.nextBoolean()) {
+            line.append("if ").append(condition()).append(" then ");
+        }
+        line.append("goto ").append(target).append(";\n");
+    }
+
+    private String condition() {
+        String relation = RELATIONS[random.nextInt(RELATIONS.length)];
+        if (options.realVariables > 0 && random.nextInt(3) == 0) {
+            return realExpression(1) + " " + relation + " " + realExpression(1);
+        }
+        return intExpression(1) + " " + relation + " " + intExpression(1);
+    }
+
+    private String intExpression(int operators) {
+        if (operators == 0 || options.integerVariables == 0) return intOperand();
+        int left = random.nextInt(operators);
+        String operator = INT_OPERATORS[random.nextInt(INT_OPERATORS.length)];
+        String expr = intExpression(left) + " " + operator + " ";
+        // Division and mod always get a literal, non-zero right operand
+        if (operator.equals("/") || operator.equals("mod")) {
+            expr += intLiteral(1 + random.nextInt(15));
+        } else {
+            expr += intExpression(operators - 1 - left);
+        }
+        return random.nextInt(4) == 0 ? "(" + expr + ")" : expr;
+    }
+
+    private String realExpression(int operators) {
+        if (operators == 0) return random.nextInt(3) == 0 || options.realVariables == 0 ? realLiteral() : realVariable();
+        int left = random.nextInt(operators);
+        String operator = REAL_OPERATORS[random.nextInt(REAL_OPERATORS.length)];
+        String expr = realExpression(left) + " " + operator + " ";
+        if (operator.equals("/")) {
+            expr += realLiteral();
+        } else {
+            expr += realExpression(operators - 1 - left);
+        }
+        return random.nextInt(4) == 0 ? "(" + expr + ")" : expr;
+    }
+
+    private String intOperand() {
+        if (options.integerVariables > 0 && random.nextInt(3) != 0) {
+            return random.nextInt(8) == 0 ? "-" + intVariable() : intVariable();
+        }
+        return intLiteral(random.nextInt(256));
+    }
+
+    private String intLiteral(int value) {
+        switch (intBases.get(random.nextInt(intBases.size()))) {
+            case BINARY: return "0b" + Integer.toBinaryString(value);
+            case OCTAL: return value == 0 ? "0" : "0" + Integer.toOctalString(value);
+            case HEX: return "0x" + Integer.toHexString(value).toUpperCase();
+            default: return Integer.toString(value);
+        }
+    }
+
+    private String realLiteral() {
+        if (!options.numberBases.contains(NumberBase.REAL)) return intLiteral(1 + random.nextInt(255));
+        // Never zero, so that it is always a safe divisor
+        int whole = 1 + random.nextInt(99);
+        if (random.nextBoolean()) return whole + "." + random.nextInt(100);
+        return whole + "e" + (random.nextBoolean() ? "-" : "+") + random.nextInt(3);
+    }
+
+    private String intVariable() {
+        return "I" + random.nextInt(options.integerVariables);
+    }
+
+    private String realVariable() {
+        return "R" + random.nextInt(options.realVariables);
+    }
+
+    private String nextCounter() {
+        String counter = "K" + counters.size();
+        counters.add(counter);
+        return counter;
+    }
+
+    private String nextLabel(String prefix) {
+        return prefix + labelCount++;
+    }
+
+    private boolean chance(double probability) {
+        return random.nextDouble() < probability;
+    }
+
+    private StringBuilder labeled(StringBuilder out, String label) {
+        if (label != null) out.append(label).append(": ");
+        return out;
+    }
+
+    private StringBuilder indent(StringBuilder out, int depth) {
+        for (int i = 0; i < depth; i++) {
+            out.append("    ");
+        }
+        return out;
+    }
+
+    /** Usage: ProgramGenerator <output file> [option=value ...], options named as in Options. */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java ProgramGenerator <output> [option=value ...]");
+            System.exit(64);
+        }
+        Options options = new Options();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                System.err.println("Expected option=value: " + args[i]);
+                System.exit(64);
+            }
+            options.set(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        new ProgramGenerator(options).write(args[0]);
+    }
+}
@@ -0,0 +1,340 @@
+package com.nequma.translator;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the programs of a regression corpus, checks their output against the
+ * golden files and compares front end time, run time and allocation with the
+ * stored baselines. Every program is also run under {@link AllocationHarness},
+ * and allocation in its steady state beyond boxed values fails the check.
+ *
+ * A corpus is a directory of programs {@code <name>.txt}, each with its golden
+ * output {@code <name>.out} and optionally the input its read statements
+ * consume, {@code <name>.in}. Baselines live in {@code baseline.properties}.
+ * Times are stored as multiples of a calibration workload that does not touch
+ * the translator, timed in the same run, so a baseline carries over to a faster
+ * or slower machine; allocation is stored in bytes. -UPDATE also rewrites the
+ * golden outputs. A baseline is re-recorded in a change of its own, never to
+ * make room for a slowdown that came with the change.
+ *
+ *   java com.nequma.translator.RegressionRunner <corpus> [-UPDATE] [-TOLERANCE=<percent>] [-ITERATIONS=<n>]
+ */
+final class RegressionRunner {
+    static final String BASELINE_FILE = "baseline.properties";
+    static final double DEFAULT_TOLERANCE = 25;
+    static final int DEFAULT_ITERATIONS = 20;
+    // Warm up for at least this long, so that the measured iterations run compiled code
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final int WARMUP_ITERATIONS = 5;
+    // Allocation and time are noisier in absolute terms for tiny programs
+    private static final long ALLOCATION_SLACK = 4096;
+    private static final long TIME_SLACK_NANOS = 500_000;
+    private static final String CALIBRATION_KEY = "calibration.nanos";
+    private static final int CALIBRATION_SIZE = 1 << 16;
+
+    static final class Measurement {
+        final String output;
+        final long frontNanos;
+        final long runNanos;
+        final long bytes;
+
+        Measurement(String output, long frontNanos, long runNanos, long bytes) {
+            this.output = output;
+            this.frontNanos = frontNanos;
+            this.runNanos = runNanos;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Path corpus;
+    private final double tolerance;
+    private final int iterations;
+
+    RegressionRunner(Path corpus, double tolerance, int iterations) {
+        this.corpus = corpus;
+        this.tolerance = tolerance;
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java RegressionRunner <corpus> [-UPDATE] [-TOLERANCE=<percent>] [-ITERATIONS=<n>]");
+            System.exit(64);
+        }
+        boolean update = false;
+        double tolerance = DEFAULT_TOLERANCE;
+        int iterations = DEFAULT_ITERATIONS;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-UPDATE")) {
+                update = true;
+            } else if (args[i].startsWith("-TOLERANCE=")) {
+                tolerance = Double.parseDouble(args[i].substring("-TOLERANCE=".length()));
+            } else if (args[i].startsWith("-ITERATIONS=")) {
+                iterations = Integer.parseInt(args[i].substring("-ITERATIONS=".length()));
+            } else {
+                System.err.println("Unknown flag: " + args[i]);
+            }
+        }
+
+        RegressionRunner runner = new RegressionRunner(Paths.get(args[0]), tolerance, iterations);
+        boolean passed = update ? runner.update() : runner.check();
+        if (!passed) System.exit(1);
+    }
+
+    /** Returns false when any program printed the wrong output or got slower or hungrier than allowed. */
+    boolean check() throws IOException {
+        Properties baseline = loadBaseline();
+        long calibration = calibrate();
+        boolean passed = true;
+        System.out.println(String.format("calibration %.3f ms (baseline machine %s ms); baseline times are scaled by it",
+                calibration / 1e6, baseline.getProperty(CALIBRATION_KEY) == null ? "unknown"
+                        : String.format("%.3f", Long.parseLong(baseline.getProperty(CALIBRATION_KEY)) / 1e6)));
+        System.out.println(String.format("%-20s %-8s %22s %22s %22s", "program", "output",
+                "front ms (baseline)", "run ms (baseline)", "KB/run (baseline)"));
+        for (String name : programs()) {
+            Measurement m = measure(name);
+            Path golden = corpus.resolve(name + ".out");
+            String expected = Files.exists(golden) ? Files.readString(golden, Charset.defaultCharset()) : null;
+            boolean correct = m.output.equals(expected);
+
+            List<String> regressions = new ArrayList<>();
+            String front = compare("front end", m.frontNanos, scaled(baseline, name + ".front.ratio", calibration),
+                    TIME_SLACK_NANOS, 1e6, regressions);
+            String run = compare("run", m.runNanos, scaled(baseline, name + ".run.ratio", calibration),
+                    TIME_SLACK_NANOS, 1e6, regressions);
+            String bytes = compare("allocation", m.bytes, stored(baseline, name + ".bytes"), ALLOCATION_SLACK, 1024,
+                    regressions);
+            System.out.println(String.format("%-20s %-8s %22s %22s %22s", name,
+                    expected == null ? "NO GOLD" : correct ? "ok" : "WRONG", front, run, bytes));
+
+            if (!correct) {
+                passed = false;
+                if (expected != null) System.out.println("    " + firstDifference(expected, m.output));
+            }
+            try {
+                steadyState(name);
+            } catch (AssertionError e) {
+                regressions.add(e.getMessage().replace("\n", "\n    "));
+            }
+            for (String regression : regressions) {
+                passed = false;
+                System.out.println("    REGRESSION: " + regression);
+            }
+        }
+        System.out.println(passed ? "\nAll programs passed." : "\nRegressions found.");
+        return passed;
+    }
+
+    /** Measures every program again and stores its output and numbers as the new reference. */
+    boolean update() throws IOException {
+        Properties baseline = new Properties();
+        long calibration = calibrate();
+        baseline.setProperty(CALIBRATION_KEY, Long.toString(calibration));
+        for (String name : programs()) {
+            Measurement m = measure(name);
+            Files.writeString(corpus.resolve(name + ".out"), m.output, Charset.defaultCharset());
+            baseline.setProperty(name + ".front.ratio", String.format(Locale.ROOT, "%.6f", (double) m.frontNanos / calibration));
+            baseline.setProperty(name + ".run.ratio", String.format(Locale.ROOT, "%.6f", (double) m.runNanos / calibration));
+            baseline.setProperty(name + ".bytes", Long.toString(m.bytes));
+            System.out.println(String.format("%-20s %12.3f ms %12.3f ms %12.1f KB", name,
+                    m.frontNanos / 1e6, m.runNanos / 1e6, m.bytes / 1024.0));
+        }
+        // Sorted by hand so that baseline diffs stay readable
+        StringBuilder text = new StringBuilder("# Written by RegressionRunner -UPDATE; fastest time as a multiple of"
+                + " the calibration time, and median allocation per iteration\n");
+        for (String key : new TreeSet<>(baseline.stringPropertyNames())) {
+            text.append(key).append('=').append(baseline.getProperty(key)).append('\n');
+        }
+        Files.writeString(corpus.resolve(BASELINE_FILE), text, Charset.defaultCharset());
+        return true;
+    }
+
+    /**
+     * Scans, parses and runs the program until the JIT has settled and then
+     * {@code iterations} more times. Times are the fastest iteration, which noise
+     * from other processes can only make slower; allocation is the median.
+     */
+    Measurement measure(String name) throws IOException {
+        String source = Files.readString(corpus.resolve(name + ".txt"), Charset.defaultCharset());
+        Path inputPath = corpus.resolve(name + ".in");
+        String input = Files.exists(inputPath) ? Files.readString(inputPath, Charset.defaultCharset()) : "";
+
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        for (int i = 0; i < WARMUP_ITERATIONS || System.nanoTime() < warmupEnd; i++) {
+            once(name, source, input);
+        }
+
+        long[] front = new long[iterations];
+        long[] run = new long[iterations];
+        long[] bytes = new long[iterations];
+        String output = null;
+        for (int i = 0; i < iterations; i++) {
+            Measurement m = once(name, source, input);
+            front[i] = m.frontNanos;
+            run[i] = m.runNanos;
+            bytes[i] = m.bytes;
+            output = m.output;
+        }
+        return new Measurement(output, min(front), min(run), median(bytes));
+    }
+
+    /**
+     * Times a fixed workload of hashing, sorting and allocation that runs no
+     * translator code, measured the way programs are: the fastest iteration
+     * once warmed up.
+     */
+    long calibrate() {
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS || System.nanoTime() < warmupEnd; i++) {
+            sink += calibrationWorkload();
+        }
+        long[] times = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            sink += calibrationWorkload();
+            times[i] = System.nanoTime() - start;
+        }
+        // Keeps the JIT from dropping the workload as dead code
+        if (sink == 42) System.out.print("");
+        return min(times);
+    }
+
+    private static long calibrationWorkload() {
+        Random random = new Random(1);
+        Map<String, Integer> map = new HashMap<>();
+        long[] values = new long[CALIBRATION_SIZE];
+        for (int i = 0; i < CALIBRATION_SIZE; i++) {
+            values[i] = random.nextLong();
+            map.merge(Long.toString(values[i] & 0xFFF), i, Integer::sum);
+        }
+        Arrays.sort(values);
+        return values[CALIBRATION_SIZE / 2] + map.size();
+    }
+
+    private void steadyState(String name) throws IOException {
+        String source = Files.readString(corpus.resolve(name + ".txt"), Charset.defaultCharset());
+        Path inputPath = corpus.resolve(name + ".in");
+        String input = Files.exists(inputPath) ? Files.readString(inputPath, Charset.defaultCharset()) : "";
+        AllocationHarness.measure(Program.compile(new Parser(new Scanner(source).scanTokens()).parse()), input,
+                AllocationHarness.DEFAULT_WARMUP).assertNoSteadyStateAllocation();
+    }
+
+    private static Measurement once(String name, String source, String input) {
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        Parser parser = new Parser(new Scanner(source).scanTokens());
+        List<Stmt> stmts = parser.parse();
+        if (parser.hadError() || Translator.hadError) {
+            throw new IllegalStateException(name + " does not parse.");
+        }
+        if (!Checker.check(stmts)) {
+            throw new IllegalStateException(name + " does not pass the checks.");
+        }
+        Program program = Program.compile(stmts);
+        long parsed = System.nanoTime();
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, false);
+        RuntimeError error = new Interpreter(new BufferedReader(new StringReader(input)), out, false).run(program);
+        long finished = System.nanoTime();
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        out.flush();
+        if (error != null) {
+            out.println("[line " + error.line + "] Runtime Error: " + error.getMessage());
+            out.flush();
+        }
+        return new Measurement(buffer.toString(Charset.defaultCharset()), parsed - start, finished - parsed,
+                allocated);
+    }
+
+    private List<String> programs() throws IOException {
+        try (Stream<Path> files = Files.list(corpus)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(file -> file.endsWith(".txt"))
+                    .map(file -> file.substring(0, file.length() - ".txt".length()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Properties loadBaseline() throws IOException {
+        Properties baseline = new Properties();
+        Path path = corpus.resolve(BASELINE_FILE);
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, Charset.defaultCharset())) {
+                baseline.load(reader);
+            }
+        }
+        return baseline;
+    }
+
+    // A stored ratio turned into nanoseconds on this machine, or null when there is none
+    private static Double scaled(Properties baseline, String key, long calibration) {
+        String stored = baseline.getProperty(key);
+        return stored == null ? null : Double.parseDouble(stored) * calibration;
+    }
+
+    private static Double stored(Properties baseline, String key) {
+        String stored = baseline.getProperty(key);
+        return stored == null ? null : Double.parseDouble(stored);
+    }
+
+    private String compare(String what, long value, Double baseline, long slack, double unit,
+                           List<String> regressions) {
+        if (baseline == null) return String.format("%.3f (none)", value / unit);
+        double base = baseline;
+        double limit = base * (1 + tolerance / 100) + slack;
+        if (value > limit) {
+            regressions.add(String.format("%s %.3f vs %.3f, %+.1f%%", what, value / unit, base / unit,
+                    base == 0 ? 100.0 : 100.0 * (value - base) / base));
+        }
+        return String.format("%.3f (%.3f)", value / unit, base / unit);
+    }
+
+    private static long min(long[] values) {
+        return Arrays.stream(values).min().orElse(0);
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static String firstDifference(String expected, String actual) {
+        String[] want = expected.split("\n", -1);
+        String[] got = actual.split("\n", -1);
+        for (int i = 0; i < Math.max(want.length, got.length); i++) {
+            String a = i < want.length ? want[i] : "<end of output>";
+            String b = i < got.length ? got[i] : "<end of output>";
+            if (!a.equals(b)) return "line " + (i + 1) + ": expected '" + a + "', got '" + b + "'";
+        }
+        return "outputs differ in line endings";
+    }
+}
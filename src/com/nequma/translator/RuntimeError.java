@@ -2,9 +2,18 @@ package com.nequma.translator;
 
 class RuntimeError extends RuntimeException {
     final Token token;
+    final int line;
 
     RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.line;
     }
-}
\ No newline at end of file
+
+    /** For errors raised by the runtime itself rather than by a particular token. */
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
+    }
+}
@@ -4,12 +4,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import static com.nequma.translator.TokenType.*;
 
 class Scanner {
     private final String source;
     private final List<Token> tokens = new ArrayList<>();
+    private Consumer<Token> sink;
     private int start = 0;
     private int current = 0;
     private int line = 1;
@@ -19,13 +21,19 @@ class Scanner {
     }
 
     List<Token> scanTokens() {
+        scanTokens(tokens::add);
+        return tokens;
+    }
+
+    /** Scans the source handing tokens to the sink one by one instead of collecting them. */
+    void scanTokens(Consumer<Token> sink) {
+        this.sink = sink;
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        sink.accept(new Token(EOF, "", null, line));
     }
 
     private void scanToken() {
@@ -295,7 +303,7 @@ class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        sink.accept(new Token(type, text, literal, line));
     }
 
     private static final Map<String, TokenType> keywords;
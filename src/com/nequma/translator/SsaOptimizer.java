@@ -0,0 +1,639 @@
+package com.nequma.translator;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimizes a program on its {@link Ir} and lowers the result back onto the
+ * statement tree, which keeps its shape: statements are dropped or get new
+ * expressions, and ifs whose condition is known give way to their branch.
+ *
+ *   - Conditional constant propagation (Wegman and Zadeck) over executable
+ *     edges only, folding with the interpreter's own arithmetic, so that an
+ *     operation that would fail at run time is never folded.
+ *   - Copy propagation: a read of a copy becomes a read of the original while
+ *     the original still holds the same version.
+ *   - Global value numbering: an expression already computed into a variable
+ *     on every path, from the same values, becomes a read of that variable.
+ *   - Dead-store and unused-variable elimination: assignments nothing reads
+ *     are removed when they cannot fail, and declarations go with them once
+ *     nothing else refers to the variable. Statements that can never run go too.
+ */
+final class SsaOptimizer {
+    // Folds constants by running the interpreter's operators on literals
+    private static final Interpreter FOLDER = new Interpreter(new BufferedReader(Reader.nullReader()),
+            new PrintStream(OutputStream.nullOutputStream()), false);
+
+    final Ir ir;
+    private final List<Stmt> stmts;
+    private final Map<Stmt.If, Boolean> decisions = new HashMap<>();
+    int folded;
+    int copies;
+    int redundant;
+    int removed;
+
+    SsaOptimizer(List<Stmt> stmts) {
+        this.stmts = stmts;
+        this.ir = Ir.build(stmts);
+    }
+
+    List<Stmt> optimize() {
+        propagate();
+        undefined();
+        rewrite();
+        eliminate();
+        return lowerList(stmts);
+    }
+
+    /** Prints what {@link #optimize} found, then the IR it worked on. */
+    void print(Appendable out) {
+        try {
+            out.append("folded ").append(Integer.toString(folded))
+                    .append(", copies ").append(Integer.toString(copies))
+                    .append(", redundant ").append(Integer.toString(redundant))
+                    .append(", removed ").append(Integer.toString(removed)).append('\n');
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        ir.print(out);
+    }
+
+    // --- Constant propagation ---
+
+    private void propagate() {
+        for (Ir.Block block : ir.order) {
+            block.executablePreds = new boolean[block.preds.size()];
+        }
+        ir.entry.executable = true;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Ir.Block block : ir.order) {
+                if (!block.executable) continue;
+                for (Ir.Phi phi : block.phis.values()) {
+                    Object value = Ir.TOP;
+                    for (int i = 0; i < phi.operands.length; i++) {
+                        if (block.executablePreds[i]) value = meet(value, phi.operands[i].lattice);
+                    }
+                    changed |= raise(phi.value, value);
+                }
+                for (Ir.Instr instr : block.instrs) {
+                    if (instr.kind == Ir.Kind.DEF) {
+                        Expr value = instr.value();
+                        changed |= raise(instr.defs.get(0), value == null ? initial((Stmt.Var) instr.stmt) : eval(value));
+                    } else {
+                        for (Ir.Value def : instr.defs) {
+                            changed |= raise(def, Ir.BOTTOM);
+                        }
+                    }
+                }
+                if (block.condition == null) {
+                    for (Ir.Block succ : block.succs) {
+                        changed |= follow(block, succ);
+                    }
+                    continue;
+                }
+                Object condition = eval(block.condition);
+                if (condition == Ir.TOP) continue;
+                if (condition == Ir.BOTTOM) {
+                    changed |= follow(block, block.succs.get(0)) | follow(block, block.succs.get(1));
+                } else {
+                    changed |= follow(block, block.succs.get(Interpreter.isTruthy(condition) ? 0 : 1));
+                }
+            }
+        }
+    }
+
+    private static boolean follow(Ir.Block from, Ir.Block to) {
+        boolean changed = false;
+        for (int i = 0; i < to.preds.size(); i++) {
+            if (to.preds.get(i) == from && !to.executablePreds[i]) {
+                to.executablePreds[i] = true;
+                changed = true;
+            }
+        }
+        changed |= !to.executable;
+        to.executable = true;
+        return changed;
+    }
+
+    private static Object initial(Stmt.Var var) {
+        if ("integer".equals(var.type)) return 0;
+        if ("real".equals(var.type)) return 0.0;
+        return Ir.BOTTOM;
+    }
+
+    // Values only go down from top through a constant to bottom
+    private static boolean raise(Ir.Value value, Object lattice) {
+        Object lowered = meet(value.lattice, lattice);
+        if (lowered == value.lattice || lowered.equals(value.lattice)) return false;
+        value.lattice = lowered;
+        return true;
+    }
+
+    private static Object meet(Object a, Object b) {
+        if (a == Ir.TOP) return b;
+        if (b == Ir.TOP) return a;
+        if (a == Ir.BOTTOM || b == Ir.BOTTOM) return Ir.BOTTOM;
+        // Equal as Java objects: 1 and 1.0, or 0.0 and -0.0, are different values
+        return a.equals(b) ? a : Ir.BOTTOM;
+    }
+
+    private Object eval(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            return value instanceof Integer || value instanceof Double || value instanceof Boolean ? value : Ir.BOTTOM;
+        }
+        if (expr instanceof Expr.Variable) {
+            if (((Expr.Variable) expr).index != null) return Ir.BOTTOM;
+            return ir.reads.get(expr).lattice;
+        }
+        if (expr instanceof Expr.Grouping) return eval(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) {
+            Object right = eval(((Expr.Unary) expr).right);
+            if (right == Ir.TOP || right == Ir.BOTTOM) return right;
+            return fold(new Expr.Unary(((Expr.Unary) expr).operator, new Expr.Literal(right)));
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            Object left = eval(binary.left);
+            Object right = eval(binary.right);
+            if (left == Ir.BOTTOM || right == Ir.BOTTOM) return Ir.BOTTOM;
+            if (left == Ir.TOP || right == Ir.TOP) return Ir.TOP;
+            return fold(new Expr.Binary(new Expr.Literal(left), binary.operator, new Expr.Literal(right)));
+        }
+        return Ir.BOTTOM;
+    }
+
+    private static Object fold(Expr expr) {
+        try {
+            Object value = expr.accept(FOLDER);
+            return value == null ? Ir.BOTTOM : value;
+        } catch (RuntimeError | ArithmeticException e) {
+            // Left for the run to report, if it ever gets there; mod by zero throws the latter
+            return Ir.BOTTOM;
+        }
+    }
+
+    private static boolean isConstant(Object lattice) {
+        return lattice != Ir.TOP && lattice != Ir.BOTTOM;
+    }
+
+    // A value may be undefined when it is version 0 or a phi over one that may be
+    private void undefined() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Ir.Block block : ir.order) {
+                for (Ir.Phi phi : block.phis.values()) {
+                    if (phi.value.maybeUndefined) continue;
+                    for (int i = 0; i < phi.operands.length; i++) {
+                        if (block.executablePreds[i] && phi.operands[i].maybeUndefined) {
+                            phi.value.maybeUndefined = true;
+                            changed = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // --- Copy propagation and value numbering ---
+
+    // Walks the dominator tree like the renaming did, so that the current version
+    // of every variable is known at each expression
+    private void rewrite() {
+        Map<String, Deque<Ir.Value>> current = new HashMap<>();
+        Map<String, Ir.Value> available = new HashMap<>();
+        Deque<Ir.Block> stack = new ArrayDeque<>();
+        Deque<List<String>> pushedNames = new ArrayDeque<>();
+        Deque<List<String>> pushedKeys = new ArrayDeque<>();
+        stack.push(ir.entry);
+        while (!stack.isEmpty()) {
+            Ir.Block block = stack.pop();
+            if (block == Ir.SUBTREE_END) {
+                for (String variable : pushedNames.pop()) {
+                    current.get(variable).pop();
+                }
+                for (String key : pushedKeys.pop()) {
+                    available.remove(key);
+                }
+                continue;
+            }
+            List<String> names = new ArrayList<>();
+            List<String> keys = new ArrayList<>();
+            for (Ir.Phi phi : block.phis.values()) {
+                push(current, names, phi.value);
+            }
+            if (block.executable) {
+                for (Ir.Instr instr : block.instrs) {
+                    rewrite(instr, current, available, keys);
+                    for (Ir.Value def : instr.defs) {
+                        push(current, names, def);
+                    }
+                }
+                if (block.condition != null) {
+                    ir.rewritten.put(block.condition, rewrite(block.condition, current, available));
+                }
+            } else {
+                for (Ir.Instr instr : block.instrs) {
+                    for (Ir.Value def : instr.defs) {
+                        push(current, names, def);
+                    }
+                }
+            }
+            pushedNames.push(names);
+            pushedKeys.push(keys);
+            stack.push(Ir.SUBTREE_END);
+            for (int i = block.children.size() - 1; i >= 0; i--) {
+                stack.push(block.children.get(i));
+            }
+        }
+    }
+
+    private void rewrite(Ir.Instr instr, Map<String, Deque<Ir.Value>> current, Map<String, Ir.Value> available,
+                         List<String> keys) {
+        if (instr.kind != Ir.Kind.DEF) {
+            for (Expr expr : instr.exprs) {
+                ir.rewritten.put(expr, rewrite(expr, current, available));
+            }
+            return;
+        }
+        Ir.Value def = instr.defs.get(0);
+        Expr value = instr.value();
+        if (value == null) return;
+        String key = worthNumbering(value) ? key(value, current) : null;
+        Expr rewritten = rewrite(value, current, available);
+
+        if (rewritten instanceof Expr.Variable && ((Expr.Variable) rewritten).index == null) {
+            Ir.Value source = ir.reads.get(rewritten);
+            if (!source.maybeUndefined) def.copyOf = root(source);
+        } else if (key != null && !(rewritten instanceof Expr.Literal) && !available.containsKey(key)) {
+            available.put(key, def);
+            keys.add(key);
+        }
+        Expr top = instr.exprs.get(0);
+        if (top instanceof Expr.Assign) {
+            ir.rewritten.put(top, rewritten == value ? top : like(new Expr.Assign(((Expr.Assign) top).name, rewritten), top));
+        } else {
+            ir.rewritten.put(top, rewritten);
+        }
+    }
+
+    private Expr rewrite(Expr expr, Map<String, Deque<Ir.Value>> current, Map<String, Ir.Value> available) {
+        if (expr instanceof Expr.Literal) return expr;
+        Object lattice = eval(expr);
+        if (isConstant(lattice)) {
+            folded++;
+            return new Expr.Literal(lattice);
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.index != null) {
+                Expr index = rewrite(variable.index, current, available);
+                if (index == variable.index) return expr;
+                return read(variable.name, index, ir.reads.get(variable), variable.proven);
+            }
+            Ir.Value value = ir.reads.get(variable);
+            Ir.Value root = root(value);
+            if (root != value && top(current, root.variable) == root) {
+                copies++;
+                return read(root.name, null, root, variable.proven);
+            }
+            return expr;
+        }
+        if (worthNumbering(expr)) {
+            Ir.Value value = available.get(key(expr, current));
+            if (value != null && top(current, value.variable) == value) {
+                redundant++;
+                // Its assignment dominates this read, so the variable is declared
+                return read(value.name, null, value, true);
+            }
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            Expr left = rewrite(binary.left, current, available);
+            Expr right = rewrite(binary.right, current, available);
+            return left == binary.left && right == binary.right ? expr
+                    : like(new Expr.Binary(left, binary.operator, right), expr);
+        }
+        if (expr instanceof Expr.Grouping) {
+            Expr inner = rewrite(((Expr.Grouping) expr).expr, current, available);
+            return inner == ((Expr.Grouping) expr).expr ? expr : like(new Expr.Grouping(inner), expr);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr right = rewrite(((Expr.Unary) expr).right, current, available);
+            return right == ((Expr.Unary) expr).right ? expr
+                    : like(new Expr.Unary(((Expr.Unary) expr).operator, right), expr);
+        }
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            Expr index = assign.index == null ? null : rewrite(assign.index, current, available);
+            Expr value = rewrite(assign.value, current, available);
+            return index == assign.index && value == assign.value ? expr
+                    : like(new Expr.Assign(assign.name, index, value), expr);
+        }
+        return expr;
+    }
+
+    private Expr.Variable read(Token name, Expr index, Ir.Value value, boolean proven) {
+        Expr.Variable variable = new Expr.Variable(name, index);
+        variable.proven = proven;
+        ir.reads.put(variable, value);
+        return variable;
+    }
+
+    // Copies keep what the Checker proved about the node they replace
+    private static <T extends Expr> T like(T copy, Expr original) {
+        copy.proven = original.proven;
+        return copy;
+    }
+
+    private static Ir.Value root(Ir.Value value) {
+        while (value.copyOf != null) value = value.copyOf;
+        return value;
+    }
+
+    private static Ir.Value top(Map<String, Deque<Ir.Value>> current, String variable) {
+        Deque<Ir.Value> stack = current.get(variable);
+        return stack == null ? null : stack.peek();
+    }
+
+    private static void push(Map<String, Deque<Ir.Value>> current, List<String> names, Ir.Value value) {
+        current.computeIfAbsent(value.variable, key -> new java.util.ArrayDeque<>()).push(value);
+        names.add(value.variable);
+    }
+
+    // Pure operations; vector elements may change without a new version of the vector
+    private static boolean worthNumbering(Expr expr) {
+        if (expr instanceof Expr.Grouping) return worthNumbering(((Expr.Grouping) expr).expr);
+        return (expr instanceof Expr.Binary || expr instanceof Expr.Unary) && pure(expr);
+    }
+
+    private static boolean pure(Expr expr) {
+        if (expr instanceof Expr.Literal) return true;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).index == null;
+        if (expr instanceof Expr.Grouping) return pure(((Expr.Grouping) expr).expr);
+        if (expr instanceof Expr.Unary) return pure(((Expr.Unary) expr).right);
+        if (expr instanceof Expr.Binary) return pure(((Expr.Binary) expr).left) && pure(((Expr.Binary) expr).right);
+        return false;
+    }
+
+    // Same key, same value: variables stand for the value their version copies
+    private String key(Expr expr, Map<String, Deque<Ir.Value>> current) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            return value == null ? "nil" : value.getClass().getSimpleName() + ":" + value;
+        }
+        if (expr instanceof Expr.Variable) {
+            Ir.Value value = root(ir.reads.get(expr));
+            return "v" + System.identityHashCode(value) + ":" + value;
+        }
+        if (expr instanceof Expr.Grouping) return key(((Expr.Grouping) expr).expr, current);
+        if (expr instanceof Expr.Unary) {
+            return "(" + ((Expr.Unary) expr).operator.type + " " + key(((Expr.Unary) expr).right, current) + ")";
+        }
+        Expr.Binary binary = (Expr.Binary) expr;
+        String left = key(binary.left, current);
+        String right = key(binary.right, current);
+        switch (binary.operator.type) {
+            case PLUS: case MULT: case EQ: case NE:
+                if (left.compareTo(right) > 0) {
+                    String swap = left;
+                    left = right;
+                    right = swap;
+                }
+                break;
+            default:
+                break;
+        }
+        return "(" + binary.operator.type + " " + left + " " + right + ")";
+    }
+
+    // --- Dead code ---
+
+    private void eliminate() {
+        Deque<Ir.Value> work = new ArrayDeque<>();
+        for (Ir.Block block : ir.order) {
+            if (!block.executable) continue;
+            for (Ir.Instr instr : block.instrs) {
+                if (instr.kind != Ir.Kind.DEF || mayFail(instr)) markLive(instr, work);
+            }
+            if (block.condition != null) liveReads(ir.rewritten.get(block.condition), work);
+        }
+        while (!work.isEmpty()) {
+            Ir.Value value = work.pop();
+            if (value.def != null) {
+                markLive(value.def, work);
+            } else if (value.phi != null) {
+                Ir.Block block = value.phi.block;
+                for (int i = 0; i < value.phi.operands.length; i++) {
+                    if (block.executablePreds[i]) live(value.phi.operands[i], work);
+                }
+            }
+        }
+
+        // Declarations stay while anything still assigns, reads or indexes the variable
+        Set<String> needed = new HashSet<>();
+        for (Ir.Block block : ir.order) {
+            for (Ir.Instr instr : block.instrs) {
+                instr.removed = !block.executable || !instr.live;
+                if (instr.removed) continue;
+                if (instr.kind == Ir.Kind.READ) {
+                    for (Expr target : ((Stmt.Read) instr.stmt).variables) {
+                        needed.add(((Expr.Variable) target).name.lexeme);
+                    }
+                } else if (instr.kind != Ir.Kind.WRITE && instr.kind != Ir.Kind.EVAL) {
+                    needed.add(Ir.target(instr).lexeme);
+                }
+            }
+        }
+        for (Ir.Block block : ir.order) {
+            for (Ir.Instr instr : block.instrs) {
+                if (block.executable && instr.removed && instr.stmt instanceof Stmt.Var
+                        && needed.contains(Ir.target(instr).lexeme)) {
+                    instr.removed = false;
+                }
+                if (instr.removed) removed++;
+            }
+        }
+        // Statements in blocks no path reaches at all
+        for (Ir.Block block : ir.blocks) {
+            if (block.reachable) continue;
+            for (Ir.Instr instr : block.instrs) {
+                instr.removed = true;
+                removed++;
+            }
+        }
+    }
+
+    private void markLive(Ir.Instr instr, Deque<Ir.Value> work) {
+        if (instr.live) return;
+        instr.live = true;
+        for (Expr expr : instr.exprs) {
+            liveReads(ir.rewritten.getOrDefault(expr, expr), work);
+        }
+    }
+
+    private void liveReads(Expr expr, Deque<Ir.Value> work) {
+        if (expr instanceof Expr.Variable) {
+            live(ir.reads.get(expr), work);
+            if (((Expr.Variable) expr).index != null) liveReads(((Expr.Variable) expr).index, work);
+        } else if (expr instanceof Expr.Assign) {
+            if (((Expr.Assign) expr).index != null) liveReads(((Expr.Assign) expr).index, work);
+            liveReads(((Expr.Assign) expr).value, work);
+        } else if (expr instanceof Expr.Binary) {
+            liveReads(((Expr.Binary) expr).left, work);
+            liveReads(((Expr.Binary) expr).right, work);
+        } else if (expr instanceof Expr.Grouping) {
+            liveReads(((Expr.Grouping) expr).expr, work);
+        } else if (expr instanceof Expr.Unary) {
+            liveReads(((Expr.Unary) expr).right, work);
+        }
+    }
+
+    private static void live(Ir.Value value, Deque<Ir.Value> work) {
+        if (value == null || value.live) return;
+        value.live = true;
+        work.push(value);
+    }
+
+    // An assignment to a variable that may not be declared yet fails, and so does
+    // any right-hand side that is not a constant or a defined variable
+    private boolean mayFail(Ir.Instr instr) {
+        if (instr.stmt instanceof Stmt.Expression && instr.prior.maybeUndefined) return true;
+        Expr value = instr.value();
+        if (value == null) return false;
+        Expr top = ir.rewritten.getOrDefault(instr.exprs.get(0), instr.exprs.get(0));
+        Expr rewritten = top instanceof Expr.Assign ? ((Expr.Assign) top).value : top;
+        if (rewritten instanceof Expr.Literal) return false;
+        if (rewritten instanceof Expr.Variable && ((Expr.Variable) rewritten).index == null) {
+            return ir.reads.get(rewritten).maybeUndefined;
+        }
+        return true;
+    }
+
+    // --- Lowering ---
+
+    private List<Stmt> lowerList(List<Stmt> stmts) {
+        decide();
+        return lower(stmts);
+    }
+
+    // Ifs that only ever take one way, unless a label in the other one could be jumped to
+    private void decide() {
+        for (Ir.Block block : ir.order) {
+            if (!block.executable || !(block.branch instanceof Stmt.If)) continue;
+            Object condition = eval(block.condition);
+            if (!isConstant(condition)) continue;
+            Stmt.If ifStmt = (Stmt.If) block.branch;
+            boolean taken = Interpreter.isTruthy(condition);
+            Stmt skipped = taken ? ifStmt.elseBranch : ifStmt.thenBranch;
+            if (skipped == null || !LoopRecovery.containsLabel(skipped)) decisions.put(ifStmt, taken);
+        }
+    }
+
+    private List<Stmt> lower(List<Stmt> stmts) {
+        List<Stmt> out = new ArrayList<>(stmts.size());
+        for (Stmt stmt : stmts) {
+            Stmt lowered = lower(stmt);
+            if (lowered != null) out.add(lowered);
+        }
+        return out;
+    }
+
+    private final Map<Stmt, Ir.Instr> instrs = new HashMap<>();
+
+    private Ir.Instr instr(Stmt stmt) {
+        if (instrs.isEmpty()) {
+            for (Ir.Block block : ir.blocks) {
+                for (Ir.Instr instr : block.instrs) {
+                    instrs.put(instr.stmt, instr);
+                }
+            }
+        }
+        return instrs.get(stmt);
+    }
+
+    // Null when the statement goes away
+    private Stmt lower(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            return at(new Stmt.Block(lower(((Stmt.Block) stmt).stmts)), stmt.line);
+        }
+        if (stmt instanceof Stmt.Loop) {
+            Stmt.Block body = ((Stmt.Loop) stmt).body;
+            return at(new Stmt.Loop(at(new Stmt.Block(lower(body.stmts)), body.line)), stmt.line);
+        }
+        if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            return at(new Stmt.While(expr(loop.condition), loop.until, loop.testFirst,
+                    at(new Stmt.Block(lower(loop.body.stmts)), loop.body.line)), stmt.line);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            Boolean taken = decisions.get(ifStmt);
+            if (taken != null) {
+                Stmt branch = taken ? ifStmt.thenBranch : ifStmt.elseBranch;
+                return branch == null ? null : lower(branch);
+            }
+            return at(new Stmt.If(expr(ifStmt.condition), branch(ifStmt.thenBranch),
+                    ifStmt.elseBranch == null ? null : branch(ifStmt.elseBranch)), stmt.line);
+        }
+        if (stmt instanceof Stmt.Label) {
+            Stmt.Label label = (Stmt.Label) stmt;
+            return at(new Stmt.Label(label.name, label.body == null ? null : branch(label.body)), stmt.line);
+        }
+        Ir.Instr instr = instr(stmt);
+        if (instr == null) return stmt;
+        if (instr.removed) return null;
+        if (stmt instanceof Stmt.Expression) {
+            return at(new Stmt.Expression(expr(((Stmt.Expression) stmt).expr)), stmt.line);
+        }
+        if (stmt instanceof Stmt.Write) {
+            List<Object> arguments = new ArrayList<>();
+            for (Object argument : ((Stmt.Write) stmt).arguments) {
+                arguments.add(argument instanceof Expr ? expr((Expr) argument) : argument);
+            }
+            return at(new Stmt.Write(arguments), stmt.line);
+        }
+        if (stmt instanceof Stmt.Read) {
+            List<Expr> variables = new ArrayList<>();
+            for (Expr variable : ((Stmt.Read) stmt).variables) {
+                variables.add(expr(variable));
+            }
+            return at(new Stmt.Read(variables), stmt.line);
+        }
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            return at(new Stmt.Var(var.name, var.initializer == null ? null : expr(var.initializer), var.isVector,
+                    var.size == null ? null : expr(var.size), var.type), stmt.line);
+        }
+        return stmt;
+    }
+
+    // A branch or label body that goes away leaves an empty statement in its place
+    private Stmt branch(Stmt stmt) {
+        Stmt lowered = lower(stmt);
+        return lowered != null ? lowered : at(new Stmt.Empty(), stmt.line);
+    }
+
+    private Expr expr(Expr expr) {
+        return ir.rewritten.getOrDefault(expr, expr);
+    }
+
+    private static <T extends Stmt> T at(T stmt, int line) {
+        stmt.line = line;
+        return stmt;
+    }
+}
@@ -3,6 +3,11 @@ package com.nequma.translator;
 import java.util.List;
 
 abstract class Stmt {
+    /** Source line the statement starts on; set by the parser. */
+    int line;
+    /** Position in {@link Program#statements}; set when the program is compiled. */
+    int id = -1;
+
     interface Visitor<R> {
         R visitBlockStmt(Block stmt); //Составной
         R visitVarStmt(Var stmt); //Присваивания
@@ -14,6 +19,7 @@ abstract class Stmt {
         R visitWriteStmt(Write stmt); //Вывода
         R visitExpressionStmt(Expression stmt);
         R visitLabelStmt(Label stmt);
+        R visitWhileStmt(While stmt);
     }
 
     static class Block extends Stmt {
@@ -119,6 +125,31 @@ abstract class Stmt {
         final Block body;
     }
 
+    /**
+     * Loop recovered from goto-based control flow by {@link LoopRecovery}; the
+     * parser never produces one. The loop is left once the truth of the condition
+     * equals {@code until}, tested before every pass when {@code testFirst} and
+     * after every pass otherwise.
+     */
+    static class While extends Stmt {
+        While(Expr condition, boolean until, boolean testFirst, Block body) {
+            this.condition = condition;
+            this.until = until;
+            this.testFirst = testFirst;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitWhileStmt(this);
+        }
+
+        final Expr condition;
+        final boolean until;
+        final boolean testFirst;
+        final Block body;
+    }
+
     static class Goto extends Stmt {
         Goto(Token label) {
             this.label = label;
@@ -0,0 +1,212 @@
+package com.nequma.translator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tiered execution of a program run with -TIERED. Every statement starts out
+ * walked as a tree; interpreters count the back-edges of loops and the jumps to
+ * each label, and once a count reaches the threshold the region it heads is
+ * compiled to closures by {@link ClosureCompiler}. A loop's region is the loop
+ * itself, a label's runs from the label to the end of its list.
+ *
+ * The first compilation of a region assumes its arithmetic stays on integers.
+ * When that fails the closure throws the region's {@link Deoptimization}, the
+ * interpreter drops the region's closures and evaluates the expression on the
+ * tree; a region compiled again after that keeps the interpreter's rules for
+ * other values, as closures without -TIERED do.
+ *
+ * A {@link Profile} from earlier runs has hot loops compiled before the run
+ * starts, and regions that deoptimized then compiled for any operands at once.
+ * Branches the profile never saw taken are left to the tree walk.
+ *
+ * Both tiers keep variables in the same slots of the same environment, so a
+ * loop promoted while it runs carries on with the next statement: there is no
+ * state to move between them.
+ *
+ * One program may be run by several interpreters at once, as batch runs do.
+ * Regions change only under this object's lock, and closures reach the shared
+ * tree through the volatile {@link Expr#closure}, so an interpreter on another
+ * thread sees either a complete closure or none and walks the tree.
+ */
+final class Tiering {
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    /** Thrown by a speculative closure whose assumption no longer holds. */
+    // Thrown and caught within one run, never serialized
+    @SuppressWarnings("serial")
+    static final class Deoptimization extends RuntimeException {
+        final Region region;
+
+        Deoptimization(Region region) {
+            // Thrown on a hot path and always caught, so it carries no stack trace
+            super(null, null, false, false);
+            this.region = region;
+        }
+    }
+
+    /** Statements with ids in [first, end), compiled together. */
+    final class Region {
+        // Id of the loop body or label the region is kept by
+        final int head;
+        final int first;
+        final int end;
+        final Deoptimization deoptimization = new Deoptimization(this);
+        boolean compiled;
+        boolean deoptimized;
+        private List<Expr> exprs = new ArrayList<>();
+
+        Region(int head, int first, int end) {
+            this.head = head;
+            this.first = first;
+            this.end = end;
+        }
+
+        /** Returns the region to the tree walk. */
+        void deoptimize() {
+            Tiering.this.deoptimize(this);
+        }
+
+        private boolean contains(Region region) {
+            return first <= region.first && region.end <= end;
+        }
+
+        private boolean overlaps(Region region) {
+            return first < region.end && region.first < end;
+        }
+    }
+
+    final int threshold;
+    private final Program program;
+    // By head
+    private final Map<Integer, Region> regions = new HashMap<>();
+    private Profile profile;
+
+    Tiering(Program program, int threshold) {
+        this.program = program;
+        this.threshold = threshold;
+    }
+
+    /** A loop whose body has the given id is hot. */
+    synchronized void loop(int bodyId) {
+        compile(loopRegion(bodyId));
+    }
+
+    /** Jumps to the label are hot. */
+    synchronized void label(Program.LabelInfo target) {
+        compile(labelRegion(target));
+    }
+
+    /** Takes what earlier runs found before this one starts. */
+    synchronized void apply(Profile profile) {
+        this.profile = profile;
+        // Outer loops come first, and compile the loops inside them as well
+        for (Stmt stmt : program.statements) {
+            Region region = null;
+            if (stmt instanceof Stmt.Loop || stmt instanceof Stmt.While) {
+                int bodyId = stmt.id + 1;
+                if (profile.counts[bodyId] > 0 || profile.generic[bodyId]) region = loopRegion(bodyId);
+            } else if (stmt instanceof Stmt.Label && (profile.counts[stmt.id] > 0 || profile.generic[stmt.id])) {
+                Program.LabelInfo target = program.labels.get(((Stmt.Label) stmt).name.lexeme);
+                if (target != null && target.label() == stmt) region = labelRegion(target);
+            }
+            if (region == null) continue;
+            if (profile.generic[region.head]) region.deoptimized = true;
+            if (profile.counts[region.head] >= threshold) compile(region);
+        }
+    }
+
+    /** Marks the regions of this program that deoptimized in the profile. */
+    synchronized void record(Profile profile) {
+        for (Region region : regions.values()) {
+            if (region.deoptimized) profile.generic[region.head] = true;
+        }
+    }
+
+    private Region loopRegion(int bodyId) {
+        Region region = regions.get(bodyId);
+        if (region == null) {
+            // The loop statement is numbered right before its body
+            region = new Region(bodyId, bodyId - 1, end(program.statements.get(bodyId)));
+            regions.put(bodyId, region);
+        }
+        return region;
+    }
+
+    private Region labelRegion(Program.LabelInfo target) {
+        Stmt.Label label = target.label();
+        Region region = regions.get(label.id);
+        if (region == null) {
+            List<Stmt> list = target.stack.get(target.stack.size() - 1).stmts;
+            region = new Region(label.id, label.id, end(list.get(list.size() - 1)));
+            regions.put(label.id, region);
+        }
+        return region;
+    }
+
+    private void compile(Region region) {
+        if (region.compiled) return;
+        Deoptimization miss = region.deoptimized ? null : region.deoptimization;
+        List<Expr> exprs = new ArrayList<>();
+        int from = region.first;
+        for (int id = region.first; id < region.end; id++) {
+            Stmt cold = cold(program.statements.get(id));
+            if (cold == null) continue;
+            exprs.addAll(ClosureCompiler.compile(program, from, cold.id, miss));
+            from = end(cold);
+            id = from - 1;
+        }
+        exprs.addAll(ClosureCompiler.compile(program, from, region.end, miss));
+        region.exprs = exprs;
+        region.compiled = true;
+        Metrics.GLOBAL.tierUp();
+        // Regions inside this one have just been compiled with it
+        for (Region nested : regions.values()) {
+            if (region.contains(nested)) nested.compiled = true;
+        }
+    }
+
+    private synchronized void deoptimize(Region region) {
+        // Another interpreter may have got here first
+        if (!region.compiled) return;
+        Metrics.GLOBAL.deoptimized();
+        region.deoptimized = true;
+        // What overlaps the region shares some of its expressions and is compiled again as a whole
+        for (Region other : regions.values()) {
+            if (other.compiled && region.overlaps(other)) {
+                other.compiled = false;
+                for (Expr expr : other.exprs) {
+                    expr.closure = null;
+                }
+            }
+        }
+    }
+
+    // A branch the profile has never seen taken, if the statement is an if with one
+    private Stmt cold(Stmt stmt) {
+        if (profile == null || !(stmt instanceof Stmt.If) || !profile.settled((Stmt.If) stmt, threshold)) return null;
+        Stmt.If branch = (Stmt.If) stmt;
+        if (profile.counts[stmt.id] == 0) return branch.thenBranch;
+        if (profile.untaken[stmt.id] == 0) return branch.elseBranch;
+        return null;
+    }
+
+    // Id past the last statement nested in the given one; nested statements are numbered depth-first
+    private static int end(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> stmts = ((Stmt.Block) stmt).stmts;
+            return stmts.isEmpty() ? stmt.id + 1 : end(stmts.get(stmts.size() - 1));
+        }
+        if (stmt instanceof Stmt.Loop) return end(((Stmt.Loop) stmt).body);
+        if (stmt instanceof Stmt.While) return end(((Stmt.While) stmt).body);
+        if (stmt instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If) stmt;
+            if (branch.elseBranch != null) return end(branch.elseBranch);
+            if (branch.thenBranch != null) return end(branch.thenBranch);
+        }
+        if (stmt instanceof Stmt.Label && ((Stmt.Label) stmt).body != null) return end(((Stmt.Label) stmt).body);
+        return stmt.id + 1;
+    }
+}
@@ -0,0 +1,16 @@
+package com.nequma.translator;
+
+import java.util.List;
+
+/** Tokens as the parser sees them: addressed by position and terminated by EOF. */
+interface TokenSource {
+    /** Token at the given position; positions past the end yield the EOF token. */
+    Token get(int index);
+
+    /** Tokens before the given position will not be asked for again. */
+    default void release(int index) {}
+
+    static TokenSource of(List<Token> tokens) {
+        return index -> index < tokens.size() ? tokens.get(index) : tokens.get(tokens.size() - 1);
+    }
+}
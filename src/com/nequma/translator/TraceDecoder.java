@@ -0,0 +1,171 @@
+package com.nequma.translator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Prints a trace written by {@link TraceRecorder} as one line per event.
+ * Statement ids are turned back into source lines and label names by parsing
+ * the program again and compiling it with the options stored in the trace, so
+ * the source must be the one the trace was taken from. A trace whose program
+ * fingerprint does not match is refused rather than decoded against the wrong
+ * statements; so is one taken from a program specialized with -FIX, whose
+ * residual program cannot be rebuilt from the source alone.
+ *
+ *   java com.nequma.translator.TraceDecoder <source> <trace>
+ */
+final class TraceDecoder {
+    private final Program program;
+    private final AstPrinter printer = new AstPrinter(true);
+
+    TraceDecoder(Program program) {
+        this.program = program;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java TraceDecoder <source> <trace>");
+            System.exit(64);
+        }
+        String source = new String(Files.readAllBytes(Paths.get(args[0])), Charset.defaultCharset());
+        List<Token> tokens = new Scanner(source).scanTokens();
+        Parser parser = new Parser(tokens);
+        List<Stmt> stmts = parser.parse();
+        if (parser.hadError() || Translator.hadError) {
+            System.out.println("Parsing failed.");
+            System.exit(65);
+        }
+        ByteBuffer trace = ByteBuffer.wrap(Files.readAllBytes(Paths.get(args[1])));
+        try {
+            int options = options(trace);
+            if ((options & TraceRecorder.SPECIALIZED) != 0) {
+                throw new IllegalArgumentException("The trace was taken from a program specialized with -FIX,"
+                        + " which cannot be rebuilt from the source.");
+            }
+            // Statement ids depend on how the program was compiled, not on how it was run
+            boolean optimize = (options & TraceRecorder.OPTIMIZED) != 0;
+            new TraceDecoder(Program.compile(stmts, new Program.Options(optimize, false, 0))).decode(trace, System.out);
+        } catch (IllegalArgumentException ex) {
+            System.out.println(ex.getMessage());
+            System.exit(65);
+        }
+    }
+
+    /** Checks the header and returns the options the traced program was compiled with. */
+    static int options(ByteBuffer trace) {
+        trace.order(ByteOrder.LITTLE_ENDIAN);
+        if (trace.limit() < TraceRecorder.HEADER_BYTES || trace.getInt(0) != TraceRecorder.MAGIC) {
+            throw new IllegalArgumentException("Not a trace file.");
+        }
+        if (trace.getInt(4) != TraceRecorder.VERSION) {
+            throw new IllegalArgumentException("Trace format version " + trace.getInt(4) + " is not supported.");
+        }
+        return trace.getInt(TraceRecorder.OPTIONS_OFFSET);
+    }
+
+    void decode(ByteBuffer trace, PrintStream out) {
+        options(trace);
+        int capacity = trace.getInt(8);
+        if (trace.getInt(12) != program.statements.size()
+                || trace.getLong(TraceRecorder.FINGERPRINT_OFFSET) != Checkpoint.fingerprint(program)) {
+            throw new IllegalArgumentException("The trace was taken from a different program: it has "
+                    + trace.getInt(12) + " statements, this one has " + program.statements.size() + ".");
+        }
+        long count = trace.getLong(TraceRecorder.COUNT_OFFSET);
+
+        // A full ring starts at the oldest record, which may be the tail of a text
+        long first = Math.max(0, count - capacity);
+        if (first > 0) out.println("(" + first + " earlier events overwritten)");
+        long index = first;
+        while (index < count && kind(trace, index, capacity) == TraceRecorder.TEXT) {
+            index++;
+        }
+
+        while (index < count) {
+            int at = at(index, capacity);
+            int kind = trace.getInt(at);
+            int id = trace.getInt(at + 4);
+            long value = trace.getLong(at + 8);
+            index++;
+
+            Stmt stmt = id >= 0 && id < program.statements.size() ? program.statements.get(id) : null;
+            if (stmt == null) {
+                out.println(String.format("%-7s statement %d is not in this program", "?", id));
+                continue;
+            }
+            switch (kind & 0xFF) {
+                case TraceRecorder.STATEMENT:
+                    out.println(String.format("%-7s line %-5d %s", "stmt", stmt.line, Profiler.kind(stmt)));
+                    break;
+                case TraceRecorder.BRANCH:
+                    if (!(stmt instanceof Stmt.If)) {
+                        mismatch(out, kind, stmt);
+                        break;
+                    }
+                    out.println(String.format("%-7s line %-5d %s", "branch", stmt.line,
+                            value != 0 ? "then" : ((Stmt.If) stmt).elseBranch != null ? "else" : "skipped"));
+                    break;
+                case TraceRecorder.GOTO: {
+                    Stmt target = value >= 0 && value < program.statements.size()
+                            ? program.statements.get((int) value) : null;
+                    if (!(stmt instanceof Stmt.Goto) || !(target instanceof Stmt.Label)) {
+                        mismatch(out, kind, stmt);
+                        break;
+                    }
+                    Stmt.Label label = (Stmt.Label) target;
+                    out.println(String.format("%-7s line %-5d -> %s (line %d)", "goto", stmt.line,
+                            label.name.lexeme, label.line));
+                    break;
+                }
+                case TraceRecorder.READ_INTEGER:
+                    read(out, stmt, kind, Long.toString(value));
+                    break;
+                case TraceRecorder.READ_REAL:
+                    read(out, stmt, kind, Double.toString(Double.longBitsToDouble(value)));
+                    break;
+                case TraceRecorder.READ_TEXT: {
+                    byte[] text = new byte[(int) value];
+                    for (int from = 0; from < text.length && index < count; from += TraceRecorder.TEXT_BYTES_PER_RECORD) {
+                        int textAt = at(index++, capacity);
+                        for (int i = 0; i < TraceRecorder.TEXT_BYTES_PER_RECORD && from + i < text.length; i++) {
+                            text[from + i] = trace.get(textAt + 4 + i);
+                        }
+                    }
+                    read(out, stmt, kind, "\"" + new String(text, StandardCharsets.UTF_8) + "\"");
+                    break;
+                }
+                default:
+                    out.println(String.format("%-7s unknown record kind %d", "?", kind));
+            }
+        }
+    }
+
+    private void read(PrintStream out, Stmt stmt, int kind, String value) {
+        if (!(stmt instanceof Stmt.Read) || (kind >>> 8) >= ((Stmt.Read) stmt).variables.size()) {
+            mismatch(out, kind, stmt);
+            return;
+        }
+        Expr variable = ((Stmt.Read) stmt).variables.get(kind >>> 8);
+        out.println(String.format("%-7s line %-5d %s = %s", "read", stmt.line, printer.print(variable), value));
+    }
+
+    private static void mismatch(PrintStream out, int kind, Stmt stmt) {
+        out.println(String.format("%-7s record kind %d does not fit the %s on line %d", "?", kind & 0xFF,
+                Profiler.kind(stmt), stmt.line));
+    }
+
+    private static int kind(ByteBuffer trace, long index, int capacity) {
+        return trace.getInt(at(index, capacity));
+    }
+
+    private static int at(long index, int capacity) {
+        return TraceRecorder.HEADER_BYTES + (int) (index % capacity) * TraceRecorder.RECORD_BYTES;
+    }
+}
@@ -0,0 +1,172 @@
+package com.nequma.translator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Records the path a run takes as fixed-size binary records in a ring buffer,
+ * either on the heap or in a memory-mapped file. Each event is three stores
+ * into the buffer; when the buffer is full the oldest records are overwritten.
+ * {@link TraceDecoder} turns a trace back into source lines and label names.
+ *
+ * Layout, little-endian: a 40 byte header (magic, version, capacity in records,
+ * statement count, records written so far, the program's fingerprint as
+ * {@link Checkpoint} takes it, and the options it was compiled with) followed by
+ * 16 byte records of kind, statement id and value. The kind's upper bits hold
+ * the position of the variable a read value belongs to.
+ */
+final class TraceRecorder implements ExecutionListener {
+    static final int MAGIC = 0x5254514E; // "NQTR"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 40;
+    static final int RECORD_BYTES = 16;
+    static final int COUNT_OFFSET = 16;
+    static final int FINGERPRINT_OFFSET = 24;
+    static final int OPTIONS_OFFSET = 32;
+
+    /** Options that change statement ids, so a decoder has to compile the program with them too. */
+    static final int OPTIMIZED = 1;
+    static final int SPECIALIZED = 2;
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    static final int STATEMENT = 1;
+    static final int GOTO = 2;
+    static final int BRANCH = 3;
+    static final int READ_INTEGER = 4;
+    static final int READ_REAL = 5;
+    /** Value is the length of the text; the bytes follow in TEXT records, 12 to a record. */
+    static final int READ_TEXT = 6;
+    static final int TEXT = 7;
+    static final int TEXT_BYTES_PER_RECORD = 12;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final FileChannel channel;
+    private long count = 0;
+    private int slot = 0;
+
+    private TraceRecorder(ByteBuffer buffer, int capacity, Program program, FileChannel channel) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.capacity = capacity;
+        this.channel = channel;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, program.statements.size());
+        buffer.putLong(COUNT_OFFSET, 0);
+        buffer.putLong(FINGERPRINT_OFFSET, Checkpoint.fingerprint(program));
+        buffer.putInt(OPTIONS_OFFSET, options(program));
+    }
+
+    /** The options the program is compiled with. */
+    static int options(Program program) {
+        int options = program.options.optimize ? OPTIMIZED : 0;
+        if ((Translator.fixedByName != null && !Translator.fixedByName.isEmpty())
+                || (Translator.fixedByPosition != null && !Translator.fixedByPosition.isEmpty())) {
+            options |= SPECIALIZED;
+        }
+        return options;
+    }
+
+    /** Ring buffer on the heap; save it with {@link #write} once the run is over. */
+    static TraceRecorder inMemory(Program program, int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + capacity * RECORD_BYTES);
+        return new TraceRecorder(buffer, capacity, program, null);
+    }
+
+    /**
+     * Ring buffer mapped onto a file. Records reach the file through the page
+     * cache, so the trace survives even if the JVM dies part way through.
+     */
+    static TraceRecorder mapped(Program program, Path path, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_BYTES + (long) capacity * RECORD_BYTES);
+        return new TraceRecorder(buffer, capacity, program, channel);
+    }
+
+    @Override
+    public void beforeStatement(Stmt stmt, List<Interpreter.Frame> stack) {
+        record(STATEMENT, stmt.id, 0);
+    }
+
+    @Override
+    public void afterStatement(Stmt stmt) {
+    }
+
+    @Override
+    public void onGoto(Stmt.Goto from, Program.LabelInfo target) {
+        record(GOTO, from.id, target.label().id);
+    }
+
+    @Override
+    public void onBranch(Stmt.If stmt, boolean taken) {
+        record(BRANCH, stmt.id, taken ? 1 : 0);
+    }
+
+    @Override
+    public void onRead(Stmt.Read stmt, int position, Object value) {
+        if (value instanceof Integer) {
+            record(READ_INTEGER | position << 8, stmt.id, (int) value);
+        } else if (value instanceof Double) {
+            record(READ_REAL | position << 8, stmt.id, Double.doubleToRawLongBits((double) value));
+        } else {
+            // A vector read whole is noted by its size; its elements would swamp the trace
+            String read = value instanceof Vector ? ((Vector) value).length + " elements" : String.valueOf(value);
+            byte[] text = read.getBytes(StandardCharsets.UTF_8);
+            record(READ_TEXT | position << 8, stmt.id, text.length);
+            for (int from = 0; from < text.length; from += TEXT_BYTES_PER_RECORD) {
+                int at = next();
+                buffer.putInt(at, TEXT);
+                for (int i = 0; i < TEXT_BYTES_PER_RECORD && from + i < text.length; i++) {
+                    buffer.put(at + 4 + i, text[from + i]);
+                }
+                written();
+            }
+        }
+    }
+
+    private void record(int kind, int id, long value) {
+        int at = next();
+        buffer.putInt(at, kind);
+        buffer.putInt(at + 4, id);
+        buffer.putLong(at + 8, value);
+        written();
+    }
+
+    private int next() {
+        int at = HEADER_BYTES + slot * RECORD_BYTES;
+        if (++slot == capacity) slot = 0;
+        return at;
+    }
+
+    // The count goes in last, so a reader never counts a record that is half written
+    private void written() {
+        buffer.putLong(COUNT_OFFSET, ++count);
+    }
+
+    long count() {
+        return count;
+    }
+
+    /** Saves an in-memory trace in the same format as a mapped one. */
+    void write(Path path) throws IOException {
+        Files.write(path, buffer.array());
+    }
+
+    /** Flushes a mapped trace to the file and unmaps it from the channel. */
+    void close() throws IOException {
+        if (channel == null) return;
+        ((MappedByteBuffer) buffer).force();
+        channel.close();
+    }
+}
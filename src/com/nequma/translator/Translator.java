@@ -3,25 +3,98 @@ package com.nequma.translator;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Translator {
-    static boolean hadError = false;
+    // Set by the scanner and parser threads of a pipelined run and read by the main thread
+    static volatile boolean hadError = false;
     static boolean hadRuntimeError = false;
     static boolean scanningOutExpected;
     static boolean parsingOutExpected;
+    static boolean irOutputExpected;
     static boolean viewStagesExpected;
+    static String batchInputPath;
+    static boolean pipelineExpected;
+    static boolean compactDumpExpected;
+    static boolean profilingExpected;
+    static ExecutionLimits limits;
+    static boolean statsExpected;
+    static boolean jmxExpected;
+    /** Loop recovery, SSA and loop optimizations on compiled programs; -NOOPT runs the tree as parsed. */
+    static boolean optimizationExpected = true;
+    /** Expressions compiled to closures; -NOCLOSURES has the interpreter walk the tree. */
+    static boolean closuresExpected = true;
+    /** With -TIERED[=<n>], code is compiled once a loop or label has been reached n times; 0 compiles it all up front. */
+    static int tierThreshold;
+    /** Where -PGO keeps the profile of the program, by default next to it; null records none. */
+    static String profilePath;
+    /** Where -JAVA=<file> writes the program translated to Java; -JAVAC compiles and runs that instead. */
+    static String javaOutputPath;
+    static boolean javaRunExpected;
+    /** Read values given with -FIX=<name>=<value> or -FIX=#<n>=<value>; the program is specialized for them. */
+    static Map<String, Object> fixedByName;
+    static Map<Integer, Object> fixedByPosition;
+    /** Where -RESIDUAL=<file> writes the specialized program, printed as the parser dump is. */
+    static String residualOutputPath;
+    /**
+     * -VECTORS=<dir> keeps vectors in files there, mapped rather than on the heap; -VECTORSRO=<dir> maps them read-only.
+     * Runs of a batch would share the files, so -BATCH refuses it.
+     */
+    static Path vectorDirectory;
+    static boolean vectorsReadOnly;
+    /**
+     * With -BINARYVECTORS=<dir>, reading or writing a whole vector moves its raw elements through <dir>/<name>.bin.
+     * Runs of a batch would overwrite each other's files, so -BATCH refuses it.
+     */
+    static Path binaryVectorDirectory;
+    static String traceOutputPath;
+    static String checkpointPath;
+    static long checkpointSeconds;
+    static String resumePath;
 
     public static void main(String[] args) throws IOException {
-        if (args.length < 1 || args.length > 4) {
-            System.out.println("Usage: java Translator <path> [-VS] [-SO] [-PO]");
+        if (args.length < 1) {
+            System.out.println("Usage: java Translator <path> [-VS] [-SO] [-PO] [-IRO] [-BATCH=<inputs>] [-CD] [-PIPE] [-PROF]"
+                    + " [-MAXSTEPS=<n>] [-TIMEOUT=<ms>] [-MAXOUT=<bytes>] [-MAXMEM=<bytes>] [-STATS] [-JMX] [-NOOPT] [-NOCLOSURES]"
+                    + " [-TIERED[=<n>]] [-PGO[=<file>]]"
+                    + " [-JAVA=<file>] [-JAVAC] [-FIX=<name>=<value>] [-FIX=#<n>=<value>] [-RESIDUAL=<file>]"
+                    + " [-VECTORS=<dir>] [-VECTORSRO=<dir>] [-BINARYVECTORS=<dir>]"
+                    + " [-TRACE=<file>] [-CHECKPOINT=<file>] [-CHECKPOINTEVERY=<seconds>] [-RESUME=<file>]");
             System.exit(64);
         }
 
         scanningOutExpected = false;
         parsingOutExpected = false;
+        irOutputExpected = false;
         viewStagesExpected = false;
+        batchInputPath = null;
+        pipelineExpected = false;
+        compactDumpExpected = false;
+        profilingExpected = false;
+        limits = null;
+        statsExpected = false;
+        optimizationExpected = true;
+        closuresExpected = true;
+        tierThreshold = 0;
+        profilePath = null;
+        javaOutputPath = null;
+        javaRunExpected = false;
+        fixedByName = new HashMap<>();
+        fixedByPosition = new HashMap<>();
+        residualOutputPath = null;
+        vectorDirectory = null;
+        vectorsReadOnly = false;
+        binaryVectorDirectory = null;
+        traceOutputPath = null;
+        checkpointPath = null;
+        checkpointSeconds = 60;
+        resumePath = null;
+        jmxExpected = System.getProperty("com.sun.management.jmxremote") != null;
 
         for (int i = 1; i < args.length; i++) {
             System.out.println(args[i]);
@@ -35,18 +108,222 @@ public class Translator {
                 case "-PO":
                     parsingOutExpected = true;
                     break;
+                case "-IRO":
+                    irOutputExpected = true;
+                    break;
+                case "-CD":
+                    compactDumpExpected = true;
+                    break;
+                case "-PROF":
+                    profilingExpected = true;
+                    break;
+                case "-NOOPT":
+                    optimizationExpected = false;
+                    break;
+                case "-NOCLOSURES":
+                    closuresExpected = false;
+                    break;
+                case "-TIERED":
+                    tierThreshold = Tiering.DEFAULT_THRESHOLD;
+                    break;
+                case "-PGO":
+                    profilePath = args[0] + ".profile";
+                    break;
+                case "-JAVAC":
+                    javaRunExpected = true;
+                    break;
+                case "-STATS":
+                    statsExpected = true;
+                    break;
+                case "-JMX":
+                    jmxExpected = true;
+                    break;
+                case "-PIPE":
+                    pipelineExpected = true;
+                    break;
                 default:
+                    if (args[i].startsWith("-BATCH=")) {
+                        batchInputPath = args[i].substring("-BATCH=".length());
+                        break;
+                    }
+                    if (args[i].startsWith("-JAVA=")) {
+                        javaOutputPath = args[i].substring("-JAVA=".length());
+                        break;
+                    }
+                    if (args[i].startsWith("-TIERED=")) {
+                        tierThreshold = (int) Math.min(number(args[i], "tier threshold", 0), Integer.MAX_VALUE);
+                        break;
+                    }
+                    if (args[i].startsWith("-PGO=")) {
+                        profilePath = args[i].substring("-PGO=".length());
+                        break;
+                    }
+                    if (args[i].startsWith("-FIX=") && args[i].indexOf('=', "-FIX=".length()) > 0) {
+                        fix(args[i].substring("-FIX=".length()));
+                        break;
+                    }
+                    if (args[i].startsWith("-RESIDUAL=")) {
+                        residualOutputPath = args[i].substring("-RESIDUAL=".length());
+                        break;
+                    }
+                    if (args[i].startsWith("-VECTORS=")) {
+                        vectorDirectory = Paths.get(args[i].substring("-VECTORS=".length()));
+                        vectorsReadOnly = false;
+                        break;
+                    }
+                    if (args[i].startsWith("-VECTORSRO=")) {
+                        vectorDirectory = Paths.get(args[i].substring("-VECTORSRO=".length()));
+                        vectorsReadOnly = true;
+                        break;
+                    }
+                    if (args[i].startsWith("-BINARYVECTORS=")) {
+                        binaryVectorDirectory = Paths.get(args[i].substring("-BINARYVECTORS=".length()));
+                        break;
+                    }
+                    if (args[i].startsWith("-TRACE=")) {
+                        traceOutputPath = args[i].substring("-TRACE=".length());
+                        break;
+                    }
+                    if (args[i].startsWith("-CHECKPOINT=")) {
+                        checkpointPath = args[i].substring("-CHECKPOINT=".length());
+                        break;
+                    }
+                    if (args[i].startsWith("-CHECKPOINTEVERY=")) {
+                        checkpointSeconds = number(args[i], "checkpoint interval", 1);
+                        break;
+                    }
+                    if (args[i].startsWith("-RESUME=")) {
+                        resumePath = args[i].substring("-RESUME=".length());
+                        break;
+                    }
+                    if (setLimit(args[i])) break;
                     System.err.println("Unknown flag: " + args[i]);
             }
         }
+        if (batchInputPath != null && (vectorDirectory != null || binaryVectorDirectory != null)) {
+            System.err.println("-BATCH runs side by side and cannot share the vector files of -VECTORS, -VECTORSRO"
+                    + " or -BINARYVECTORS.");
+            System.exit(64);
+        }
+        if (javaRunExpected) refuse("-JAVAC runs the program outside the interpreter and", javaRunConflicts());
+        if (batchInputPath != null) refuse("-BATCH runs every input set on its own and", batchConflicts());
+        if (traceOutputPath != null) refuse("-TRACE records a run of its own and", traceConflicts());
+        if (checkpointPath != null || resumePath != null) {
+            refuse("-CHECKPOINT/-RESUME", runListenerConflicts());
+        }
+        if (profilingExpected && profilePath != null) refuse("-PROF", List.of("-PGO"));
+        // The profile decides what is compiled, which takes tiered execution
+        if (profilePath != null && tierThreshold <= 0) tierThreshold = Tiering.DEFAULT_THRESHOLD;
+        // Starting the MBean server costs more than running a small program, so it is opt-in
+        if (jmxExpected) Metrics.register();
         runFile(args[0]);
     }
 
+    // Each run mode takes one listener and one way through run(); a flag it would drop ends the run as a usage error
+    private static void refuse(String mode, List<String> conflicts) {
+        if (conflicts.isEmpty()) return;
+        System.err.println(mode + " cannot be combined with " + String.join(", ", conflicts) + ".");
+        System.exit(64);
+    }
+
+    private static List<String> traceConflicts() {
+        List<String> conflicts = runListenerConflicts();
+        if (checkpointPath != null || resumePath != null) conflicts.add("-CHECKPOINT/-RESUME");
+        return conflicts;
+    }
+
+    private static List<String> batchConflicts() {
+        List<String> conflicts = traceConflicts();
+        if (traceOutputPath != null) conflicts.add(0, "-TRACE");
+        return conflicts;
+    }
+
+    // Profiling and profile-guided runs watch the interpreter through a listener or profile of their own
+    private static List<String> runListenerConflicts() {
+        List<String> conflicts = new ArrayList<>();
+        if (profilingExpected) conflicts.add("-PROF");
+        if (profilePath != null) conflicts.add("-PGO");
+        return conflicts;
+    }
+
+    // Flags that act on the interpreter's run, which the compiled class does without
+    private static List<String> javaRunConflicts() {
+        List<String> conflicts = new ArrayList<>();
+        if (limits != null) conflicts.add("limits (-MAXSTEPS, -TIMEOUT, -MAXOUT, -MAXMEM)");
+        if (profilingExpected) conflicts.add("-PROF");
+        if (traceOutputPath != null) conflicts.add("-TRACE");
+        if (batchInputPath != null) conflicts.add("-BATCH");
+        if (statsExpected) conflicts.add("-STATS");
+        if (profilePath != null) conflicts.add("-PGO");
+        if (checkpointPath != null || resumePath != null) conflicts.add("-CHECKPOINT/-RESUME");
+        if (vectorDirectory != null) conflicts.add(vectorsReadOnly ? "-VECTORSRO" : "-VECTORS");
+        if (binaryVectorDirectory != null) conflicts.add("-BINARYVECTORS");
+        return conflicts;
+    }
+
+    // <name>=<value> fixes every read of the variable, #<n>=<value> the n-th value the program reads
+    private static void fix(String spec) {
+        int equals = spec.indexOf('=');
+        Object value = PartialEvaluator.value(spec.substring(equals + 1));
+        if (spec.startsWith("#")) {
+            // Whether the program has that many reads is only known once it is parsed
+            long position = number(spec.substring(1, equals), "-FIX read position", 1);
+            fixedByPosition.put((int) Math.min(position, Integer.MAX_VALUE), value);
+        } else {
+            fixedByName.put(spec.substring(0, equals), value);
+        }
+    }
+
+    // -MAXSTEPS=<n>, -TIMEOUT=<ms>, -MAXOUT=<bytes> and -MAXMEM=<bytes> limit every run of the program
+    private static boolean setLimit(String arg) {
+        int equals = arg.indexOf('=');
+        if (equals < 0) return false;
+        String name = arg.substring(0, equals + 1);
+        if (!name.equals("-MAXSTEPS=") && !name.equals("-TIMEOUT=") && !name.equals("-MAXOUT=")
+                && !name.equals("-MAXMEM=")) return false;
+
+        long value = number(arg, "limit", 0);
+        if (limits == null) limits = new ExecutionLimits();
+        switch (name) {
+            case "-MAXSTEPS=":
+                limits.maxStatements = value;
+                break;
+            case "-TIMEOUT=":
+                limits.maxWallMillis = value;
+                break;
+            case "-MAXMEM=":
+                limits.maxMemoryBytes = value;
+                break;
+            default:
+                limits.maxOutputBytes = value;
+        }
+        return true;
+    }
+
+    // Value of a numeric -FLAG=<n>; anything else, or anything below min, ends the run as a usage error
+    private static long number(String arg, String what, long min) {
+        long value;
+        try {
+            value = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+        } catch (NumberFormatException e) {
+            value = min - 1;
+        }
+        if (value < min) {
+            System.err.println("Invalid " + what + ": " + arg + " (expected a whole number of at least " + min + ")");
+            System.exit(64);
+        }
+        return value;
+    }
+
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
         String source = new String(bytes, Charset.defaultCharset());
 
         run(source);
+        if (statsExpected) {
+            System.out.flush();
+            Metrics.GLOBAL.report(System.out);
+        }
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
@@ -67,30 +344,33 @@ public class Translator {
     }
 
     private static void run(String source) {
+        // Stage dumps, batch runs, checkpoints, profiles and traces need the whole program, so they are never pipelined
+        if (pipelineExpected && batchInputPath == null && checkpointPath == null && resumePath == null
+                && !profilingExpected && traceOutputPath == null
+                && !viewStagesExpected && !scanningOutExpected && !parsingOutExpected && !irOutputExpected
+                && javaOutputPath == null && !javaRunExpected && profilePath == null
+                && fixedByName.isEmpty() && fixedByPosition.isEmpty()) {
+            runPipelined(source);
+            return;
+        }
+
         Scanner scanner = new Scanner(source);
         if (viewStagesExpected){
             System.out.println("Source language:");
             System.out.println(source);
         }
 
+        Events.Scan scanEvent = new Events.Scan();
+        scanEvent.begin();
+        long start = System.nanoTime();
         List<Token> tokens = scanner.scanTokens();
+        Metrics.GLOBAL.recordScan(System.nanoTime() - start, tokens.size());
+        scanEvent.tokens = tokens.size();
+        scanEvent.commit();
 
         if (viewStagesExpected || scanningOutExpected) {
-            StringBuilder outString = new StringBuilder();
             if (viewStagesExpected) System.out.println("\nScanning output:");
-            for (Token token : tokens) {
-                if (viewStagesExpected) System.out.println(token.toString());
-                outString.append(token.toString()).append("\n");
-            }
-            if (scanningOutExpected) {
-                try {
-                    try (PrintWriter fileWriter = new PrintWriter("ScannerOutput.txt")) {
-                        fileWriter.write(outString.toString());
-                    }
-                } catch (FileNotFoundException ex) {
-                    System.out.println(ex.getMessage());
-                }
-            }
+            dumpTokens(tokens);
         }
 
         if (hadError) {
@@ -101,25 +381,17 @@ public class Translator {
         //System.out.println("Scanning successful.");
 
         Parser parser = new Parser(tokens);
+        Events.Parse parseEvent = new Events.Parse();
+        parseEvent.begin();
+        start = System.nanoTime();
         List<Stmt> stmts = parser.parse();
+        Metrics.GLOBAL.recordParse(System.nanoTime() - start);
+        parseEvent.statements = stmts.size();
+        parseEvent.commit();
 
         if (viewStagesExpected || parsingOutExpected) {
-            AstPrinter printer = new AstPrinter();
-            StringBuilder outString = new StringBuilder();
             if (viewStagesExpected) System.out.println("\nParsing output:");
-            for (Stmt stmt : stmts) {
-                if (viewStagesExpected) System.out.println(printer.print(stmt));
-                outString.append(printer.print(stmt)).append("\n");
-            }
-            if (parsingOutExpected) {
-                try {
-                    try (PrintWriter fileWriter = new PrintWriter("ParserOutput.txt")) {
-                        fileWriter.write(outString.toString());
-                    }
-                } catch (FileNotFoundException ex) {
-                    System.out.println(ex.getMessage());
-                }
-            }
+            dumpStmts(stmts);
         }
 
         if (parser.hadError() || hadError) {
@@ -127,12 +399,319 @@ public class Translator {
             return;
         }
 
+        if (viewStagesExpected || irOutputExpected) {
+            if (viewStagesExpected) System.out.println("\nIR output:");
+            dumpIr(stmts);
+        }
+
+        // Programs that would fail a check wherever it is reached do not start
+        if (!Checker.check(stmts)) {
+            System.out.println("Checking failed.");
+            return;
+        }
+
+        if (!fixedByName.isEmpty() || !fixedByPosition.isEmpty()) {
+            try {
+                stmts = new PartialEvaluator(fixedByName, fixedByPosition).specialize(stmts, optimizationExpected);
+            } catch (IllegalArgumentException ex) {
+                System.err.println(ex.getMessage());
+                System.exit(64);
+            }
+            if (residualOutputPath != null) writeResidual(stmts);
+        }
+
+        if (javaOutputPath != null || javaRunExpected) {
+            String className = javaClassName(javaOutputPath);
+            String java = JavaTranspiler.transpile(stmts, className);
+            if (javaOutputPath != null) writeJava(java);
+            if (javaRunExpected) {
+                System.out.println("\nCompiled output:");
+                try {
+                    if (!JavaRunner.run(className, java)) hadRuntimeError = true;
+                } catch (IllegalStateException ex) {
+                    System.err.println(ex.getMessage());
+                    hadError = true;
+                }
+                return;
+            }
+        }
+
         //System.out.println("Parsing successful.");
         //System.out.println("Number of statements: " + statements.size());
 
+        if (batchInputPath != null) {
+            runBatch(Program.compile(stmts, compileOptions()));
+            return;
+        }
+
         System.out.println("\nInterpreter output:");
         Interpreter interpreter = new Interpreter();
-        interpreter.interpret(stmts);
+        interpreter.setLimits(limits);
+        interpreter.setVectorDirectory(vectorDirectory, vectorsReadOnly);
+        interpreter.setBinaryVectorDirectory(binaryVectorDirectory);
+        if (traceOutputPath != null) {
+            runTraced(interpreter, Program.compile(stmts, compileOptions()));
+            return;
+        }
+        if (checkpointPath != null || resumePath != null) {
+            runCheckpointed(interpreter, Program.compile(stmts, compileOptions()));
+            return;
+        }
+        if (profilingExpected) {
+            runProfiled(interpreter, Program.compile(stmts, compileOptions()));
+            return;
+        }
+        if (profilePath != null) {
+            runProfileGuided(interpreter, Program.compile(stmts, compileOptions()));
+            return;
+        }
+        interpreter.interpret(Program.compile(stmts, compileOptions()));
+    }
+
+    private static Program.Options compileOptions() {
+        return new Program.Options(optimizationExpected, closuresExpected, tierThreshold);
+    }
+
+    private static void runProfiled(Interpreter interpreter, Program program) {
+        Profiler profiler = new Profiler(program);
+        interpreter.setListener(profiler);
+        interpreter.interpret(program);
+        System.out.flush();
+
+        profiler.report(System.out);
+        try (Writer file = dumpWriter("ProfilerOutput.folded")) {
+            profiler.writeCollapsed(file);
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    // The profile is read before the run and written back with this run's counts added
+    private static void runProfileGuided(Interpreter interpreter, Program program) {
+        Path path = Paths.get(profilePath);
+        Profile profile = null;
+        try {
+            profile = Profile.read(path, program);
+        } catch (IOException ex) {
+            // Whatever is there is left alone, and the run goes ahead without a profile
+            System.err.println("Cannot read profile " + path + ": " + ex.getMessage());
+            interpreter.interpret(program);
+            return;
+        }
+        if (profile == null) {
+            profile = new Profile(program);
+        } else if (program.tiering != null) {
+            program.tiering.apply(profile);
+        }
+        interpreter.setProfile(profile);
+        interpreter.interpret(program);
+        try {
+            profile.write(path);
+        } catch (IOException ex) {
+            System.err.println("Cannot write profile " + path + ": " + ex.getMessage());
+        }
+    }
+
+    // A run that finishes normally removes its checkpoint, which would otherwise
+    // send a later -RESUME back into the middle of a completed run
+    private static void runCheckpointed(Interpreter interpreter, Program program) {
+        Checkpoint from = null;
+        if (resumePath != null) {
+            try {
+                from = Checkpoint.read(Paths.get(resumePath));
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+                return;
+            }
+        }
+        if (checkpointPath != null) {
+            interpreter.setCheckpoints(Paths.get(checkpointPath), checkpointSeconds * 1000);
+        }
+        RuntimeError error = interpreter.run(program, from);
+        if (error != null) {
+            runtimeError(error);
+        } else if (checkpointPath != null) {
+            try {
+                Files.deleteIfExists(Paths.get(checkpointPath));
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }
+    }
+
+    // The trace is mapped onto its file, so it is on disk even when the run never ends
+    private static void runTraced(Interpreter interpreter, Program program) {
+        TraceRecorder recorder;
+        try {
+            recorder = TraceRecorder.mapped(program, Paths.get(traceOutputPath), TraceRecorder.DEFAULT_CAPACITY);
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+            return;
+        }
+        interpreter.setListener(recorder);
+        try {
+            interpreter.interpret(program);
+        } finally {
+            try {
+                recorder.close();
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }
+    }
+
+    // Stage dumps are streamed to the console and to the dump file as they are produced,
+    // so a dump never has to fit in memory as a whole.
+    private static void dumpTokens(List<Token> tokens) {
+        Writer console = viewStagesExpected ? consoleWriter() : null;
+        try (Writer file = scanningOutExpected ? dumpWriter("ScannerOutput.txt") : null) {
+            for (Token token : tokens) {
+                String text = compactDumpExpected ? compactToken(token) : token.toString();
+                if (console != null) console.append(text).append('\n');
+                if (file != null) file.append(text).append('\n');
+            }
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        } finally {
+            flush(console);
+        }
+    }
+
+    private static void dumpIr(List<Stmt> stmts) {
+        Writer console = viewStagesExpected ? consoleWriter() : null;
+        try (Writer file = irOutputExpected ? dumpWriter("IrOutput.txt") : null) {
+            SsaOptimizer optimizer = new SsaOptimizer(LoopRecovery.recover(stmts));
+            optimizer.optimize();
+            StringBuilder text = new StringBuilder();
+            optimizer.print(text);
+            if (console != null) console.append(text);
+            if (file != null) file.append(text);
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        } finally {
+            flush(console);
+        }
+    }
+
+    // The class is named after the file it goes to, as javac wants it
+    private static String javaClassName(String path) {
+        if (path == null) return "TranslatedProgram";
+        String name = Paths.get(path).getFileName().toString();
+        if (name.endsWith(".java")) name = name.substring(0, name.length() - ".java".length());
+        if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) return "TranslatedProgram";
+        for (char c : name.toCharArray()) {
+            if (!Character.isJavaIdentifierPart(c)) return "TranslatedProgram";
+        }
+        return name;
+    }
+
+    private static void writeJava(String java) {
+        try (Writer file = dumpWriter(javaOutputPath)) {
+            file.append(java);
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    private static void writeResidual(List<Stmt> stmts) {
+        AstPrinter printer = new AstPrinter(compactDumpExpected);
+        try (Writer file = dumpWriter(residualOutputPath)) {
+            for (Stmt stmt : stmts) {
+                printer.print(stmt, file);
+                file.append('\n');
+            }
+        } catch (UncheckedIOException ex) {
+            System.out.println(ex.getCause().getMessage());
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    private static void dumpStmts(List<Stmt> stmts) {
+        AstPrinter printer = new AstPrinter(compactDumpExpected);
+        Writer console = viewStagesExpected ? consoleWriter() : null;
+        try (Writer file = parsingOutExpected ? dumpWriter("ParserOutput.txt") : null) {
+            // Print every statement once even when it goes to both targets
+            StringBuilder both = console != null && file != null ? new StringBuilder() : null;
+            for (Stmt stmt : stmts) {
+                if (both != null) {
+                    both.setLength(0);
+                    printer.print(stmt, both);
+                    console.append(both).append('\n');
+                    file.append(both).append('\n');
+                } else {
+                    Writer target = console != null ? console : file;
+                    printer.print(stmt, target);
+                    target.append('\n');
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            System.out.println(ex.getCause().getMessage());
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        } finally {
+            flush(console);
+        }
+    }
+
+    private static Writer consoleWriter() {
+        return new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()));
+    }
+
+    private static Writer dumpWriter(String path) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), Charset.defaultCharset()));
+    }
+
+    private static void flush(Writer console) {
+        if (console == null) return;
+        try {
+            console.flush();
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    // Compact token dump: line, type, lexeme and literal separated by tabs,
+    // with tabs, line breaks and backslashes escaped.
+    private static String compactToken(Token token) {
+        return token.line + "\t" + token.type + "\t" + escape(token.lexeme) + "\t"
+                + (token.literal == null ? "" : escape(token.literal.toString()));
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static void runPipelined(String source) {
+        System.out.println("\nInterpreter output:");
+        Interpreter interpreter = new Interpreter();
+        interpreter.setLimits(limits);
+        interpreter.setVectorDirectory(vectorDirectory, vectorsReadOnly);
+        interpreter.setBinaryVectorDirectory(binaryVectorDirectory);
+        if (!new Pipeline(source, interpreter, compileOptions()).run() || hadError) {
+            System.out.println("Parsing failed.");
+        }
+    }
+
+    // Every non-blank line of the inputs file is one input set: whitespace-separated
+    // values that the program's read statements consume in order.
+    private static void runBatch(Program program) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(batchInputPath), Charset.defaultCharset());
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+            return;
+        }
+
+        List<BatchRunner.Result> results = new BatchRunner(program, limits).run(BatchRunner.inputSets(lines));
+        for (int i = 0; i < results.size(); i++) {
+            BatchRunner.Result result = results.get(i);
+            System.out.println("\nInterpreter output (input set " + (i + 1) + "):");
+            System.out.print(result.output);
+            System.out.flush();
+            if (result.error != null) runtimeError(result.error);
+        }
     }
 
     static void error(int line, String message) {
@@ -153,7 +732,7 @@ public class Translator {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println("[line " + error.token.line + "] Runtime Error: " + error.getMessage());
+        System.err.println("[line " + error.line + "] Runtime Error: " + error.getMessage());
         hadRuntimeError = true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,253 @@
+package com.nequma.translator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Storage of a declared vector; integer vectors hold ints and real vectors doubles.
+ *
+ * A mapped vector keeps its elements in a file instead of the heap, mapped in
+ * chunks of a gigabyte, so its size is bounded by the disk rather than by the
+ * heap. The file is a short header followed by the elements, little-endian;
+ * what a run stores stays in the file, and a later run that declares the same
+ * vector, of the same type and length, finds it there.
+ */
+final class Vector {
+    private static final long HEADER_BYTES = 16;
+    // Estimated heap of the vector object with its array header, and of each mapped chunk's buffer
+    private static final long OBJECT_BYTES = 16;
+    private static final int FILE_MAGIC = 0x4E515646; // "NQVF"
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+    // Elements of a vector on the heap go through a direct buffer of this size
+    private static final int TRANSFER_BYTES = 1 << 16;
+
+    final boolean real;
+    final int length;
+    /** Stores are refused: the vector maps a file opened read-only. */
+    final boolean readOnly;
+    private final int[] ints;
+    private final double[] reals;
+    // Chunks of the file after its header, when the vector is mapped
+    private final ByteBuffer[] chunks;
+
+    Vector(boolean real, int length) {
+        this.real = real;
+        this.length = length;
+        this.readOnly = false;
+        this.ints = real ? null : new int[length];
+        this.reals = real ? new double[length] : null;
+        this.chunks = null;
+    }
+
+    private Vector(boolean real, int length, boolean readOnly, ByteBuffer[] chunks) {
+        this.real = real;
+        this.length = length;
+        this.readOnly = readOnly;
+        this.ints = null;
+        this.reals = null;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Maps the vector kept in the file, creating it filled with zeros when it
+     * does not exist and the mapping may write. A file that holds a vector of
+     * another type or length is not touched.
+     */
+    static Vector mapped(Path file, boolean real, int length, boolean readOnly) throws IOException {
+        int width = real ? Double.BYTES : Integer.BYTES;
+        long size = HEADER_BYTES + (long) length * width;
+        boolean exists = Files.exists(file);
+        if (!exists && readOnly) throw new IOException("There is no vector file " + file + ".");
+        try (FileChannel channel = readOnly ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            ByteBuffer header = ByteBuffer.allocate((int) HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (exists) {
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // Until the header is in or the file ends
+                }
+                header.flip();
+                if (header.remaining() < HEADER_BYTES || header.getInt() != FILE_MAGIC) {
+                    throw new IOException(file + " is not a vector file.");
+                }
+                boolean fileReal = header.getInt() != 0;
+                int fileLength = header.getInt();
+                if (fileReal != real || fileLength != length || channel.size() < size) {
+                    throw new IOException(file + " holds a " + (fileReal ? "real" : "integer") + " vector of length "
+                            + fileLength + ", not a " + (real ? "real" : "integer") + " one of length " + length + ".");
+                }
+            } else {
+                header.putInt(FILE_MAGIC).putInt(real ? 1 : 0).putInt(length).putInt(0).flip();
+                channel.write(header, 0);
+                // Growing the file leaves a hole of zeros that takes no disk until written
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+            FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+            long data = size - HEADER_BYTES;
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((data + CHUNK_BYTES - 1) >>> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                long offset = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(mode, HEADER_BYTES + offset, Math.min(CHUNK_BYTES, data - offset))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // The mappings stay valid after the channel is closed
+            return new Vector(real, length, readOnly, chunks);
+        }
+    }
+
+    /** Heap taken by a vector of the given type and length, known before allocating it. */
+    static long bytes(boolean real, long length) {
+        return OBJECT_BYTES + length * (real ? Double.BYTES : Integer.BYTES);
+    }
+
+    /** A mapped vector takes next to no heap; its elements are in the page cache. */
+    long bytes() {
+        return chunks != null ? OBJECT_BYTES + (long) chunks.length * OBJECT_BYTES : bytes(real, length);
+    }
+
+    Object get(int index) {
+        return real ? (Object) getReal(index) : (Object) getInt(index);
+    }
+
+    int getInt(int index) {
+        if (chunks == null) return ints[index];
+        long offset = (long) index * Integer.BYTES;
+        return chunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & (CHUNK_BYTES - 1)));
+    }
+
+    double getReal(int index) {
+        if (chunks == null) return reals[index];
+        long offset = (long) index * Double.BYTES;
+        return chunks[(int) (offset >>> CHUNK_SHIFT)].getDouble((int) (offset & (CHUNK_BYTES - 1)));
+    }
+
+    void setInt(int index, int value) {
+        if (chunks == null) {
+            ints[index] = value;
+            return;
+        }
+        long offset = (long) index * Integer.BYTES;
+        chunks[(int) (offset >>> CHUNK_SHIFT)].putInt((int) (offset & (CHUNK_BYTES - 1)), value);
+    }
+
+    void setReal(int index, double value) {
+        if (chunks == null) {
+            reals[index] = value;
+            return;
+        }
+        long offset = (long) index * Double.BYTES;
+        chunks[(int) (offset >>> CHUNK_SHIFT)].putDouble((int) (offset & (CHUNK_BYTES - 1)), value);
+    }
+
+    /** Returns false when the value does not fit the element type. */
+    boolean set(int index, Object value) {
+        if (real && value instanceof Number) {
+            setReal(index, ((Number) value).doubleValue());
+            return true;
+        }
+        if (!real && value instanceof Integer) {
+            setInt(index, (int) value);
+            return true;
+        }
+        return false;
+    }
+
+    /** Bytes the raw elements take, as {@link #readFrom} and {@link #writeTo} move them. */
+    long dataBytes() {
+        return (long) length * (real ? Double.BYTES : Integer.BYTES);
+    }
+
+    /**
+     * Fills the vector with the raw elements, little-endian, the channel holds
+     * from its start; it must hold exactly as many as the vector.
+     */
+    void readFrom(FileChannel channel) throws IOException {
+        if (channel.size() != dataBytes()) {
+            throw new IOException("it holds " + channel.size() + " bytes, not the " + dataBytes() + " of "
+                    + length + " " + (real ? "reals" : "integers") + ".");
+        }
+        long position = 0;
+        if (chunks != null) {
+            // Straight into the mapped file
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer target = chunk.duplicate();
+                target.clear();
+                position = fill(channel, target, position);
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        int width = real ? Double.BYTES : Integer.BYTES;
+        for (int from = 0; from < length; ) {
+            int count = Math.min(length - from, TRANSFER_BYTES / width);
+            buffer.clear().limit(count * width);
+            position = fill(channel, buffer, position);
+            buffer.flip();
+            if (real) {
+                buffer.asDoubleBuffer().get(reals, from, count);
+            } else {
+                buffer.asIntBuffer().get(ints, from, count);
+            }
+            from += count;
+        }
+    }
+
+    /** Writes the raw elements, little-endian, to the channel from its start. */
+    void writeTo(FileChannel channel) throws IOException {
+        long position = 0;
+        if (chunks != null) {
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer source = chunk.duplicate();
+                source.clear();
+                position = drain(channel, source, position);
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        int width = real ? Double.BYTES : Integer.BYTES;
+        for (int from = 0; from < length; ) {
+            int count = Math.min(length - from, TRANSFER_BYTES / width);
+            buffer.clear().limit(count * width);
+            if (real) {
+                buffer.asDoubleBuffer().put(reals, from, count);
+            } else {
+                buffer.asIntBuffer().put(ints, from, count);
+            }
+            position = drain(channel, buffer, position);
+            from += count;
+        }
+    }
+
+    private static long fill(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0) throw new IOException("it ends early.");
+            position += read;
+        }
+        return position;
+    }
+
+    private static long drain(FileChannel channel, ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        if (chunks == null) return real ? Arrays.toString(reals) : Arrays.toString(ints);
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < length; i++) {
+            if (i > 0) text.append(", ");
+            text.append(get(i));
+        }
+        return text.append(']').toString();
+    }
+}